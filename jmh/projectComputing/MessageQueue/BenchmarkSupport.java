@@ -0,0 +1,72 @@
+package projectComputing.MessageQueue ;
+
+import java.io.*;
+import java.net.*;
+import java.util.* ;
+
+// Helpers shared by the JMH benchmarks: somewhere to put message queue files, free ports and message contents.
+
+class BenchmarkSupport {
+
+	/** A new, empty directory for message queue files, under java.io.tmpdir unless -DbenchDirectory is given **/
+
+	static File Directory(String name) throws Exception {
+
+		File parent = new File(System.getProperty("benchDirectory", System.getProperty("java.io.tmpdir"))) ;
+		File directory = new File(parent, name + "-" + System.nanoTime()) ;
+		if (!directory.mkdirs()) throw new Exception("Cant create benchmark directory " + directory) ;
+		return directory ;
+	}
+
+	static void Delete(File f) {
+
+		File files[] = f.listFiles() ;
+		if (files != null) for (File g: files) Delete(g) ;
+		f.delete() ;
+	}
+
+	/** A port nothing is listening on (yet) **/
+
+	static int FreePort() throws Exception {
+
+		ServerSocket socket = new ServerSocket(0) ;
+		try {
+			return socket.getLocalPort() ;
+		}
+		finally {
+			socket.close() ;
+		}
+	}
+
+	/** A message queue in this JVM, listening on free ports, with a memory queue big enough not to spill to disk
+	    during a benchmark.  Its threads aren't daemons and it has no way to stop, so each benchmark runs in a fork
+	    of its own, which JMH ends when the benchmark is done.
+	**/
+
+	static MessageQueue StartMessageQueue(String name, String compression) throws Exception {
+
+		MessageQueue.DEBUG = false ;
+		MessageQueue mq = new MessageQueue() ;
+		mq.portUsedBySources = FreePort() ;
+		mq.portUsedBySink = FreePort() ;
+		mq.messageQueueDirectoryName = Directory(name).getPath() ;
+		mq.maxMemoryQueueSize = 256000000 ;
+		mq.compression = compression ;
+		mq.begin() ;
+		return mq ;
+	}
+
+	/** Contents that compress about as well as typical JSON or log lines do: some repeated text, some varying digits **/
+
+	static byte[] Contents(int size, Random random) {
+
+		byte contents[] = new byte[size] ;
+		String words[] = { "{\"order\":", "\"price\":", "\"customer\":", "\"status\":\"ok\"", "\"items\":[", "]}", "," } ;
+		int i = 0 ;
+		while (i < size) {
+			String word = words[random.nextInt(words.length)] + random.nextInt(100000) ;
+			for (int j=0;(j<word.length()) && (i < size);j++) contents[i++] = (byte) word.charAt(j) ;
+		}
+		return contents ;
+	}
+}
@@ -0,0 +1,147 @@
+package projectComputing.MessageQueue ;
+
+import java.io.*;
+import java.util.* ;
+import java.util.concurrent.* ;
+import java.util.zip.* ;
+
+import org.openjdk.jmh.annotations.* ;
+
+// Writing messages to a message queue file, and reading them back, without the rest of the message queue.
+//
+// write: each operation is one message, written in batches of BATCH with a flush per batch as the committer does,
+// a record per message or, with compression "deflate", compressed in blocks.  Full files are deleted.
+// read: each operation reads the next message of a file (as a backlog or a restart does) in each of the ways the
+// message queue can, starting the file again when it ends.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileBenchmark {
+
+	static final int BATCH = 100 ;
+	static final int MAX_DISK_FILE_SIZE = 16000000 ;
+
+	@State(Scope.Thread)
+	public static class Writing {
+
+		@Param({ "100", "1000", "10000" })
+		public int messageSize ;
+
+		@Param({ MessageQueue.COMPRESSION_NONE, MessageQueue.COMPRESSION_DEFLATE })
+		public String compression ;
+
+		File directory ;
+		MessageQueueFile file ;
+		final ArrayList<Message> batch = new ArrayList<Message>() ;
+		Deflater deflater ;
+
+		@Setup(Level.Trial)
+		public void start() throws Exception {
+
+			directory = BenchmarkSupport.Directory("FileBenchmark") ;
+			Random random = new Random(42) ;
+			for (int i=0;i<BATCH;i++) batch.add(new Message(BenchmarkSupport.Contents(messageSize, random))) ;
+			if (MessageQueue.COMPRESSION_DEFLATE.equals(compression)) deflater = new Deflater(MessageQueueBlock.LEVEL) ;
+			file = new MessageQueueFile(directory, false) ;
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws Exception {
+
+			if (file.bos != null) file.close(null) ;
+			BenchmarkSupport.Delete(directory) ;
+		}
+
+		void full() throws Exception {		// the file has been closed
+
+			for (File f: directory.listFiles()) f.delete() ;
+			file = new MessageQueueFile(directory, false) ;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void write(Writing writing) throws Exception {
+
+		int first = 0 ;
+		while (first < BATCH) {
+			int end = first + 1 ;
+			boolean more ;
+			if (writing.deflater != null) {
+				end = MessageQueueBlock.End(writing.batch, first) ;
+				MessageQueueBlock block = MessageQueueBlock.Compress(writing.batch, first, end, writing.deflater) ;
+				more = writing.file.add(block, null, MAX_DISK_FILE_SIZE) ;
+			}
+			else more = writing.file.add(writing.batch.get(first), MAX_DISK_FILE_SIZE) ;
+			if (!more) writing.full() ;
+			first = end ;
+		}
+		writing.file.flush() ;
+	}
+
+	@State(Scope.Thread)
+	public static class Reading {
+
+		@Param({ "100", "1000", "10000" })
+		public int messageSize ;
+
+		@Param({ MessageQueue.COMPRESSION_NONE, MessageQueue.COMPRESSION_DEFLATE })
+		public String compression ;
+
+		@Param({ "copy", "map", "transfer" })
+		public String mode ;
+
+		File directory ;
+		File f ;
+		int readMode ;
+		MessageQueueFile.Reader reader ;
+
+		@Setup(Level.Trial)
+		public void start() throws Exception {
+
+			directory = BenchmarkSupport.Directory("FileBenchmark") ;
+			readMode = mode.equals("map") ? MessageQueueFile.READ_MAP : mode.equals("transfer") ? MessageQueueFile.READ_TRANSFER : MessageQueueFile.READ_COPY ;
+			Writing writing = new Writing() ;		// write a file's worth of messages to read
+			writing.messageSize = messageSize ;
+			writing.compression = compression ;
+			writing.directory = directory ;
+			Random random = new Random(42) ;
+			for (int i=0;i<BATCH;i++) writing.batch.add(new Message(BenchmarkSupport.Contents(messageSize, random))) ;
+			if (MessageQueue.COMPRESSION_DEFLATE.equals(compression)) writing.deflater = new Deflater(MessageQueueBlock.LEVEL) ;
+			writing.file = new MessageQueueFile(directory, false) ;
+			f = writing.file.file ;
+			FileBenchmark benchmark = new FileBenchmark() ;
+			int batches = Math.max(1, Math.min(200, (MAX_DISK_FILE_SIZE / 2) / (BATCH * (messageSize + MessageQueueFile.RECORD_HEADER_SIZE)))) ;
+			for (int i=0;i<batches;i++) benchmark.write(writing) ;
+			writing.file.close(null) ;
+			reader = new MessageQueueFile.Reader(f, readMode) ;
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws Exception {
+
+			reader.transferred = 0 ;		// no messages are waiting to be acked
+			reader.close() ;
+			BenchmarkSupport.Delete(directory) ;
+		}
+
+		Message next() throws Exception {
+
+			Message message = reader.next(false) ;
+			if (message != null) return message ;
+			reader.transferred = 0 ;
+			reader.close() ;
+			reader = new MessageQueueFile.Reader(f, readMode) ;		// read it again
+			return reader.next(false) ;
+		}
+	}
+
+	@Benchmark
+	public Message read(Reading reading) throws Exception {
+
+		return reading.next() ;
+	}
+}
@@ -0,0 +1,122 @@
+package projectComputing.MessageQueue ;
+
+import java.util.* ;
+import java.util.concurrent.* ;
+
+import org.openjdk.jmh.annotations.* ;
+
+// End to end over loopback sockets: sources send with MessageQueueWriter to a message queue in this JVM, and a sink
+// reads with MessageQueueReader.  Each operation is MESSAGES messages, shared between sources sources each with its own
+// connection and thread, and ends when the sink has read them all, so the score is the time per message through the
+// whole message queue.  window is the sources' window (1 is stop-and-wait) and the sink's prefetch.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+	static final int MESSAGES = 1000 ;
+
+	@State(Scope.Benchmark)
+	public static class Loopback {
+
+		@Param({ "100", "1000", "10000" })
+		public int messageSize ;
+
+		@Param({ "1", "4", "8" })
+		public int sources ;
+
+		@Param({ "1", "100" })
+		public int window ;
+
+		MessageQueue mq ;
+		byte contents[] ;
+		MessageQueueWriter writers[] ;
+		ExecutorService sourceThreads ;
+		MessageQueueReader reader ;
+		long sent = 0 ;				// by all the sources
+		long received = 0 ;			// by the sink
+		Exception failure ;
+
+		@Setup(Level.Trial)
+		public void start() throws Exception {
+
+			if ((MESSAGES % sources) != 0) throw new Exception("sources must divide " + MESSAGES) ;
+			mq = BenchmarkSupport.StartMessageQueue("LoopbackBenchmark", MessageQueue.COMPRESSION_NONE) ;
+			Thread.sleep(500) ;		// let the listeners start
+			contents = BenchmarkSupport.Contents(messageSize, new Random(42)) ;
+			writers = new MessageQueueWriter[sources] ;
+			for (int i=0;i<sources;i++) writers[i] = new MessageQueueWriter("127.0.0.1", mq.portUsedBySources, window) ;
+			sourceThreads = Executors.newFixedThreadPool(sources) ;
+			reader = new MessageQueueReader("127.0.0.1", mq.portUsedBySink, window) ;
+			Thread sink = new Thread(new Runnable() {
+				public void run() { read() ; }
+			}, "LoopbackBenchmark-sink") ;
+			sink.setDaemon(true) ;
+			sink.start() ;
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws Exception {
+
+			sourceThreads.shutdown() ;
+			for (MessageQueueWriter writer: writers) writer.close() ;
+		}
+
+		private void read() {		// our sink thread
+
+			try {
+				while (true) {
+					reader.read() ;
+					synchronized (this) {
+						received++ ;
+						if ((received % MESSAGES) == 0) notifyAll() ;
+					}
+				}
+			}
+			catch (Exception e) {
+				synchronized (this) {
+					failure = e ;
+					notifyAll() ;
+				}
+			}
+		}
+
+		synchronized void awaitReceived(long count) throws Exception {
+
+			while ((received < count) && (failure == null)) wait() ;
+			if (failure != null) throw new Exception("LoopbackBenchmark sink failed: " + failure, failure) ;
+		}
+
+		void send() throws Exception {
+
+			ArrayList<Future<?>> sending = new ArrayList<Future<?>>() ;
+			for (int i=0;i<sources;i++) {
+				final MessageQueueWriter writer = writers[i] ;
+				sending.add(sourceThreads.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						if (window == 1) for (int j=0;j<MESSAGES/sources;j++) writer.write(contents) ;
+						else {		// keep window messages in flight, as a source with a window would
+							Future<Long> last = null ;
+							for (int j=0;j<MESSAGES/sources;j++) last = writer.writeAsync(contents) ;
+							last.get() ;
+						}
+						return null ;
+					}
+				})) ;
+			}
+			for (Future<?> f: sending) f.get() ;
+			sent += MESSAGES ;
+			awaitReceived(sent) ;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void sendAndReceive(Loopback loopback) throws Exception {
+
+		loopback.send() ;
+	}
+}
@@ -0,0 +1,51 @@
+package projectComputing.MessageQueue ;
+
+import java.util.* ;
+import java.util.concurrent.* ;
+
+import org.openjdk.jmh.annotations.* ;
+
+// Generating message ids, for every message whose source doesn't give one, and creating messages, as a source's
+// connection does for each message it receives.  With several threads (-t), this includes contention for the
+// sequence number.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+	@State(Scope.Thread)
+	public static class Contents {
+
+		@Param({ "100", "1000", "10000" })
+		public int messageSize ;
+
+		byte contents[] ;
+
+		@Setup(Level.Trial)
+		public void start() {
+
+			contents = BenchmarkSupport.Contents(messageSize, new Random(42)) ;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Id {
+
+		final Message message = new Message(new byte[0]) ;
+	}
+
+	@Benchmark
+	public byte[] genId(Id id) {
+
+		return id.message.genId() ;
+	}
+
+	@Benchmark
+	public Message newMessage(Contents contents) {
+
+		return new Message(contents.contents) ;
+	}
+}
@@ -0,0 +1,98 @@
+package projectComputing.MessageQueue ;
+
+import java.util.* ;
+import java.util.concurrent.* ;
+
+import org.openjdk.jmh.annotations.* ;
+
+// The message queue's own hot paths, in this JVM without sockets: committing messages from sources (group commit to
+// the current file and the memory queue), and the sink taking and acking them.
+//
+// Each operation is one message from each of sources sources, submitted together as concurrent sources' messages would
+// be, so they share a group commit, so divide the score by sources for the time per message.
+//
+// add: the messages are committed, and a sink thread takes and acks them in the background, as MessageQueueSink would.
+// addTakeAck: the messages are committed, then taken and acked by this thread, so each operation also measures
+// take() and lastMessageSentSuccessfully(), with the queue kept (nearly) empty.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Queue {
+
+		@Param({ "100", "1000", "10000" })
+		public int messageSize ;
+
+		@Param({ "1", "8" })
+		public int sources ;
+
+		@Param({ MessageQueue.COMPRESSION_NONE, MessageQueue.COMPRESSION_DEFLATE })
+		public String compression ;
+
+		MessageQueue mq ;
+		byte contents[] ;
+		MessageQueueCommitter.Receipt receipts[] ;		// one for each source
+
+		@Setup(Level.Trial)
+		public void start() throws Exception {
+
+			mq = BenchmarkSupport.StartMessageQueue("QueueBenchmark", compression) ;
+			contents = BenchmarkSupport.Contents(messageSize, new Random(42)) ;
+			receipts = new MessageQueueCommitter.Receipt[sources] ;
+			for (int i=0;i<sources;i++) receipts[i] = new MessageQueueCommitter.Receipt() ;
+		}
+
+		void add() throws Exception {
+
+			for (int i=0;i<sources;i++) mq.submit(new Message(contents), receipts[i]) ;
+			for (int i=0;i<sources;i++) receipts[i].await() ;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class DrainedQueue extends Queue {
+
+		@Setup(Level.Trial)
+		public void startSink() {
+
+			Thread sink = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							mq.take() ;
+							mq.lastMessageSentSuccessfully() ;
+						}
+					}
+					catch (Exception e) {
+						System.err.println("QueueBenchmark sink error:" + e) ;
+					}
+				}
+			}, "QueueBenchmark-sink") ;
+			sink.setDaemon(true) ;
+			sink.start() ;
+		}
+	}
+
+	@Benchmark
+	public void add(DrainedQueue queue) throws Exception {
+
+		queue.add() ;
+	}
+
+	@Benchmark
+	public Message addTakeAck(Queue queue) throws Exception {
+
+		queue.add() ;
+		Message message = null ;
+		for (int i=0;i<queue.sources;i++) {
+			message = queue.mq.take() ;
+			queue.mq.lastMessageSentSuccessfully() ;
+		}
+		return message ;
+	}
+}
@@ -0,0 +1,94 @@
+package projectComputing.MessageQueue ;
+
+import java.io.*;
+import java.net.*;
+import java.nio.* ;
+import java.util.* ;
+import java.util.concurrent.* ;
+
+import org.openjdk.jmh.annotations.* ;
+
+// MessageQueueReader parsing messages, returning a new ReceivedMessageQueueMessage for each (read) or filling one
+// MessageQueueMessageBuffer (readIntoBuffer), over a loopback socket from a stand-in for the message queue's sink end,
+// which sends the same messages over and over, as fast as the reader takes them, and throws away its acks.
+//
+// Run with -prof gc to see the allocation per message: gc.alloc.rate.norm should be about 0 for readIntoBuffer.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReaderBenchmark {
+
+	static final int PREFETCH = 1000 ;
+	static final int MESSAGES_PER_WRITE = 64 ;
+
+	@State(Scope.Benchmark)
+	public static class Reader {
+
+		@Param({ "100", "1000", "10000" })
+		public int messageSize ;
+
+		ServerSocket server ;
+		MessageQueueReader reader ;
+		final MessageQueueMessageBuffer buffer = new MessageQueueMessageBuffer() ;
+
+		@Setup(Level.Trial)
+		public void start() throws Exception {
+
+			server = new ServerSocket(BenchmarkSupport.FreePort(), 1, InetAddress.getLoopbackAddress()) ;
+			byte contents[] = BenchmarkSupport.Contents(messageSize, new Random(42)) ;
+			final ByteBuffer frames = ByteBuffer.allocate(MESSAGES_PER_WRITE * (1 + 16 + 4 + messageSize)) ;
+			for (int i=0;i<MESSAGES_PER_WRITE;i++) frames.put((byte) 'M').putLong(0).putLong(i).putInt(messageSize).put(contents) ;
+			Thread sender = new Thread(new Runnable() {
+				public void run() { send(frames.array()) ; }
+			}, "ReaderBenchmark-sender") ;
+			sender.setDaemon(true) ;
+			sender.start() ;
+			reader = new MessageQueueReader("127.0.0.1", server.getLocalPort(), PREFETCH) ;
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws Exception {
+
+			reader.close() ;
+			server.close() ;
+		}
+
+		private void send(byte frames[]) {		// our sender thread
+
+			try {
+				Socket socket = server.accept() ;
+				final InputStream is = socket.getInputStream() ;
+				Thread acks = new Thread(new Runnable() {
+					public void run() {
+
+						byte discard[] = new byte[4096] ;
+						try {
+							while (is.read(discard) >= 0) ;
+						}
+						catch (IOException e) { }
+					}
+				}, "ReaderBenchmark-acks") ;
+				acks.setDaemon(true) ;
+				acks.start() ;
+				OutputStream os = socket.getOutputStream() ;
+				while (true) os.write(frames) ;
+			}
+			catch (IOException e) { }		// the reader has closed
+		}
+	}
+
+	@Benchmark
+	public ReceivedMessageQueueMessage read(Reader reader) throws Exception {
+
+		return reader.reader.read() ;
+	}
+
+	@Benchmark
+	public MessageQueueMessageBuffer readIntoBuffer(Reader reader) throws Exception {
+
+		return reader.reader.read(reader.buffer) ;
+	}
+}
@@ -0,0 +1,110 @@
+package projectComputing.MessageQueue ;
+
+import java.io.*;
+import java.util.* ;
+
+// java -classpath . projectComputing.MessageQueue.DurabilityBenchmark benchDirectory 7211 8 1000 10000
+
+public class DurabilityBenchmark {
+
+	// Runs a message queue in this JVM with each durability setting in turn, sends it messages from several sources
+	// (each waiting for every ack), and reports messages/sec and ack latency percentiles for each setting.
+	// A sink drains the queue as it runs.
+
+	static final String[] MODES = { MessageQueue.DURABILITY_NONE, MessageQueue.DURABILITY_INTERVAL, MessageQueue.DURABILITY_ALWAYS } ;
+
+	public static void main(String args[]) throws Exception {
+
+		if (args.length != 5) Usage() ;
+
+		String directory = args[0] ;
+		int port = Integer.parseInt(args[1]) ;
+		final int sources = Integer.parseInt(args[2]) ;
+		final int messageSize = Integer.parseInt(args[3]) ;
+		final int messagesPerSource = Integer.parseInt(args[4]) ;
+
+		MessageQueue.DEBUG = false ;
+		String results = "" ;
+		for (String mode: MODES) {
+			final MessageQueue mq = new MessageQueue() ;
+			mq.portUsedBySources = port++ ;
+			mq.portUsedBySink = port++ ;
+			mq.messageQueueDirectoryName = new File(directory, mode + "-" + System.currentTimeMillis()).getPath() ;
+			mq.durability = mode ;
+			mq.begin() ;
+			Thread.sleep(500) ;		// let the listeners start
+
+			Thread sink = new Thread(new Runnable() {
+				public void run() {
+					try {
+						MessageQueueReader mqReader = new MessageQueueReader("127.0.0.1", mq.portUsedBySink) ;
+						while (true) mqReader.read() ;
+					}
+					catch (Exception e) {
+						System.err.println("DurabilityBenchmark sink error:" + e) ;
+					}
+				}
+			}) ;
+			sink.setDaemon(true) ;
+			sink.start() ;
+
+			final long latencies[][] = new long[sources][messagesPerSource] ;
+			Thread threads[] = new Thread[sources] ;
+			long start = System.nanoTime() ;
+			for (int i=0;i<sources;i++) {
+				final int source = i ;
+				threads[i] = new Thread(new Runnable() {
+					public void run() {
+						try {
+							MessageQueueWriter mqWriter = new MessageQueueWriter("127.0.0.1", mq.portUsedBySources) ;
+							byte contents[] = new byte[messageSize] ;
+							Arrays.fill(contents, (byte) 'Z') ;
+							for (int j=0;j<messagesPerSource;j++) {
+								long t = System.nanoTime() ;
+								mqWriter.write(contents) ;
+								latencies[source][j] = System.nanoTime() - t ;
+							}
+							mqWriter.close() ;
+						}
+						catch (Exception e) {
+							System.err.println("DurabilityBenchmark source " + source + " error:" + e) ;
+							e.printStackTrace() ;
+						}
+					}
+				}) ;
+				threads[i].start() ;
+			}
+			for (Thread t: threads) t.join() ;
+			long elapsed = Math.max(1, System.nanoTime() - start) ;
+
+			long all[] = new long[sources * messagesPerSource] ;
+			for (int i=0;i<sources;i++) System.arraycopy(latencies[i], 0, all, i * messagesPerSource, messagesPerSource) ;
+			Arrays.sort(all) ;
+			String result = String.format("%-9s %10d msgs/s   ack latency usec: p50 %8d  p99 %8d  p99.9 %8d  max %8d", mode,
+				(long) all.length * 1000000000L / elapsed, Percentile(all, 50.0) / 1000, Percentile(all, 99.0) / 1000,
+				Percentile(all, 99.9) / 1000, all[all.length - 1] / 1000) ;
+			System.out.println(result) ;
+			results += result + "\n" ;
+		}
+		System.out.println("\n" + sources + " sources, " + messageSize + " byte messages, " + messagesPerSource + " messages per source\n" + results) ;
+		System.exit(0) ;		// the message queues' listener threads would otherwise keep running
+	}
+
+	static long Percentile(long sorted[], double percentile) {
+
+		int i = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1 ;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))] ;
+	}
+
+	static void Usage() {
+
+		System.out.println("DurabilityBenchmark command line parms are:\n" +
+			"Directory to hold the message queue directories (one per durability setting)\n" +
+			"First of the ports to use (2 per durability setting)\n" +
+			"Number of concurrent sources\n" +
+			"Message contents size in bytes\n" +
+			"Messages sent by each source per durability setting\n" +
+			"eg java projectcomputing.MessageQueue.DurabilityBenchmark benchDirectory 7211 8 1000 10000") ;
+			System.exit(-1) ;
+	}
+}
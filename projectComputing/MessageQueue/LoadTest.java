@@ -0,0 +1,265 @@
+package projectComputing.MessageQueue ;
+
+import java.nio.* ;
+import java.util.* ;
+import java.util.concurrent.atomic.* ;
+import java.util.concurrent.locks.* ;
+import java.util.function.* ;
+
+// java -classpath . projectComputing.MessageQueue.LoadTest 127.0.0.1 6211 6212 8 1 20000 60 100-4000 [window [prefetch [warmupSecs [queueName]]]]
+
+public class LoadTest {
+
+	// Open-loop load test: sources send at a target rate, whatever the message queue's latency, while sinks read, and
+	// the latencies are reported as percentiles.
+	//
+	// Each source is given the times it should send each message (evenly spaced at its share of the rate) and stamps
+	// the intended time into the message.  If it falls behind, because the message queue is slow to ack or the
+	// source's window is full, it sends the messages it should already have sent as fast as it can to catch up, and
+	// each is still measured from when it should have been sent.  Otherwise a stall would delay (and so leave out of
+	// the measurements) all the messages that would have been sent during it, and only the one stalled message would
+	// show the stall: "coordinated omission".  The latency from when the message was actually sent is reported too,
+	// so the difference shows how much waiting the corrected figures include.
+	//
+	// Message sizes are fixed ("1000"), uniform between 2 sizes ("100-4000"), or exponential with a mean ("exp1000",
+	// capped at 10 times the mean), and at least 16 bytes, for the 2 time stamps.  Sources and sinks run in this JVM,
+	// so the stamps are System.nanoTime().  With 0 sinks, only source ack latency is measured; a message queue with a
+	// backlog or another sink will do.  More than 1 sink needs a message queue with partitions or competingConsumers.
+
+	static final int REPORT_EVERY_SECS = 5 ;
+	static final int DRAIN_SECS = 30 ;		// how long sinks have to receive everything sent once sending stops
+
+	final MessageQueueMetrics.Histogram ackLatency = new MessageQueueMetrics.Histogram() ;		// from intended send
+	final MessageQueueMetrics.Histogram endToEnd = new MessageQueueMetrics.Histogram() ;			// from intended send to a sink
+	final MessageQueueMetrics.Histogram endToEndUncorrected = new MessageQueueMetrics.Histogram() ;	// from actual send to a sink
+	final LongAdder sent = new LongAdder() ;
+	final LongAdder bytesMeasured = new LongAdder() ;		// sent after the warm up
+	final LongAdder received = new LongAdder() ;
+	final LongAdder replays = new LongAdder() ;
+	final AtomicLong maxBehind = new AtomicLong() ;		// furthest any source fell behind its schedule, in nanosecs
+	volatile long measureFrom ;						// messages intended to be sent before this are warm up, and not measured
+	volatile boolean stop = false ;
+
+	final String serverAddr ;
+	final int sourcePort ;
+	final int sinkPort ;
+	final int sources ;
+	final int sinks ;
+	final int rate ;
+	final int durationSecs ;
+	final String sizes ;
+	final int window ;
+	final int prefetch ;
+	final int warmupSecs ;
+	final String queueName ;
+
+	public static void main(String args[]) throws Exception {
+
+		if ((args.length < 8) || (args.length > 12)) Usage() ;
+		LoadTest loadTest = new LoadTest(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+			Integer.parseInt(args[4]), Integer.parseInt(args[5]), Integer.parseInt(args[6]), args[7],
+			(args.length > 8) ? Integer.parseInt(args[8]) : 1, (args.length > 9) ? Integer.parseInt(args[9]) : 1,
+			(args.length > 10) ? Integer.parseInt(args[10]) : 0, (args.length > 11) ? args[11] : null) ;
+		NextSize(args[7], new Random()) ;		// check it
+		loadTest.run() ;
+		System.exit(0) ;		// sinks may still be waiting to read
+	}
+
+	LoadTest(String serverAddr, int sourcePort, int sinkPort, int sources, int sinks, int rate, int durationSecs, String sizes,
+		int window, int prefetch, int warmupSecs, String queueName) throws Exception {
+
+		if ((sources < 1) || (sinks < 0) || (rate < 1) || (durationSecs < 1) || (window < 1) || (prefetch < 1) || (warmupSecs < 0))
+			throw new Exception("sources, rate, duration, window and prefetch must be at least 1, and sinks and warmup at least 0") ;
+		this.serverAddr = serverAddr ;
+		this.sourcePort = sourcePort ;
+		this.sinkPort = sinkPort ;
+		this.sources = sources ;
+		this.sinks = sinks ;
+		this.rate = rate ;
+		this.durationSecs = durationSecs ;
+		this.sizes = sizes ;
+		this.window = window ;
+		this.prefetch = prefetch ;
+		this.warmupSecs = warmupSecs ;
+		this.queueName = queueName ;
+	}
+
+	void run() throws Exception {
+
+		System.out.println("LoadTest: " + sources + " source(s) at " + rate + " messages/sec in total for " + durationSecs +
+			"s (after " + warmupSecs + "s warm up), sizes " + sizes + ", window " + window + ", " + sinks + " sink(s), prefetch " + prefetch) ;
+		for (int i=0;i<sinks;i++) {
+			final MessageQueueReader reader = new MessageQueueReader(serverAddr, sinkPort, prefetch, queueName) ;
+			Thread sink = new Thread(new Runnable() {
+				public void run() { receive(reader) ; }
+			}, "LoadTest-sink-" + i) ;
+			sink.setDaemon(true) ;
+			sink.start() ;
+		}
+
+		long start = System.nanoTime() + 100000000L ;		// give the sources time to connect
+		measureFrom = start + warmupSecs * 1000000000L ;
+		final long end = measureFrom + durationSecs * 1000000000L ;
+		long interval = 1000000000L * sources / rate ;		// between each source's messages
+		Thread threads[] = new Thread[sources] ;
+		for (int i=0;i<sources;i++) {
+			final MessageQueueWriter writer = new MessageQueueWriter(serverAddr, sourcePort, window, queueName) ;
+			final long first = start + interval * i / sources ;		// spread the sources' schedules out
+			final long sourceInterval = interval ;
+			final int sourceNumber = i ;
+			threads[i] = new Thread(new Runnable() {
+				public void run() { send(writer, sourceNumber, first, sourceInterval, end) ; }
+			}, "LoadTest-source-" + i) ;
+			threads[i].start() ;
+		}
+
+		long measuredSent = 0 ;
+		long measuredReceived = 0 ;
+		boolean sending = true ;
+		while (sending) {
+			for (int i=0;i<REPORT_EVERY_SECS * 10;i++) {
+				Thread.sleep(100) ;
+				sending = false ;
+				for (Thread t: threads) if (t.isAlive()) sending = true ;
+				if (!sending) break ;
+			}
+			System.out.println(String.format("sent %10d  received %10d  ack p99 %8d usec  end to end p99 %8d usec  behind %6d ms",
+				sent.sum(), received.sum(), ackLatency.quantile(0.99) / 1000, endToEnd.quantile(0.99) / 1000, maxBehind.get() / 1000000)) ;
+		}
+		long sendingEnded = System.nanoTime() ;
+		long drainUntil = sendingEnded + DRAIN_SECS * 1000000000L ;
+		while ((sinks > 0) && (received.sum() < sent.sum()) && (System.nanoTime() < drainUntil)) Thread.sleep(10) ;
+
+		double measuredSecs = Math.max(1, Math.min(sendingEnded, end) - measureFrom) / 1e9 ;
+		System.out.println("\nTarget " + rate + " messages/sec, sent " + sent.sum() + " (" + ackLatency.count.sum() + " measured, " +
+			(long) (ackLatency.count.sum() / measuredSecs) + " messages/sec, " + (long) (bytesMeasured.sum() / measuredSecs / 1000000) + " MB/sec), " +
+			"received " + received.sum() + " (" + replays.sum() + " flagged as possible replays)") ;
+		System.out.println("Furthest a source fell behind its schedule: " + (maxBehind.get() / 1000000) + " ms") ;
+		System.out.println("\nLatency in usec      count        p50        p90        p99      p99.9     p99.99        max       mean") ;
+		Report("source ack", ackLatency) ;
+		if (sinks > 0) {
+			Report("end to end", endToEnd) ;
+			Report("uncorrected", endToEndUncorrected) ;
+		}
+		if ((sinks > 0) && (received.sum() < sent.sum())) System.out.println("\n" + (sent.sum() - received.sum()) + " messages were not received within " + DRAIN_SECS + "s") ;
+	}
+
+	/** A source's thread: sends a message at each of its intended times, from first, every interval, until end **/
+
+	void send(MessageQueueWriter writer, int sourceNumber, long first, long interval, long end) {
+
+		try {
+			Random random = new Random(sourceNumber) ;
+			long intended = first ;
+			while (intended < end) {
+				long now = System.nanoTime() ;
+				if (now < intended) LockSupport.parkNanos(intended - now) ;		// else we're behind, so send it now
+				else {
+					long behind = now - intended ;
+					long m = maxBehind.get() ;
+					while ((behind > m) && !maxBehind.compareAndSet(m, behind)) m = maxBehind.get() ;
+				}
+				if (System.nanoTime() < intended) continue ;		// woken early
+
+				byte contents[] = new byte[NextSize(sizes, random)] ;
+				final long intendedSend = intended ;
+				long actualSend = System.nanoTime() ;
+				ByteBuffer.wrap(contents).putLong(intendedSend).putLong(actualSend) ;
+				if (window == 1) {
+					writer.write(contents) ;
+					acked(intendedSend, System.nanoTime()) ;
+				}
+				else writer.writeAsync(contents).whenComplete(new BiConsumer<Long, Throwable>() {
+					public void accept(Long sequence, Throwable failure) {
+						if (failure == null) acked(intendedSend, System.nanoTime()) ;
+					}
+				}) ;
+				sent.increment() ;
+				if (intendedSend >= measureFrom) bytesMeasured.add(contents.length) ;
+				intended += interval ;
+			}
+			writer.close() ;		// waits for the remaining acks
+		}
+		catch (Exception e) {
+			System.err.println("Error in LoadTest source " + sourceNumber + ":" + e) ;
+			e.printStackTrace() ;
+		}
+	}
+
+	private void acked(long intendedSend, long now) {
+
+		if (intendedSend >= measureFrom) ackLatency.record(now - intendedSend) ;
+	}
+
+	/** A sink's thread: reads messages until the process ends **/
+
+	void receive(MessageQueueReader reader) {
+
+		try {
+			while (true) {
+				ReceivedMessageQueueMessage message = reader.read() ;
+				long now = System.nanoTime() ;
+				ByteBuffer stamps = ByteBuffer.wrap(message.contents) ;
+				long intendedSend = stamps.getLong() ;
+				long actualSend = stamps.getLong() ;
+				if (intendedSend >= measureFrom) {
+					endToEnd.record(now - intendedSend) ;
+					endToEndUncorrected.record(now - actualSend) ;
+				}
+				received.increment() ;
+				if (message.possiblyReplayed) replays.increment() ;
+			}
+		}
+		catch (Exception e) {
+			System.err.println("Error in LoadTest sink:" + e) ;
+		}
+	}
+
+	/** A message size from the distribution: "n", "min-max" or "expMean" **/
+
+	static int NextSize(String sizes, Random random) {
+
+		int size ;
+		if (sizes.startsWith("exp")) {
+			int mean = Integer.parseInt(sizes.substring(3)) ;
+			size = (int) Math.min(10.0 * mean, -mean * Math.log(1.0 - random.nextDouble())) ;
+		}
+		else {
+			int dash = sizes.indexOf('-') ;
+			if (dash < 0) size = Integer.parseInt(sizes) ;
+			else {
+				int min = Integer.parseInt(sizes.substring(0, dash)) ;
+				int max = Integer.parseInt(sizes.substring(dash + 1)) ;
+				size = min + random.nextInt(Math.max(1, max - min + 1)) ;
+			}
+		}
+		return Math.max(16, size) ;
+	}
+
+	static void Report(String name, MessageQueueMetrics.Histogram h) {
+
+		long count = h.count.sum() ;
+		System.out.println(String.format("%-14s %10d %10d %10d %10d %10d %10d %10d %10d", name, count,
+			h.quantile(0.5) / 1000, h.quantile(0.9) / 1000, h.quantile(0.99) / 1000, h.quantile(0.999) / 1000,
+			h.quantile(0.9999) / 1000, h.max.get() / 1000, (count == 0) ? 0 : h.sum.sum() / count / 1000)) ;
+	}
+
+	static void Usage() {
+
+		System.out.println("LoadTest command line parms are:\n" +
+			"Message queue server ip address\n" +
+			"Message queue server source port\n" +
+			"Message queue server sink port\n" +
+			"Number of concurrent sources\n" +
+			"Number of concurrent sinks (0 for none; more than 1 needs partitions or competingConsumers)\n" +
+			"Target messages/sec from all the sources together\n" +
+			"Seconds to send for, after the warm up\n" +
+			"Message sizes in bytes: n, min-max (uniform) or expMean (exponential), at least 16\n" +
+			"Optional MessageQueueWriter window (default 1, ie wait for each ack)\n" +
+			"Optional MessageQueueReader prefetch (default 1)\n" +
+			"Optional seconds of warm up, not measured (default 0)\n" +
+			"Optional queue name (default the default queue)\n" +
+			"eg java projectComputing.MessageQueue.LoadTest 127.0.0.1 6211 6212 8 1 20000 60 100-4000 100 1000 10") ;
+			System.exit(-1) ;
+	}
+}
@@ -6,6 +6,7 @@ import java.net.*;
 import java.nio.* ;
 
 // java -classpath . projectComputing.MessageQueue.LoadTestSink 127.0.0.1 6212 sinkFile
+// java -classpath . projectComputing.MessageQueue.LoadTestSink 127.0.0.1 6212 sinkFile 1000
 
 public class LoadTestSink {
 
@@ -13,13 +14,14 @@ public class LoadTestSink {
 	
 	public static void main(String args[]) throws Exception {
 
-		if (args.length != 3) Usage() ;
+		if ((args.length != 3) && (args.length != 4)) Usage() ;
 		
 		String serverAddr = args[0] ;
 		int sinkPort = Integer.parseInt(args[1]) ;
 		String outputFile = args[2] ; 
+		int prefetch = (args.length == 4) ? Integer.parseInt(args[3]) : 1 ;
 
-		MessageQueueReader mqReader = new MessageQueueReader(serverAddr, sinkPort) ;
+		MessageQueueReader mqReader = new MessageQueueReader(serverAddr, sinkPort, prefetch) ;
 
 		System.out.println("connected to " + mqReader.toString()) ;
 
@@ -48,7 +50,8 @@ public class LoadTestSink {
 			"Message queue server ip address\n" +
 			"Message queue server sink port\n" +
 			"File to receive messages\n" +
-			"eg java projectcomputing.MessageQueue.LoadTestSink 127.0.0.1 6212 sinkFile") ;
+			"Optionally, number of messages to prefetch (default 1, wait for each ack)\n" +
+			"eg java projectcomputing.MessageQueue.LoadTestSink 127.0.0.1 6212 sinkFile 1000") ;
 			System.exit(-1) ;
 	}
 }
@@ -3,18 +3,30 @@ package projectComputing.MessageQueue ;
 import java.io.*;
 import java.net.*;
 import java.nio.* ;
+import java.util.concurrent.atomic.* ;
 
-// java -classpath . projectComputing.MessageQueue.LoadTestSource 127.0.0.1 6211 0 y 4000 1000000
+// java -classpath . projectComputing.MessageQueue.LoadTestSource 127.0.0.1 6211 0 y 4000 1000000 [sources [window]]
 
-public class LoadTestSource {
+public class LoadTestSource implements Runnable {
 
 	// load-test source that generates messages of a frequency and type determined by command line parms.  
+	// Optionally runs several sources at once, each with its own connection, to show how throughput scales with source count.
 	// ctrl-c to quit
 
+	static final AtomicLong totalSent = new AtomicLong() ;
+
+	final String serverAddr ;
+	final int serverPort ;
+	final int sleep ;
+	final boolean generateId ;
+	final int messageSize ;
+	final int limit ;
+	final int window ;
+	final int sourceNumber ;
 	
 	public static void main(String args[]) throws Exception {
 
-		if (args.length != 6) Usage() ;
+		if ((args.length < 6) || (args.length > 8)) Usage() ;
 		
 		String serverAddr = args[0] ;
 		int serverPort = Integer.parseInt(args[1]) ;
@@ -22,11 +34,53 @@ public class LoadTestSource {
 		boolean generateId = "y".equals(args[3]) ;
 		int messageSize = Integer.parseInt(args[4]) ;
 		int limit = Integer.parseInt(args[5]) ;
+		int sources = (args.length > 6) ? Integer.parseInt(args[6]) : 1 ;
+		int window = (args.length > 7) ? Integer.parseInt(args[7]) : 1 ;
+
+		System.out.println("Starting " + sources + " source(s), window " + window + ". A line every 1000 messages. Ctrl-c to quit") ;
+
+		long start = System.currentTimeMillis() ;
+		Thread threads[] = new Thread[sources] ;
+		for (int i=0;i<sources;i++) {
+			threads[i] = new Thread(new LoadTestSource(serverAddr, serverPort, sleep, generateId, messageSize, limit, window, i)) ;
+			threads[i].start() ;
+		}
+		for (Thread t: threads) t.join() ;
+		long elapsed = Math.max(1, System.currentTimeMillis() - start) ;
+
+		long sent = totalSent.get() ;
+		System.out.println("Sent " + sent + " messages from " + sources + " source(s) in " + elapsed + "ms: " + 
+			(sent * 1000 / elapsed) + " messages/sec, " + (sent * messageSize * 1000 / elapsed / 1000000) + " MB/sec") ;
+	}
+
+	LoadTestSource(String serverAddr, int serverPort, int sleep, boolean generateId, int messageSize, int limit, int window, int sourceNumber) {
+
+		this.serverAddr = serverAddr ;
+		this.serverPort = serverPort ;
+		this.sleep = sleep ;
+		this.generateId = generateId ;
+		this.messageSize = messageSize ;
+		this.limit = limit ;
+		this.window = window ;
+		this.sourceNumber = sourceNumber ;
+	}
+
+	public void run() {
+
+		try {
+			send() ;
+		}
+		catch (Exception e) {
+			System.err.println("Error in LoadTestSource " + sourceNumber + ":" + e) ;
+			e.printStackTrace() ;
+		}
+	}
 
-		MessageQueueWriter mqWriter = new MessageQueueWriter(serverAddr, serverPort) ;
+	void send() throws Exception {
+
+		MessageQueueWriter mqWriter = new MessageQueueWriter(serverAddr, serverPort, window) ;
 
 		System.out.println(mqWriter.toString()) ;
-		System.out.println("Each message sent is a dot, 100 per line. Ctrl-c to quit") ;
 		
 		long c = 0 ;
 		byte contents[] = new byte[messageSize] ;
@@ -36,18 +90,18 @@ public class LoadTestSource {
 
 		while (true) {
 			c++ ;
-			id.putLong(0, c) ;
-			id.putLong(8, c) ;
 
 			if (generateId) {
-				id.putLong(0, c) ;
+				id.putLong(0, sourceNumber) ;
 				id.putLong(8, c) ;
-				mqWriter.write(idBytes, contents) ;
+				if (window > 1) mqWriter.writeAsync(idBytes, contents) ;
+				else mqWriter.write(idBytes, contents) ;
 			}
+			else if (window > 1) mqWriter.writeAsync(contents) ;
 			else mqWriter.write(contents) ;
 
-
-			if ((c % 1000) == 0) System.out.println(". " + c) ;
+			long total = totalSent.incrementAndGet() ;
+			if ((total % 1000) == 0) System.out.println(". " + total) ;
 			//else System.out.print(".") ;
 
 			if (sleep > 0) {
@@ -58,8 +112,8 @@ public class LoadTestSource {
 			}
 			if (c == limit) break ;
 		}
-		System.out.println("Sent " + c + " messages") ;
-		mqWriter.close() ;
+		mqWriter.close() ;		// in pipelined mode, waits for the remaining acks
+		System.out.println("Source " + sourceNumber + " sent " + c + " messages") ;
 		System.out.println(mqWriter.toString()) ;
 	}
 
@@ -73,8 +127,10 @@ public class LoadTestSource {
 			"Interval between message generation in millsec (0 means no interval)\n" +
 			"Message id generated flag: y means we generate an id\n" +
 			"Message contents size in bytes\n" +
-		    "Message count (to send)\n" +
-			"eg java projectcomputing.MessageQueue.LoadTestSource 127.0.0.1 6211 0 y 4000 1000000") ;
+		    "Message count (to send, per source)\n" +
+			"Optional number of concurrent sources (default 1)\n" +
+			"Optional MessageQueueWriter window (default 1, ie wait for each ack)\n" +
+			"eg java projectcomputing.MessageQueue.LoadTestSource 127.0.0.1 6211 0 y 4000 1000000 8") ;
 			System.exit(-1) ;
 	}
 }		
@@ -0,0 +1,123 @@
+package projectComputing.MessageQueue ;
+
+import java.io.*;
+import java.lang.management.* ;
+import java.util.* ;
+import javax.management.* ;
+import javax.management.openmbean.* ;
+import com.sun.management.GarbageCollectionNotificationInfo ;
+
+// java -Xmx4g -classpath . projectComputing.MessageQueue.MemoryBenchmark heap benchDirectory 7211 1500 1000
+// java -Xmx4g -classpath . projectComputing.MessageQueue.MemoryBenchmark offheap benchDirectory 7211 1500 1000
+
+public class MemoryBenchmark {
+
+	// Fills the in-memory queue of a message queue running in this JVM with the given number of megabytes of messages
+	// (no sink is connected while filling, so they all stay in memory), then drains it with a sink.  Reports the
+	// number, total and longest of the garbage collections while filling and draining, and the heap, direct memory and
+	// (on Linux) resident set size of the process when the queue is full.
+	// Run it with "heap" and with "offheap" (offHeapMemoryQueue) in separate JVMs, with the same -Xmx, to compare them.
+
+	static int gcCount = 0 ;
+	static long gcMillis = 0 ;
+	static long gcMaxMillis = 0 ;
+
+	public static void main(String args[]) throws Exception {
+
+		if (args.length != 5) Usage() ;
+		String mode = args[0] ;
+		if (!"heap".equals(mode) && !"offheap".equals(mode)) Usage() ;
+		String directory = args[1] ;
+		int port = Integer.parseInt(args[2]) ;
+		long megabytes = Long.parseLong(args[3]) ;
+		int messageSize = Integer.parseInt(args[4]) ;
+
+		MessageQueue.DEBUG = false ;
+		MessageQueue mq = new MessageQueue() ;
+		mq.portUsedBySources = port ;
+		mq.portUsedBySink = port + 1 ;
+		mq.messageQueueDirectoryName = new File(directory, mode + "-" + System.currentTimeMillis()).getPath() ;
+		mq.maxMemoryQueueSize = Integer.MAX_VALUE ;		// keep everything in memory
+		mq.offHeapMemoryQueue = "offheap".equals(mode) ;
+		mq.begin() ;
+		Thread.sleep(500) ;		// let the listeners start
+		WatchGc() ;
+
+		long count = megabytes * 1000000L / messageSize ;
+		byte contents[] = new byte[messageSize] ;
+		Arrays.fill(contents, (byte) 'Z') ;
+		long start = System.nanoTime() ;
+		MessageQueueWriter mqWriter = new MessageQueueWriter("127.0.0.1", mq.portUsedBySources, 1000) ;
+		for (long i=0;i<count;i++) mqWriter.writeAsync(contents) ;
+		mqWriter.close() ;		// waits for everything to be acked
+		long filled = System.nanoTime() ;
+		Report(mode + ": filled with " + count + " messages in " + (filled - start) / 1000000 + "ms") ;
+
+		System.gc() ;			// so heap used is what the queue is holding (not counted in the gc figures)
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage() ;
+		long direct = 0 ;
+		for (BufferPoolMXBean pool: ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+			if ("direct".equals(pool.getName())) direct = pool.getMemoryUsed() ;
+		System.out.println(mode + ": queue full, messageQueueSize " + mq.messageQueueSize / 1000000 + "MB, heap used " + heap.getUsed() / 1000000 +
+			"MB, direct " + direct / 1000000 + "MB, RSS " + ResidentSetSize()) ;
+
+		MessageQueueReader mqReader = new MessageQueueReader("127.0.0.1", mq.portUsedBySink, 1000) ;
+		long drainStart = System.nanoTime() ;
+		for (long i=0;i<count;i++) mqReader.read() ;
+		Report(mode + ": drained in " + (System.nanoTime() - drainStart) / 1000000 + "ms") ;
+		System.exit(0) ;		// the message queue's threads would otherwise keep running
+	}
+
+	static void WatchGc() {
+
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			((NotificationEmitter) gc).addNotificationListener(new NotificationListener() {
+				public void handleNotification(Notification notification, Object handback) {
+					if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) return ;
+					GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()) ;
+					if ("System.gc()".equals(info.getGcCause())) return ;
+					long millis = info.getGcInfo().getDuration() ;
+					synchronized (MemoryBenchmark.class) {
+						gcCount++ ;
+						gcMillis += millis ;
+						gcMaxMillis = Math.max(gcMaxMillis, millis) ;
+					}
+				}
+			}, null, null) ;
+		}
+	}
+
+	static synchronized void Report(String phase) {
+
+		System.out.println(phase + ", since start: gc count " + gcCount + ", total " + gcMillis + "ms, longest " + gcMaxMillis + "ms") ;
+	}
+
+	static String ResidentSetSize() {		// from /proc, so Linux only
+
+		try {
+			BufferedReader r = new BufferedReader(new FileReader("/proc/self/status")) ;
+			try {
+				String line ;
+				while ((line = r.readLine()) != null)
+					if (line.startsWith("VmRSS:")) return line.substring(6).trim() ;
+			}
+			finally {
+				r.close() ;
+			}
+		}
+		catch (Exception e) { }
+		return "unknown" ;
+	}
+
+	static void Usage() {
+
+		System.out.println("MemoryBenchmark command line parms are:\n" +
+			"heap or offheap\n" +
+			"Directory to hold the message queue directory\n" +
+			"First of 2 ports to use\n" +
+			"Megabytes of messages to fill the memory queue with\n" +
+			"Message contents size in bytes\n" +
+			"eg java -Xmx4g projectcomputing.MessageQueue.MemoryBenchmark offheap benchDirectory 7211 1500 1000") ;
+			System.exit(-1) ;
+	}
+}
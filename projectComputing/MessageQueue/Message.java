@@ -0,0 +1,119 @@
+package projectComputing.MessageQueue ;
+
+/**
+  Message - an internal representation of a message whilst it is on the in-memory message-queue.
+  2012 John Evershed, Kent Fitch, www.projectcomputing.com
+**/
+
+import java.io.*;
+import java.nio.* ;
+import java.nio.channels.* ;
+
+class Message {
+
+	static final byte[] OUR_ID_BASE = ByteBuffer.allocate(8).putLong(System.currentTimeMillis()).array() ;
+	static long seq ;
+
+	final byte[] id ;					// null if the id is in the arena
+	final byte[] contents ;				// null if contents are in contentsBuffer or contentsChannel
+	final ByteBuffer contentsBuffer ;	// a slice of a mapped file, when contents were read that way, or a chunk of the arena
+	final MessageQueueArena arena ;		// when the id and contents are in the arena, at contentsPosition in contentsBuffer
+	final FileChannel contentsChannel ;	// or the file the contents are in, at contentsPosition, when to be transferred from there
+	final long contentsPosition ;
+	final int contentsLength ;
+	boolean possibleReplay ;			// set when a message whose lease expired is to be sent again
+
+	File messageIsLastInThisFile ;
+	long sentNanos ;				// when last sent to a sink, for the sink ack latency
+
+	MessageQueueBlock block ;		// with compression, the block this message was written in..
+	int blockIndex ;				// ..and its index in it
+
+	// with competing consumers, guarded by the message queue lock
+
+	MessageQueue.Lease lease ;		// while sent to a sink and not yet acked or expired
+	boolean sent ;					// has been put on sentToSink
+	boolean acked ;
+
+	Message(byte[] id, byte[] contents, boolean possibleReplay) {
+
+		this.id = id ;
+		this.contents = contents ;
+		this.contentsBuffer = null ;
+		this.contentsChannel = null ;
+		this.contentsPosition = 0 ;
+		this.contentsLength = contents.length ;
+		this.possibleReplay = possibleReplay ;
+		this.arena = null ;
+	}
+
+	Message(byte[] id, ByteBuffer contentsBuffer, boolean possibleReplay) {
+
+		this.id = id ;
+		this.contents = null ;
+		this.contentsBuffer = contentsBuffer ;
+		this.contentsChannel = null ;
+		this.contentsPosition = 0 ;
+		this.contentsLength = contentsBuffer.remaining() ;
+		this.possibleReplay = possibleReplay ;
+		this.arena = null ;
+	}
+
+	Message(MessageQueueArena arena, ByteBuffer chunk, int contentsPosition, int contentsLength, boolean possibleReplay) {
+
+		this.id = null ;
+		this.contents = null ;
+		this.contentsBuffer = chunk ;
+		this.contentsChannel = null ;
+		this.contentsPosition = contentsPosition ;
+		this.contentsLength = contentsLength ;
+		this.possibleReplay = possibleReplay ;
+		this.arena = arena ;
+	}
+
+	Message(byte[] id, FileChannel contentsChannel, long contentsPosition, int contentsLength, boolean possibleReplay) {
+
+		this.id = id ;
+		this.contents = null ;
+		this.contentsBuffer = null ;
+		this.contentsChannel = contentsChannel ;
+		this.contentsPosition = contentsPosition ;
+		this.contentsLength = contentsLength ;
+		this.possibleReplay = possibleReplay ;
+		this.arena = null ;
+	}
+
+	Message(byte[] contents) {	// need to generate our own id
+
+		this.id = genId() ;
+		this.contents = contents ;
+		this.contentsBuffer = null ;
+		this.contentsChannel = null ;
+		this.contentsPosition = 0 ;
+		this.contentsLength = contents.length ;
+		this.possibleReplay = false ;
+		this.arena = null ;
+	}
+
+	static synchronized long incId() {
+
+		return ++seq ;
+	}
+
+	byte[] genId() {		// OUR_ID_BASE then the next sequence number (big-endian)
+
+		byte[] id = new byte[16] ;
+		System.arraycopy(OUR_ID_BASE, 0, id, 0, 8) ;
+		long ourSeq = incId() ;
+		for (int i=15;i>=8;i--) {
+			id[i] = (byte) ourSeq ;
+			ourSeq >>>= 8 ;
+		}
+		return id ;
+	}
+
+	void setAsLastInFile(File f) {
+
+		messageIsLastInThisFile = f ;
+	}
+}
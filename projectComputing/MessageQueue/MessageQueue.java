@@ -9,21 +9,79 @@ package projectComputing.MessageQueue ;
 **/
 
 import java.io.*;
-import java.math.*;
+import java.lang.reflect.* ;
 import java.net.*;
 import java.nio.* ;
+import java.nio.channels.* ;
+import java.nio.file.* ;
 import java.util.*;
+import java.util.concurrent.atomic.* ;
+import java.util.zip.* ;
 
 public class MessageQueue {
 
 	static final int DEFAULT_PORT_USED_BY_SOURCES = 6211 ;
 	static final int DEFAULT_PORT_USED_BY_SINK = 6212 ;
+	static final int DEFAULT_PORT_USED_FOR_METRICS = 0 ;		// no metrics endpoint
 	static final int DEFAULT_MAX_MEMORY_QUEUE_SIZE = 64 * 1000000 ;	// 64MB
 	static final int DEFAULT_DISK_FILE_SIZE_DIVISOR = 4 ;
 
 	static final String DEFAULT_DIRECTORY_NAME = "messageStore" ;
 
 	static final int APPROX_PER_MESSAGE_MEMORY_OVERHEAD = 200 ; 	// approx java object overhead..
+	static final int ARENA_MESSAGE_HEAP_SIZE = 56 ;				// ..or the heap used by a Message whose id and contents are in the arena (its fields, with compressed oops)
+
+	static final int DEFAULT_GROUP_COMMIT_MAX_BATCH = 1000 ;
+	static final int DEFAULT_GROUP_COMMIT_LINGER_MILLIS = 0 ;
+	static final int DEFAULT_RING_BUFFER_SIZE = 16384 ;
+	static final String DEFAULT_WAIT_STRATEGY = MessageQueueRingBuffer.WAIT_PARK ;
+
+	static final String DURABILITY_NONE = "none" ;			// flush to the OS only: lost if the machine (but not the JVM) crashes
+	static final String DURABILITY_INTERVAL = "interval" ;	// sync every syncEveryMessages messages or syncIntervalMillis millisecs
+	static final String DURABILITY_ALWAYS = "always" ;		// sync every batch before its messages are acked
+	static final String DEFAULT_DURABILITY = DURABILITY_NONE ;
+	static final int DEFAULT_SYNC_EVERY_MESSAGES = 1000 ;
+	static final int DEFAULT_SYNC_INTERVAL_MILLIS = 100 ;
+	static final boolean DEFAULT_MAP_FILES_FOR_READING = false ;
+	static final boolean DEFAULT_TRANSFER_FILES_TO_SINK = false ;
+	static final boolean DEFAULT_PREFETCH_BACKLOG = false ;
+	static final int DEFAULT_BACKLOG_READ_AHEAD_MESSAGES = 10000 ;
+	static final int DEFAULT_BACKLOG_READ_AHEAD_BYTES = DEFAULT_MAX_MEMORY_QUEUE_SIZE / DEFAULT_DISK_FILE_SIZE_DIVISOR ;
+	static final boolean DEFAULT_OFF_HEAP_MEMORY_QUEUE = false ;
+	static final int DEFAULT_OFF_HEAP_CHUNK_SIZE = 4 * 1000000 ;	// 4MB
+
+	static final String ENGINE_THREAD = "thread" ;		// a platform thread per source connection
+	static final String ENGINE_VIRTUAL = "virtual" ;	// a virtual thread per source connection (needs java 21)
+	static final String ENGINE_NIO = "nio" ;			// a few Selector event loops shared by all source connections
+	static final String DEFAULT_SOURCE_CONNECTION_ENGINE = ENGINE_THREAD ;
+	static final int DEFAULT_SOURCE_EVENT_LOOPS = Runtime.getRuntime().availableProcessors() ;
+
+	static final String QUEUES_DIRECTORY_NAME = "queues" ;	// named queues each have a directory in here, in messageQueueDirectory
+	static final int MAX_QUEUE_NAME_LENGTH = 100 ;
+	static final String PARTITIONS_DIRECTORY_NAME = "partitions" ;	// partitions after the first each have a directory in here, in their queue's directory
+	static final String PARTITION_BY_ID = "id" ;					// route messages to partitions by a hash of their id..
+	static final String PARTITION_BY_ROUND_ROBIN = "roundrobin" ;	// ..or to each partition in turn
+	static final int DEFAULT_PARTITIONS = 1 ;
+	static final String DEFAULT_PARTITION_BY = PARTITION_BY_ID ;
+	static final boolean DEFAULT_COMPETING_CONSUMERS = false ;
+	static final int DEFAULT_LEASE_MILLIS = 30000 ;
+	static final int DEFAULT_CHECKPOINT_EVERY_MESSAGES = 1000 ;
+	static final int DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 1000 ;
+	static final int DEFAULT_SPARE_SEGMENTS = 2 ;
+	static final String COMPRESSION_NONE = "none" ;
+	static final String COMPRESSION_DEFLATE = "deflate" ;		// java.util.zip, so no extra libraries are needed
+	static final String DEFAULT_COMPRESSION = COMPRESSION_NONE ;
+	static final long DEFAULT_DISK_HIGH_WATERMARK = 0 ;		// no limit
+	static final long DEFAULT_DISK_LOW_WATERMARK = 0 ;		// 3/4 of the high watermark
+	static final int DEFAULT_MEMORY_HIGH_WATERMARK = 0 ;
+	static final int DEFAULT_MEMORY_LOW_WATERMARK = 0 ;
+	static final String DEFAULT_STANDBY_ADDRESS = null ;			// not replicated
+	static final int DEFAULT_PORT_USED_FOR_REPLICATION = 0 ;		// not a standby
+	static final String REPLICATION_ASYNC = "async" ;		// ack sources when their messages are committed here, replicating them after
+	static final String REPLICATION_SYNC = "sync" ;			// ack sources when the standby has committed their messages too
+	static final String DEFAULT_REPLICATION_ACKS = REPLICATION_ASYNC ;
+	static final int DEFAULT_FAILOVER_MILLIS = 3000 ;
+	static final int DEFAULT_SINK_HELLO_WAIT_MILLIS = 100 ;
 
 	static final int MINIMUM_RECORDS_PER_FILE = 100 ;	// dont close/delete current file when last message is taken unless we've written this number of records to the file.  A small number reduces replay-on-startup, but increases overheads.  Overrideable by system property -DminimumRecordsPerFile
 
@@ -34,6 +92,10 @@ public class MessageQueue {
 	/** Message sink connects to this port.  Overrideable by system property -DmessageQueueSinkPort **/
 	public int portUsedBySink ;
 
+	/** TCP/IP port on the loopback interface serving counters and latency histograms over HTTP, at /metrics (see
+	    MessageQueueMetrics).  0 doesn't serve them.  Overrideable by system property -DmessageQueueMetricsPort **/
+	public int portUsedForMetrics ;
+
 	/** Very approximate max size in bytes of in memory message queue.  Overrideable by system property -DmaxMemoryQueueSize **/
 	public int maxMemoryQueueSize ;
 
@@ -42,24 +104,189 @@ public class MessageQueue {
 
 	/** Number to divide into maxMemoryQueueSize to give approx max disk file size; eg, 4 makes disk file 1 quarter the size. 
 	    Overrideable by system property -DdiskFileSizeDivisor.
-		Note:- bad things will happen if the (in-memory) message queue size is reduced below the file message size between
-		runs if there are files persisted on disk - they wont fit in the allocated memory, so the allocated memory
-		limit will be ignored.
+		Files are read back a few messages at a time, so the memory used doesn't depend on the file size, but smaller
+		files mean fewer messages may be replayed to the sink after a restart.
     **/
 	public int diskFileSizeDivisor ;
 
 	/** Directory used for persisting messages.  Overrideable by system property -DmessageQueueDirectory **/
 	public String messageQueueDirectoryName ;
 
+	/** Max number of messages from sources committed to disk together (with a single write and flush).  Overrideable by system property -DgroupCommitMaxBatch **/
+	public int groupCommitMaxBatch ;
+
+	/** Millisecs the committer waits for more messages to join a batch before committing it.  0 commits whatever has arrived
+	    as soon as the previous batch is done, which adds no latency but still batches when sources are busy.
+	    Overrideable by system property -DgroupCommitLingerMillis **/
+	public int groupCommitLingerMillis ;
+
+	/** Number of messages from sources that can be waiting to be committed (a power of 2).  Overrideable by system property -DringBufferSize **/
+	public int ringBufferSize ;
+
+	/** How the committer waits for messages from sources: "spin", "yield" or "park" (see MessageQueueRingBuffer).  Overrideable by system property -DwaitStrategy **/
+	public String waitStrategy ;
+
+	/** When persisted messages are synced to the disk device (with FileChannel.force(false), ie fdatasync): "none" leaves them
+	    in the OS buffers, "interval" syncs every syncEveryMessages messages or syncIntervalMillis millisecs, whichever comes first,
+	    and "always" syncs each group commit batch before acking its messages.  Overrideable by system property -Ddurability **/
+	public String durability ;
+
+	/** In "interval" durability, sync after this many messages.  Overrideable by system property -DsyncEveryMessages **/
+	public int syncEveryMessages ;
+
+	/** In "interval" durability, sync at least this often (if anything is unsynced).  Overrideable by system property -DsyncIntervalMillis **/
+	public int syncIntervalMillis ;
+
+	/** Read persisted files (on restart, or when catching up on a backlog) by memory mapping them.  Messages read this way
+	    are sent to the sink straight from the mapped file, rather than being copied into a byte[] on the java heap.
+	    Overrideable by system property -DmapFilesForReading **/
+	public boolean mapFilesForReading ;
+
+	/** When reading persisted files, dont read message contents into memory at all: send them from the file to the sink's socket
+	    with FileChannel.transferTo (sendfile).  Takes precedence over mapFilesForReading.  Overrideable by system property -DtransferFilesToSink **/
+	public boolean transferFilesToSink ;
+
+	/** When reading a backlog of persisted files, read ahead at most this many messages into memory.  Overrideable by system property -DbacklogReadAheadMessages **/
+	public int backlogReadAheadMessages ;
+
+	/** ..and at most (very approximately) this many bytes, limited to maxMemoryQueueSize.  Overrideable by system property -DbacklogReadAheadBytes **/
+	public int backlogReadAheadBytes ;
+
+	/** Read a backlog of persisted files into memory on a thread of its own for each queue (see MessageQueuePrefetcher),
+	    rather than on the sink's thread while holding the queue's lock.  Overrideable by system property -DprefetchBacklog **/
+	public boolean prefetchBacklog ;
+
+	/** Keep the ids and contents of messages in the in-memory queue off the java heap, in direct ByteBuffers (see MessageQueueArena),
+	    so a big memory queue doesn't make for long garbage collections.  maxMemoryQueueSize then counts the bytes actually
+	    used.  Overrideable by system property -DoffHeapMemoryQueue **/
+	public boolean offHeapMemoryQueue ;
+
+	/** Size in bytes of each direct ByteBuffer allocated for the off heap memory queue.  Overrideable by system property -DoffHeapChunkSize **/
+	public int offHeapChunkSize ;
+
+	/** How source connections are handled: "thread" (a thread each), "virtual" (a virtual thread each, falling back to
+	    "thread" before java 21) or "nio" (sourceEventLoops Selector threads share them all, see MessageQueueSourceEventLoop).
+	    Overrideable by system property -DsourceConnectionEngine **/
+	public String sourceConnectionEngine ;
+
+	/** With the "nio" engine, the number of event loop threads.  Overrideable by system property -DsourceEventLoops **/
+	public int sourceEventLoops ;
+
+	/** Number of partitions of each queue.  Each partition has its own files and in-memory queue, and its own sink, so
+	    that many sinks can take a queue's messages in parallel.  Messages stay in order within a partition.
+	    Overrideable by system property -Dpartitions **/
+	public int partitions ;
+
+	/** How messages are routed to partitions: "id" (by a hash of the message id, so messages with the same id go to the
+	    same partition) or "roundrobin".  Overrideable by system property -DpartitionBy **/
+	public String partitionBy ;
+
+	/** Let any number of sinks take messages from a queue (or partition) at once.  Each message sent to a sink is leased
+	    to it for leaseMillis, and the sink may ack it out of order; if it isn't acked in time, it is sent again (to any
+	    sink), flagged as a possible replay.  Overrideable by system property -DcompetingConsumers **/
+	public boolean competingConsumers ;
+
+	/** With competingConsumers, how long a sink has to ack a message before it is sent again.  Overrideable by system property -DleaseMillis **/
+	public int leaseMillis ;
+
+	/** Write the position the sink has acked up to (see MessageQueueCheckpoint) after this many acks, so at most this many
+	    acked messages are sent to the sink again after a restart.  Overrideable by system property -DcheckpointEveryMessages **/
+	public int checkpointEveryMessages ;
+
+	/** ..or when an ack arrives at least this many millisecs after the position was last written.  Overrideable by system property -DcheckpointIntervalMillis **/
+	public int checkpointIntervalMillis ;
+
+	/** Number of files whose messages have all been acked kept (as SPARE-* files) to be written over by new files, rather
+	    than deleted, so new files dont have to be created and extended.  0 deletes them.  Overrideable by system property -DspareSegments **/
+	public int spareSegments ;
+
+	/** "deflate" writes each batch of messages to disk compressed, in blocks (see MessageQueueBlock), which a sink that asks
+	    for compression is sent as they are.  "none" writes each message as it is.  Files written either way can be read.
+	    Overrideable by system property -Dcompression **/
+	public String compression ;
+
+	/** When the message queue files of all the queues together reach this many bytes, stop accepting messages from sources
+	    until they are back below diskLowWatermark (see "Backpressure" in the README).  0 is no limit.  Overrideable by
+	    system property -DdiskHighWatermark **/
+	public long diskHighWatermark ;
+
+	/** Bytes of files below which sources paused by diskHighWatermark are resumed.  0 is 3/4 of diskHighWatermark.
+	    Overrideable by system property -DdiskLowWatermark **/
+	public long diskLowWatermark ;
+
+	/** When the in-memory queues of all the queues together reach this many bytes (very approximately, as for maxMemoryQueueSize),
+	    stop accepting messages from sources until they are back below memoryLowWatermark.  0 is no limit, and it is at most
+	    maxMemoryQueueSize.  Overrideable by system property -DmemoryHighWatermark **/
+	public int memoryHighWatermark ;
+
+	/** Bytes in memory below which sources paused by memoryHighWatermark are resumed.  0 is 3/4 of memoryHighWatermark.
+	    Overrideable by system property -DmemoryLowWatermark **/
+	public int memoryLowWatermark ;
+
+	/** host:port of a standby message queue to replicate every commit and sink ack to (see MessageQueueReplicator), which
+	    takes over if we fail.  null doesn't replicate.  Overrideable by system property -DstandbyAddress **/
+	public String standbyAddress ;
+
+	/** When not 0, we are a standby: rather than listening for sources and sinks, we accept a primary's replication
+	    stream on this port, and only listen for sources and sinks once it has gone (see MessageQueueStandby).
+	    Overrideable by system property -DmessageQueueReplicationPort **/
+	public int portUsedForReplication ;
+
+	/** When a source's messages are acked, with standbyAddress: "async" (when committed here, and sent to the standby
+	    after) or "sync" (when the standby has committed them too, so a failover loses none).  If the standby goes,
+	    replication stops, and "sync" acks as "async".  Overrideable by system property -DreplicationAcks **/
+	public String replicationAcks ;
+
+	/** A standby takes over when it hasn't heard from its primary for this many millisecs (the primary sends a
+	    heartbeat when it has nothing else to send).  Set it the same on both.  Overrideable by system property -DfailoverMillis **/
+	public int failoverMillis ;
+
+	/** How long to wait for a sink to send anything when it connects, before taking it for a sink from before sinks sent
+	    a hello, which waits for its first message from the default queue.  A sink sending a hello isn't kept waiting.  0
+	    waits for every sink's hello, however long it takes, when no sink is that old.  Overrideable by system property -DsinkHelloWaitMillis **/
+	public int sinkHelloWaitMillis ;
+
+	final MessageQueue root ;		// the default queue, which has the listeners and the committer shared by all queues
+	final String name ;				// null for the default queue
+	final HashMap<String, MessageQueue> queues ;	// the root's named queues, by name
+	final AtomicLong memoryUsed ;	// approx size of the in-memory queues of all queues, shared with the root
+	final AtomicLong diskUsed ;		// bytes in the message queue files of all queues, shared with the root
+	final HashMap<String, Long> fileBytes = new HashMap<String, Long>() ;	// bytes in each of this queue's files, counted in diskUsed
+	volatile boolean busy = false ;	// root only: a watermark has been reached, so sources are paused
+	final Object notBusy = new Object() ;	// root only: paused sources wait on this
+	volatile MessageQueueSourceEventLoop eventLoops[] ;	// root only: with the "nio" engine, told when sources resume
+	final int partition ;			// 0 for a queue (which is also its first partition), else the partition number
+	MessageQueue partitionQueues[] ;	// when partitioned, the queue's partitions, starting with the queue itself
+	final AtomicInteger nextPartition = new AtomicInteger(0) ;	// for round robin routing
+	int sinks = 0 ;					// sinks connected, guarded by the sinkSlots of the queue (or partition's queue)
+	final ArrayDeque<Lease> leases = new ArrayDeque<Lease>() ;	// with competingConsumers, leases in the order granted (and so expiring)
+	final Object sinkSlots = new Object() ;		// sinks wait on this for this queue, or one of its partitions, to be free
+
 	int messageQueueSize = 0 ; 		// approx size of currently in-memory queued messages
-	final LinkedList<Message> messageQueue = new LinkedList<Message>() ;
+	final ArrayDeque<Message> messageQueue = new ArrayDeque<Message>() ;
+	final ArrayDeque<Message> sentToSink = new ArrayDeque<Message>() ;	// taken from messageQueue and sent to the sink, but not yet acked, oldest first
+	int ackedAhead = 0 ;			// competing consumers: messages in sentToSink acked out of order, waiting for an earlier one's ack..
+	int ackedAheadSize = 0 ;		// ..and their approx size
 
 	File messageQueueDirectory ;
 	MessageQueueFile currentMessageQueueFile ;
+	String lastFileWritten ;		// name of the current file, or the last file written if it is closed
+	MessageQueueBacklog backlog ;	// when not writing new messages to memory, reads the files not yet read into memory
+	MessageQueuePrefetcher prefetcher ;	// with prefetchBacklog, reads the backlog
+	MessageQueueArena arena ;		// when offHeapMemoryQueue, holds the ids and contents of messages in memory
+	MessageQueueCheckpoint checkpoint ;	// how far the sink has acked
+	final ArrayDeque<File> spares = new ArrayDeque<File>() ;	// recycled files to write new files over, oldest first
+	Deflater deflater ;				// with compression, compresses each batch of messages written
+	final MessageQueueMetrics metrics = new MessageQueueMetrics() ;
 	int maxDiskFileSize ; 			// derived from maxMemoryQueueSize and diskFileSizeDivisor
+	MessageQueueCommitter committer ;
+	MessageQueueReplicator replicator ;	// root only: with standbyAddress, replicates the commits and acks of all queues
+	int unsyncedMessages = 0 ;		// messages written to the current file since it was last synced
+	long lastSyncTime = 0 ;
 
 
 	boolean writingNewMessagesToMemory = true ;	// when false, we're not adding new messages to memory
+	int sinksWaiting = 0 ;						// sinks waiting in take() (or lease()) for a message, so needing notifying
 	
 	int in = 0 ;
 	int out = 0 ;
@@ -72,336 +299,905 @@ public class MessageQueue {
 
 	public MessageQueue() throws Exception {
 
+		root = this ;
+		name = null ;
+		partition = 0 ;
+		queues = new HashMap<String, MessageQueue>() ;
+		memoryUsed = new AtomicLong(0) ;
+		diskUsed = new AtomicLong(0) ;
 		portUsedBySources = SetFromSystemProperty("messageQueueSourcePort", DEFAULT_PORT_USED_BY_SOURCES) ;
 		portUsedBySink = SetFromSystemProperty("messageQueueSinkPort", DEFAULT_PORT_USED_BY_SINK) ;
+		portUsedForMetrics = SetFromSystemProperty("messageQueueMetricsPort", DEFAULT_PORT_USED_FOR_METRICS) ;
 		maxMemoryQueueSize = SetFromSystemProperty("maxMemoryQueueSize", DEFAULT_MAX_MEMORY_QUEUE_SIZE) ;
 		diskFileSizeDivisor = SetFromSystemProperty("diskFileSizeDivisor", DEFAULT_DISK_FILE_SIZE_DIVISOR) ;
 		messageQueueDirectoryName = SetFromSystemProperty("messageQueueDirectoryName", DEFAULT_DIRECTORY_NAME) ;
 		minimumRecordsPerFile = SetFromSystemProperty("minimumRecordsPerFile", MINIMUM_RECORDS_PER_FILE) ;
+		groupCommitMaxBatch = SetFromSystemProperty("groupCommitMaxBatch", DEFAULT_GROUP_COMMIT_MAX_BATCH) ;
+		groupCommitLingerMillis = SetFromSystemProperty("groupCommitLingerMillis", DEFAULT_GROUP_COMMIT_LINGER_MILLIS) ;
+		ringBufferSize = SetFromSystemProperty("ringBufferSize", DEFAULT_RING_BUFFER_SIZE) ;
+		waitStrategy = SetFromSystemProperty("waitStrategy", DEFAULT_WAIT_STRATEGY) ;
+		durability = SetFromSystemProperty("durability", DEFAULT_DURABILITY) ;
+		syncEveryMessages = SetFromSystemProperty("syncEveryMessages", DEFAULT_SYNC_EVERY_MESSAGES) ;
+		syncIntervalMillis = SetFromSystemProperty("syncIntervalMillis", DEFAULT_SYNC_INTERVAL_MILLIS) ;
+		mapFilesForReading = SetFromSystemProperty("mapFilesForReading", DEFAULT_MAP_FILES_FOR_READING) ;
+		transferFilesToSink = SetFromSystemProperty("transferFilesToSink", DEFAULT_TRANSFER_FILES_TO_SINK) ;
+		backlogReadAheadMessages = SetFromSystemProperty("backlogReadAheadMessages", DEFAULT_BACKLOG_READ_AHEAD_MESSAGES) ;
+		backlogReadAheadBytes = SetFromSystemProperty("backlogReadAheadBytes", DEFAULT_BACKLOG_READ_AHEAD_BYTES) ;
+		prefetchBacklog = SetFromSystemProperty("prefetchBacklog", DEFAULT_PREFETCH_BACKLOG) ;
+		offHeapMemoryQueue = SetFromSystemProperty("offHeapMemoryQueue", DEFAULT_OFF_HEAP_MEMORY_QUEUE) ;
+		offHeapChunkSize = SetFromSystemProperty("offHeapChunkSize", DEFAULT_OFF_HEAP_CHUNK_SIZE) ;
+		sourceConnectionEngine = SetFromSystemProperty("sourceConnectionEngine", DEFAULT_SOURCE_CONNECTION_ENGINE) ;
+		sourceEventLoops = SetFromSystemProperty("sourceEventLoops", DEFAULT_SOURCE_EVENT_LOOPS) ;
+		partitions = SetFromSystemProperty("partitions", DEFAULT_PARTITIONS) ;
+		partitionBy = SetFromSystemProperty("partitionBy", DEFAULT_PARTITION_BY) ;
+		competingConsumers = SetFromSystemProperty("competingConsumers", DEFAULT_COMPETING_CONSUMERS) ;
+		leaseMillis = SetFromSystemProperty("leaseMillis", DEFAULT_LEASE_MILLIS) ;
+		checkpointEveryMessages = SetFromSystemProperty("checkpointEveryMessages", DEFAULT_CHECKPOINT_EVERY_MESSAGES) ;
+		checkpointIntervalMillis = SetFromSystemProperty("checkpointIntervalMillis", DEFAULT_CHECKPOINT_INTERVAL_MILLIS) ;
+		spareSegments = SetFromSystemProperty("spareSegments", DEFAULT_SPARE_SEGMENTS) ;
+		compression = SetFromSystemProperty("compression", DEFAULT_COMPRESSION) ;
+		diskHighWatermark = SetFromSystemProperty("diskHighWatermark", DEFAULT_DISK_HIGH_WATERMARK) ;
+		diskLowWatermark = SetFromSystemProperty("diskLowWatermark", DEFAULT_DISK_LOW_WATERMARK) ;
+		memoryHighWatermark = SetFromSystemProperty("memoryHighWatermark", DEFAULT_MEMORY_HIGH_WATERMARK) ;
+		memoryLowWatermark = SetFromSystemProperty("memoryLowWatermark", DEFAULT_MEMORY_LOW_WATERMARK) ;
+		standbyAddress = SetFromSystemProperty("standbyAddress", DEFAULT_STANDBY_ADDRESS) ;
+		portUsedForReplication = SetFromSystemProperty("messageQueueReplicationPort", DEFAULT_PORT_USED_FOR_REPLICATION) ;
+		replicationAcks = SetFromSystemProperty("replicationAcks", DEFAULT_REPLICATION_ACKS) ;
+		failoverMillis = SetFromSystemProperty("failoverMillis", DEFAULT_FAILOVER_MILLIS) ;
+		sinkHelloWaitMillis = SetFromSystemProperty("sinkHelloWaitMillis", DEFAULT_SINK_HELLO_WAIT_MILLIS) ;
+	}
+
+	/** A named queue, or a partition of a queue, with the same settings as root, in its own directory **/
+
+	private MessageQueue(MessageQueue root, String name, int partition, String directoryName) throws Exception {
+
+		this.root = root ;
+		this.name = name ;
+		this.partition = partition ;
+		queues = null ;
+		memoryUsed = root.memoryUsed ;
+		diskUsed = root.diskUsed ;
+		maxMemoryQueueSize = root.maxMemoryQueueSize ;
+		diskFileSizeDivisor = root.diskFileSizeDivisor ;
+		messageQueueDirectoryName = directoryName ;
+		partitions = root.partitions ;
+		partitionBy = root.partitionBy ;
+		competingConsumers = root.competingConsumers ;
+		leaseMillis = root.leaseMillis ;
+		checkpointEveryMessages = root.checkpointEveryMessages ;
+		checkpointIntervalMillis = root.checkpointIntervalMillis ;
+		spareSegments = root.spareSegments ;
+		compression = root.compression ;
+		minimumRecordsPerFile = root.minimumRecordsPerFile ;
+		durability = root.durability ;
+		syncEveryMessages = root.syncEveryMessages ;
+		syncIntervalMillis = root.syncIntervalMillis ;
+		mapFilesForReading = root.mapFilesForReading ;
+		transferFilesToSink = root.transferFilesToSink ;
+		backlogReadAheadMessages = root.backlogReadAheadMessages ;
+		backlogReadAheadBytes = root.backlogReadAheadBytes ;
+		prefetchBacklog = root.prefetchBacklog ;
+		offHeapMemoryQueue = root.offHeapMemoryQueue ;
+		offHeapChunkSize = root.offHeapChunkSize ;
+		maxDiskFileSize = root.maxDiskFileSize ;
+		committer = root.committer ;
 	}
 
 	public void begin() throws Exception {
 
 		maxDiskFileSize = maxMemoryQueueSize / diskFileSizeDivisor ;
+		backlogReadAheadBytes = Math.min(backlogReadAheadBytes, maxMemoryQueueSize) ;
+		backlogReadAheadMessages = Math.max(1, backlogReadAheadMessages) ;
+		if (!DURABILITY_NONE.equals(durability) && !DURABILITY_INTERVAL.equals(durability) && !DURABILITY_ALWAYS.equals(durability))
+			throw new Exception("durability must be one of " + DURABILITY_NONE + ", " + DURABILITY_INTERVAL + " or " + DURABILITY_ALWAYS + ", not " + durability) ;
+		if (!ENGINE_THREAD.equals(sourceConnectionEngine) && !ENGINE_VIRTUAL.equals(sourceConnectionEngine) && !ENGINE_NIO.equals(sourceConnectionEngine))
+			throw new Exception("sourceConnectionEngine must be one of " + ENGINE_THREAD + ", " + ENGINE_VIRTUAL + " or " + ENGINE_NIO + ", not " + sourceConnectionEngine) ;
+		sourceEventLoops = Math.max(1, sourceEventLoops) ;
+		partitions = Math.max(1, partitions) ;
+		if (!PARTITION_BY_ID.equals(partitionBy) && !PARTITION_BY_ROUND_ROBIN.equals(partitionBy))
+			throw new Exception("partitionBy must be one of " + PARTITION_BY_ID + " or " + PARTITION_BY_ROUND_ROBIN + ", not " + partitionBy) ;
+		leaseMillis = Math.max(1, leaseMillis) ;
+		checkpointEveryMessages = Math.max(1, checkpointEveryMessages) ;
+		spareSegments = Math.max(0, spareSegments) ;
+		if (!COMPRESSION_NONE.equals(compression) && !COMPRESSION_DEFLATE.equals(compression))
+			throw new Exception("compression must be one of " + COMPRESSION_NONE + " or " + COMPRESSION_DEFLATE + ", not " + compression) ;
+		diskHighWatermark = Math.max(0, diskHighWatermark) ;
+		if ((diskLowWatermark <= 0) || (diskLowWatermark > diskHighWatermark)) diskLowWatermark = diskHighWatermark / 4 * 3 ;
+		memoryHighWatermark = Math.min(Math.max(0, memoryHighWatermark), maxMemoryQueueSize) ;
+		if ((memoryLowWatermark <= 0) || (memoryLowWatermark > memoryHighWatermark)) memoryLowWatermark = memoryHighWatermark / 4 * 3 ;
+		if (!REPLICATION_ASYNC.equals(replicationAcks) && !REPLICATION_SYNC.equals(replicationAcks))
+			throw new Exception("replicationAcks must be one of " + REPLICATION_ASYNC + " or " + REPLICATION_SYNC + ", not " + replicationAcks) ;
+		if ((standbyAddress != null) && (portUsedForReplication > 0)) throw new Exception("A standby (messageQueueReplicationPort) can't have a standbyAddress of its own") ;
+		failoverMillis = Math.max(1, failoverMillis) ;
+		sinkHelloWaitMillis = Math.max(0, sinkHelloWaitMillis) ;
+
+		committer = new MessageQueueCommitter(this, groupCommitMaxBatch, groupCommitLingerMillis, 
+			DURABILITY_INTERVAL.equals(durability) ? syncIntervalMillis : 0, ringBufferSize, waitStrategy) ;
+		open() ;
+		openPartitions() ;
+		File queuesDirectory = new File(messageQueueDirectory, QUEUES_DIRECTORY_NAME) ;
+		String queueNames[] = queuesDirectory.list() ;		// reopen the named queues, which may have backlogs
+		if (queueNames != null) for (String queueName: queueNames) 
+			if (new File(queuesDirectory, queueName).isDirectory()) queue(queueName) ;
+		checkWatermarks() ;		// a backlog may already have reached one
+
+		if (standbyAddress != null) {		// before any source or sink can connect, so every commit and ack is replicated
+			replicator = new MessageQueueReplicator(standbyAddress, REPLICATION_SYNC.equals(replicationAcks), failoverMillis) ;
+			replicator.start() ;
+		}
+
+		new Thread(committer).start() ;		// start committing messages from sources
+
+		if (portUsedForReplication > 0) new Thread(new MessageQueueStandby(this, portUsedForReplication, failoverMillis)).start() ;	// listens when the primary has gone
+		else listen() ;
 
+		if (portUsedForMetrics > 0) MessageQueueMetrics.Serve(this, portUsedForMetrics) ;
+
+		System.err.println("MessageQueue initiated, portUsedBySources: " + portUsedBySources + 
+			", portUsedBySink: " + portUsedBySink + ", portUsedForMetrics: " + portUsedForMetrics + ", maxMemoryQueueSize: " + maxMemoryQueueSize +
+			", diskFileSizeDivisor: " + diskFileSizeDivisor + ", maxDiskFileSize: " + maxDiskFileSize + 
+			", messageQueueDirectoryName: " + messageQueueDirectoryName + 
+			", groupCommitMaxBatch: " + groupCommitMaxBatch + ", groupCommitLingerMillis: " + groupCommitLingerMillis + 
+			", ringBufferSize: " + ringBufferSize + ", waitStrategy: " + waitStrategy + 
+			", durability: " + durability + ", mapFilesForReading: " + mapFilesForReading + ", transferFilesToSink: " + transferFilesToSink +
+			", backlogReadAheadMessages: " + backlogReadAheadMessages + ", backlogReadAheadBytes: " + backlogReadAheadBytes +
+			", prefetchBacklog: " + prefetchBacklog +
+			", offHeapMemoryQueue: " + offHeapMemoryQueue + ", offHeapChunkSize: " + offHeapChunkSize +
+			", sourceConnectionEngine: " + sourceConnectionEngine + ", sourceEventLoops: " + sourceEventLoops +
+			", partitions: " + partitions + ", partitionBy: " + partitionBy + 
+			", competingConsumers: " + competingConsumers + ", leaseMillis: " + leaseMillis + 
+			", checkpointEveryMessages: " + checkpointEveryMessages + ", checkpointIntervalMillis: " + checkpointIntervalMillis + 
+			", spareSegments: " + spareSegments + ", compression: " + compression + 
+			", diskHighWatermark: " + diskHighWatermark + ", diskLowWatermark: " + diskLowWatermark +
+			", memoryHighWatermark: " + memoryHighWatermark + ", memoryLowWatermark: " + memoryLowWatermark +
+			", standbyAddress: " + standbyAddress + ", portUsedForReplication: " + portUsedForReplication + 
+			", replicationAcks: " + replicationAcks + ", failoverMillis: " + failoverMillis +
+			", sinkHelloWaitMillis: " + sinkHelloWaitMillis +
+			", named queues: " + queues.keySet()) ;
+	}
+
+	/** Start listening for the source(s) and the sink **/
+
+	void listen() throws Exception {
+
+		new Thread(new MessageQueueSourceListener(this)).start() ;
+		
+		new Thread(new MessageQueueSinkListener(this)).start() ;
+	}
+
+	/** Open the queue's directory, reading ahead from any backlog of files in it **/
+
+	private void open() throws Exception {
+
+		if (offHeapMemoryQueue) arena = new MessageQueueArena(offHeapChunkSize) ;
+		if (COMPRESSION_DEFLATE.equals(compression)) deflater = new Deflater(MessageQueueBlock.LEVEL) ;
 		messageQueueDirectory = new File(messageQueueDirectoryName) ;
 		if (messageQueueDirectory.exists()) {
 			if (!messageQueueDirectory.isDirectory()) throw new Exception("messageQueueDirectory " + messageQueueDirectory + " is not a directory") ;
-			writingNewMessagesToMemory = !readMessagesFromFiles(true) ;		// if there are any files here, we process them first
+			checkpoint = new MessageQueueCheckpoint(messageQueueDirectory, checkpointEveryMessages, checkpointIntervalMillis, !DURABILITY_NONE.equals(durability)) ;
+			String contents[] = messageQueueDirectory.list() ;
+			Arrays.sort(contents) ;
+			for (String fn: contents) {
+				if (fn.startsWith(MessageQueueFile.SPARE_PREFIX)) recycle(new File(messageQueueDirectory, fn)) ;	// kept, or deleted if there are too many
+				else if (fn.startsWith("MQ-") && !fn.endsWith(".converting")) diskWritten(fn, new File(messageQueueDirectory, fn).length()) ;
+			}
+			backlog = new MessageQueueBacklog(this, null, true) ;		// if there are any files here, we process them first
+			writingNewMessagesToMemory = !readFromBacklog() ;
+			if (writingNewMessagesToMemory) backlog = null ;
+		}
+		else {
+			if (!messageQueueDirectory.mkdirs()) throw new Exception("messageQueueDirectory " + messageQueueDirectory + " did not exists and could not be created") ;
+			checkpoint = new MessageQueueCheckpoint(messageQueueDirectory, checkpointEveryMessages, checkpointIntervalMillis, !DURABILITY_NONE.equals(durability)) ;
+		}
+		if (prefetchBacklog) {
+			prefetcher = new MessageQueuePrefetcher(this) ;
+			new Thread(prefetcher).start() ;
 		}
-		else if (!messageQueueDirectory.mkdirs()) throw new Exception("messageQueueDirectory " + messageQueueDirectory + " did not exists and could not be created") ;
+	}
 
-		new Thread(new MessageQueueSourceListener(this)).start() ;		// start listening for the source(s)
-		
-		new Thread(new MessageQueueSinkListener(this)).start() ;		// start listening for the sink
+	/** Open the queue's partitions after the first (which is the queue itself).  Any partitions beyond the number configured,
+	    left from when there were more, are opened too, so their messages are delivered, but no more are routed to them.
+	**/
 
-		System.err.println("MessageQueue initiated, portUsedBySources: " + portUsedBySources + 
-			", portUsedBySink: " + portUsedBySink + ", maxMemoryQueueSize: " + maxMemoryQueueSize +
-			", diskFileSizeDivisor: " + diskFileSizeDivisor + ", maxDiskFileSize: " + maxDiskFileSize + 
-			", messageQueueDirectoryName: " + messageQueueDirectoryName) ;
+	private void openPartitions() throws Exception {
+
+		File partitionsDirectory = new File(messageQueueDirectory, PARTITIONS_DIRECTORY_NAME) ;
+		int count = partitions ;
+		String existing[] = partitionsDirectory.list() ;
+		if (existing != null) for (String partitionName: existing) 
+			if (partitionName.matches("[0-9]+")) count = Math.max(count, Integer.parseInt(partitionName) + 1) ;
+		if (count == 1) return ;
+		partitionQueues = new MessageQueue[count] ;
+		partitionQueues[0] = this ;
+		for (int i=1;i<count;i++) {
+			partitionQueues[i] = new MessageQueue(root, name, i, new File(partitionsDirectory, Integer.toString(i)).getPath()) ;
+			partitionQueues[i].open() ;
+		}
 	}
 
-	
-	/** Try to read messages from disk into memory.  Returns true if there are MORE messages remaining to read on disk when we return. 
+	/** The partition a message is to go to **/
+
+	private MessageQueue partitionFor(Message message) {
 
-		When we start and there are disk file(s) containing messages, the sink may have seen some or all of them already.  So, some of the
-		contents of the first file on disk MAY already have been seen by the sink.  atStartup is true called immediately at startup.
+		int routed = Math.min(partitions, partitionQueues.length) ;
+		int i ;
+		if (PARTITION_BY_ROUND_ROBIN.equals(partitionBy)) i = (nextPartition.getAndIncrement() & 0x7fffffff) % routed ;
+		else {
+			int h = Arrays.hashCode(message.id) ;
+			i = ((h ^ (h >>> 16)) & 0x7fffffff) % routed ;
+		}
+		return partitionQueues[i] ;
+	}
 
+	/** Wait for this queue, or one of its partitions, to have no sink (or, with competingConsumers, choose the one with
+	    fewest sinks), and return it, now taken by the caller's sink
 	**/
 
-	private synchronized boolean readMessagesFromFiles(boolean atStartup) throws Exception {
+	MessageQueue claimSink() throws InterruptedException {
+
+		MessageQueue candidates[] = (partitionQueues == null) ? new MessageQueue[] { this } : partitionQueues ;
+		synchronized (sinkSlots) {
+			while (true) {
+				MessageQueue fewest = null ;
+				for (MessageQueue candidate: candidates) if ((fewest == null) || (candidate.sinks < fewest.sinks)) fewest = candidate ;
+				if (competingConsumers || (fewest.sinks == 0)) {
+					fewest.sinks++ ;
+					return fewest ;
+				}
+				sinkSlots.wait() ;
+			}
+		}
+	}
 
-		String contents[] = messageQueueDirectory.list() ;
-		if (contents.length == 0) return false ;
+	/** The sink given partitionQueue by claimSink() has gone **/
 
-		boolean anyFilesLeftUnprocessed = false ;
+	void releaseSink(MessageQueue partitionQueue) {
 
-		Arrays.sort(contents) ; 		// sorting by name works.. name is monotonically increasing..
-		for (String fn: contents) { 	// we're trying to find the first file containing something..
-			File f = new File(messageQueueDirectory, fn) ;
-			int flen = (int) f.length()  ;
-			if (flen < 16L) {			// must be useless/corrupt..
-				System.err.println("Unexpected short messageQueue file deleted: " + f) ;
-				f.delete() ;
-				continue ;
+		synchronized (sinkSlots) {
+			partitionQueue.sinks-- ;
+			sinkSlots.notifyAll() ;
+		}
+	}
+
+	/** Returns the named queue, creating it if need be, or the default queue if name is null.  Only called on the root **/
+
+	MessageQueue queue(String name) throws Exception {
+
+		if (name == null) return this ;
+		synchronized (queues) {
+			MessageQueue queue = queues.get(name) ;
+			if (queue == null) {
+				if ((name.length() == 0) || (name.length() > MAX_QUEUE_NAME_LENGTH) || name.startsWith(".") || !name.matches("[A-Za-z0-9._-]+"))
+					throw new Exception("Invalid queue name: " + name) ;
+				queue = new MessageQueue(this, name, 0, new File(new File(messageQueueDirectory, QUEUES_DIRECTORY_NAME), name).getPath()) ;
+				queue.open() ;
+				queue.openPartitions() ;
+				queues.put(name, queue) ;
+				if (MessageQueue.DEBUG) System.err.println("Opened queue " + name + " in " + queue.messageQueueDirectory) ;
 			}
+			return queue ;
+		}
+	}
 
-			// got a file with contents..  If theres nothing in memory, or the WHOLE FILE will fit into the message queue, add it..
-			if ((messageQueueSize == 0) 	// always read file if no messages in memory, regardless of file size, to allow sane restart of older, possibly "too big" files...
-				|| (((flen * 2) + messageQueueSize) < maxMemoryQueueSize)) {
-				MessageQueueFile.CopyFileToMemoryQueue(f, this, atStartup) ;	//  *2 for for object overhead...
-				atStartup = false ;
+	/** For the metrics: messages in memory waiting to be sent, messages sent but unacked, bytes in memory, files on disk and their bytes **/
+
+	long[] metricsGauges() {
+
+		long gauges[] ;
+		synchronized (this) {
+			gauges = new long[] { messageQueue.size(), sentToSink.size(), messageQueueSize, 0, 0 } ;
+			for (long bytes: fileBytes.values()) gauges[4] += bytes ;
+		}
+		String files[] = messageQueueDirectory.list() ;
+		if (files != null) for (String fn: files) if (fn.startsWith("MQ-")) gauges[3]++ ;
+		return gauges ;
+	}
+
+	/** The default queue and every named queue, and all their partitions **/
+
+	List<MessageQueue> allQueues() {
+
+		ArrayList<MessageQueue> queuesAndPartitions = new ArrayList<MessageQueue>() ;
+		ArrayList<MessageQueue> all = new ArrayList<MessageQueue>() ;
+		queuesAndPartitions.add(this) ;
+		synchronized (queues) {
+			queuesAndPartitions.addAll(queues.values()) ;
+		}
+		for (MessageQueue queue: queuesAndPartitions) {
+			if (queue.partitionQueues == null) all.add(queue) ;
+			else all.addAll(Arrays.asList(queue.partitionQueues)) ;
+		}
+		return all ;
+	}
+
+	/** True when the in-memory queues of all the queues together are using maxMemoryQueueSize **/
+
+	boolean memoryFull() {
+
+		return memoryUsed.get() >= maxMemoryQueueSize ;
+	}
+
+	/** Pause sources when the disk or memory used by all the queues together reaches a high watermark, and resume them
+	    when both are back below their low watermarks.  Called after anything that changes either.
+	**/
+
+	void checkWatermarks() {
+
+		MessageQueue r = root ;
+		if ((r.diskHighWatermark == 0) && (r.memoryHighWatermark == 0)) return ;
+		synchronized (r.notBusy) {		// so the last to check has seen every change before it
+			long disk = diskUsed.get() ;
+			long memory = memoryUsed.get() ;
+			boolean busy ;
+			if (!r.busy) busy = ((r.diskHighWatermark > 0) && (disk >= r.diskHighWatermark)) || ((r.memoryHighWatermark > 0) && (memory >= r.memoryHighWatermark)) ;
+			else busy = ((r.diskHighWatermark > 0) && (disk > r.diskLowWatermark)) || ((r.memoryHighWatermark > 0) && (memory > r.memoryLowWatermark)) ;
+			if (busy == r.busy) return ;
+			r.busy = busy ;
+			if (MessageQueue.DEBUG) System.err.println((busy ? "Sources paused" : "Sources resumed") + ", disk used: " + disk + ", memory used: " + memory) ;
+			if (!busy) {
+				r.notBusy.notifyAll() ;
+				MessageQueueSourceEventLoop loops[] = r.eventLoops ;
+				if (loops != null) for (MessageQueueSourceEventLoop loop: loops) loop.resume() ;
 			}
-			else anyFilesLeftUnprocessed = true ; 	// dont write any new messages from sources to memory, as memory is full
 		}
-		return anyFilesLeftUnprocessed ;		
 	}
-			
 
-	public synchronized void add(Message message) throws Exception {
+	/** Sources paused by the watermarks wait here.  Only called on the root **/
+
+	void awaitNotBusy() throws InterruptedException {
+
+		synchronized (notBusy) {
+			while (busy) notBusy.wait() ;
+		}
+	}
+
+	public String toString() {
+
+		return ((name == null) ? "default queue" : ("queue " + name)) + ((partitionQueues != null) || (partition > 0) ? " partition " + partition : "") ;
+	}
 
-		in++ ;
-		writeToDisk(message) ;					// write every message to disk
+	/** Read ahead from the backlog of files on disk into memory, until there are backlogReadAheadMessages messages or
+		backlogReadAheadBytes bytes in memory, but always at least one message.  Returns false if there was nothing to read.
+	**/
 
-		if (writingNewMessagesToMemory) {
+	private boolean readFromBacklog() throws Exception {
+
+		boolean anyRead = false ;
+		Message message = null ;
+		while (messageQueue.isEmpty() || ((readAheadMessages() < backlogReadAheadMessages) && (readAheadSize() < backlogReadAheadBytes) && (messageQueueSize < maxMemoryQueueSize)) ||
+			((message != null) && (message.block != null) && (message.blockIndex < message.block.count - 1))) {		// read all of a block, so it can be sent whole
+			message = backlog.next() ;
+			if (message == null) break ;
 			writeToMemory(message) ;
-			if (messageQueueSize >= maxMemoryQueueSize) {	
-				if (MessageQueue.DEBUG) System.err.println("Memory queue full, currentMessageQueueFile:" + currentMessageQueueFile + ", in:" + in + ", out:" + out + ", acked:" + acked) ;
-				writingNewMessagesToMemory = false ;	// suspend writing to memory for now - wont resume until everything on disk has been processed
-				if (currentMessageQueueFile != null) {			// close file so entire file is in memory
-					currentMessageQueueFile.close(message) ;	// file will be deleted when last message is taken by sink from memory
-					currentMessageQueueFile = null ;
+			anyRead = true ;
+		}
+		return anyRead ;
+	}
+
+	/** Messages in memory, not counting those acked out of order (competing consumers) but held until an earlier message
+		is acked, so one slow lease doesn't stop the backlog being read ahead for the other sinks.  Those still count
+		towards maxMemoryQueueSize, beyond which the backlog is read a message at a time, as the sinks want them, until
+		the slow lease is acked or expires.
+	**/
+
+	int readAheadMessages() {
+
+		return messageQueue.size() + sentToSink.size() - ackedAhead ;
+	}
+
+	/** Approx size of the readAheadMessages() **/
+
+	int readAheadSize() {
+
+		return messageQueueSize - ackedAheadSize ;
+	}
+
+	/** Returns when the message has been persisted **/
+
+	public void add(Message message) throws Exception {
+
+		MessageQueueCommitter.Receipt receipt = new MessageQueueCommitter.Receipt() ;
+		submit(message, receipt) ;
+		receipt.await() ;
+	}
+
+	/** Queues the message for the next group commit.  Messages are committed in the order they are submitted, and
+	    receipt.await() waits for all the messages submitted with the receipt to be committed.
+	**/
+
+	void submit(Message message, MessageQueueCommitter.Receipt receipt) {
+
+		committer.submit((partitionQueues == null) ? this : partitionFor(message), message, receipt) ;
+	}
+
+	/** Queues the message as submit() does, unless the committer's ring buffer is full, when it returns false rather than waiting **/
+
+	boolean trySubmit(Message message, MessageQueueCommitter.Receipt receipt) {
+
+		return committer.trySubmit((partitionQueues == null) ? this : partitionFor(message), message, receipt) ;
+	}
+
+	/** Called by the committer with a batch of messages: everything is written to the current file, which is flushed once.
+	    Returns the sequence number of the batch's replication to the standby, or 0 if it isn't replicated.
+	**/
+
+	long commit(List<Message> messages) throws Exception {
+
+		long replicated = 0 ;
+		long waiting = System.nanoTime() ;
+		synchronized (this) {
+			metrics.lockWait.record(System.nanoTime() - waiting) ;
+			long appendNanos = 0 ;		// writing to the current file (and compressing), but not to memory
+			long bytesIn = 0 ;
+			int first = 0 ;
+			while (first < messages.size()) {		// a message at a time or, with compression, a block at a time
+				int end = first + 1 ;
+				long writing = System.nanoTime() ;
+				if (deflater != null) {
+					end = MessageQueueBlock.End(messages, first) ;
+					MessageQueueBlock block = MessageQueueBlock.Compress(messages, first, end, deflater) ;
+					for (int i=first;i<end;i++) {
+						messages.get(i).block = block ;
+						messages.get(i).blockIndex = i - first ;
+					}
+					writeToDisk(block, messages.get(end - 1)) ;
+				}
+				else writeToDisk(messages.get(first)) ;		// write every message to disk
+				appendNanos += System.nanoTime() - writing ;
+				in += end - first ;
+				for (int i=first;i<end;i++) bytesIn += messages.get(i).contentsLength ;
+
+				if (writingNewMessagesToMemory) {
+					Message message = null ;
+					for (int i=first;i<end;i++) message = writeToMemory(messages.get(i)) ;	// all of a block, so it can be sent whole
+					if (memoryFull()) {	
+						if (MessageQueue.DEBUG) System.err.println("Memory queue full, currentMessageQueueFile:" + currentMessageQueueFile + ", in:" + in + ", out:" + out + ", acked:" + acked) ;
+						writingNewMessagesToMemory = false ;	// suspend writing to memory for now - wont resume until everything on disk has been processed
+						if (currentMessageQueueFile != null) {			// close file so entire file is in memory
+							currentMessageQueueFile.close(message) ;	// file will be deleted when last message is taken by sink from memory
+							currentMessageQueueFile = null ;
+						}
+						backlog = new MessageQueueBacklog(this, lastFileWritten, false) ;	// the backlog starts with the next file
+					}
 				}
+				first = end ;
 			}
+			metrics.append.record(appendNanos) ;
+			long flushing = System.nanoTime() ;
+			if (currentMessageQueueFile != null) currentMessageQueueFile.flush() ;	// ensure the batch is persisted (closed files already are)
+			metrics.flush.record(System.nanoTime() - flushing) ;
+			metrics.messagesIn.add(messages.size()) ;
+			metrics.bytesIn.add(bytesIn) ;
+			metrics.batches.increment() ;
+			unsyncedMessages += messages.size() ;
+			if (DURABILITY_ALWAYS.equals(durability)) sync() ;
+			else if (DURABILITY_INTERVAL.equals(durability)) syncIfDue() ;
+			if (root.replicator != null) replicated = root.replicator.committed(this, messages) ;	// before any sink can ack them
+			if ((sinksWaiting > 0) || ((prefetcher != null) && prefetcher.waiting && prefetcher.wanted())) notifyAll() ;
 		}
-		notifyAll() ;							// maybe a sink is waiting
+		checkWatermarks() ;
+		return replicated ;
+	}
+
+	/** In "interval" durability, sync if enough messages or time has passed since the last sync.  Also called by the committer when it is idle. **/
+
+	synchronized void syncIfDue() throws Exception {
+
+		if (unsyncedMessages == 0) return ;
+		if ((unsyncedMessages >= syncEveryMessages) || ((System.currentTimeMillis() - lastSyncTime) >= syncIntervalMillis)) sync() ;
+	}
+
+	private void sync() throws Exception {
+
+		long syncing = System.nanoTime() ;
+		if (currentMessageQueueFile != null) currentMessageQueueFile.sync() ;	// files already closed were synced when closed
+		metrics.sync.record(System.nanoTime() - syncing) ;
+		unsyncedMessages = 0 ;
+		lastSyncTime = System.currentTimeMillis() ;
 	}
 
 	// caller is responsible for checking message will fit (or maybe caller doesnt care)
 	// dont call this unless you know what you are doing - normal procedure is to invoke add()
-	synchronized void writeToMemory(Message message) {	
+	// returns the message queued, which is a copy held in the arena if there is one
+	synchronized Message writeToMemory(Message message) {	
 
-		messageQueueSize += message.contents.length + APPROX_PER_MESSAGE_MEMORY_OVERHEAD ; 
+		if ((arena != null) && (message.contents != null)) message = arena.add(message) ;
+		int size = MemorySize(message) ;
+		messageQueueSize += size ; 
+		memoryUsed.addAndGet(size) ;
 		messageQueue.add(message) ;
+		return message ;
+	}
+
+	/** Approx memory used by a message in the memory queue, or exactly, for the ids and contents in the arena **/
+
+	static int MemorySize(Message message) {
+
+		int blockSize = ((message.block != null) && (message.blockIndex == 0)) ? message.block.compressed.length : 0 ;	// counted with its first message
+		if (message.arena != null) return MessageQueueArena.Size(message) + ARENA_MESSAGE_HEAP_SIZE + blockSize ;
+		return message.contentsLength + APPROX_PER_MESSAGE_MEMORY_OVERHEAD + blockSize ;
 	}
 
 	private void writeToDisk(Message message) throws Exception {
 
-		if (currentMessageQueueFile == null) currentMessageQueueFile = new MessageQueueFile(messageQueueDirectory) ;
-		if (!currentMessageQueueFile.add(message, maxDiskFileSize))
-			currentMessageQueueFile = null ; // we filled the file...					
+		openFileIfNone() ;
+		int len = currentMessageQueueFile.len ;
+		boolean more = currentMessageQueueFile.add(message, maxDiskFileSize) ;
+		diskWritten(lastFileWritten, currentMessageQueueFile.len - len) ;
+		if (!more) currentMessageQueueFile = null ; // we filled the file...					
+	}
+
+	private void writeToDisk(MessageQueueBlock block, Message last) throws Exception {
+
+		openFileIfNone() ;
+		int len = currentMessageQueueFile.len ;
+		boolean more = currentMessageQueueFile.add(block, last, maxDiskFileSize) ;
+		diskWritten(lastFileWritten, currentMessageQueueFile.len - len) ;
+		if (!more) currentMessageQueueFile = null ;
 	}
 
+	private void openFileIfNone() throws Exception {
+
+		if (currentMessageQueueFile == null) {
+			currentMessageQueueFile = new MessageQueueFile(messageQueueDirectory, null, spares.poll(), !DURABILITY_NONE.equals(durability)) ;
+			lastFileWritten = currentMessageQueueFile.file.getName() ;
+			diskWritten(lastFileWritten, currentMessageQueueFile.len) ;
+		}
+	}
+
+	/** Count bytes written to one of our files towards the disk watermarks, until the file is recycled **/
+
+	private void diskWritten(String fileName, long bytes) {
+
+		Long n = fileBytes.get(fileName) ;
+		fileBytes.put(fileName, (n == null) ? bytes : n + bytes) ;
+		diskUsed.addAndGet(bytes) ;
+	}
+
+	/** A file's messages have all been acked: keep it to write a new file over (named as a spare, so it isn't read as a
+	    backlog) unless there are spareSegments of them already, when it is deleted.  Call with the message queue locked
+	**/
+
+	void recycle(File f) throws Exception {
+
+		Long bytes = fileBytes.remove(f.getName()) ;		// null for a spare
+		if (bytes != null) diskUsed.addAndGet(-bytes) ;
+		if (spares.size() >= spareSegments) {
+			MessageQueueFile.Delete(f) ;
+			return ;
+		}
+		File spare = f ;
+		if (!f.getName().startsWith(MessageQueueFile.SPARE_PREFIX)) {
+			spare = new File(messageQueueDirectory, MessageQueueFile.SPARE_PREFIX + f.getName()) ;
+			Files.move(f.toPath(), spare.toPath(), StandardCopyOption.ATOMIC_MOVE) ;
+		}
+		spares.add(spare) ;
+		if (MessageQueue.DEBUG) System.err.println("Recycled message queue file " + f + " as " + spare) ;
+	}
+
+	/** Returns the next message to send to the sink, waiting for one if necessary.  It stays in memory until acked **/
+
 	public Message take() throws Exception {
 
 		while (true) {
 			synchronized(this) {
-				Message m =  messageQueue.peek() ;
-				if (m != null) { out++; return m ; }
-				wait() ;
+				Message m = poll() ;
+				if (m != null) return m ;
+				checkpoint.writeIfDue() ;
+				sinksWaiting++ ;
+				wait(checkpoint.dueMillis()) ;		// for a message, or until the last acks are due to be checkpointed
+				sinksWaiting-- ;
 			}
 		}
 	}
 
-	/* because there is only 1 sink, it is ALWAYS the head of the messageQueue that was sent */
-
-	public void lastMessageSentSuccessfully() throws Exception {
+	/** With compression, the sink has polled the first message of a block: if the rest of the block's messages are next
+	    in the queue, as they should be, take them too, so the block can be sent whole.  Returns false if they aren't.
+	**/
 
-		synchronized(this) {
-			acked++ ;
-			Message m = messageQueue.remove() ;
-			messageQueueSize = messageQueueSize - m.contents.length - APPROX_PER_MESSAGE_MEMORY_OVERHEAD ;
-			if (m.messageIsLastInThisFile != null) MessageQueueFile.Delete(m.messageIsLastInThisFile) ;
-			if (messageQueue.isEmpty()) {	// we have exhausted the memory queue
-				if (MessageQueue.DEBUG) System.err.println("Last message taken, queue empty, writingNewMessagesToMemory:"+writingNewMessagesToMemory+", messageQueueSize:"+messageQueueSize + ", in:" + in + ", out:" + out + ", acked:" + acked) ;
-				if (writingNewMessagesToMemory)	{ // we were writing to disk and to memory
-
-					// So there's nothing on disk to send, but everything in the current file HAS been sent, so
-					// the current file can be deleted.  But it is likely that this last message was the
-					// only record in the file, and we don't really want to keep opening and closing/deleting files
-					// just because the sink is "keeping up".  So, only close and delete if we've written at least
-					// minimumRecordsPerFile (defaults to MINIMUM_RECORDS_PER_FILE)
-
-					if ((currentMessageQueueFile != null) && (currentMessageQueueFile.in >=  minimumRecordsPerFile)) {
-						currentMessageQueueFile.closeAndDelete() ;
-						currentMessageQueueFile = null ;
-					}
-				}
-				else { 		// we're not writing to memory - we must have been previously full
- 	
-					// We've just exhausted memory queue and we were in "processing disk file" mode.
-					// Either there's more on disk to process, or we can start receiving from source into memory
-
-					if (currentMessageQueueFile != null) {		// close currently open file - dont want to be reading and writing it!
-						currentMessageQueueFile.close(null) ;
-						currentMessageQueueFile = null ;
-					}
+	synchronized boolean pollRestOfBlock(Message first) {
 
-					writingNewMessagesToMemory = !readMessagesFromFiles(false) ;
-				}
-			}
+		int n = first.block.count - 1 ;
+		if (messageQueue.size() < n) return false ;
+		Iterator<Message> it = messageQueue.iterator() ;
+		for (int i=1;i<=n;i++) {
+			Message m = it.next() ;
+			if ((m.block != first.block) || (m.blockIndex != i)) return false ;
 		}
+		for (int i=0;i<n;i++) sent(messageQueue.poll()) ;
+		out += n ;
+		return true ;
 	}
 
-	static int SetFromSystemProperty(String propName, int defaultVal) {
+	/** Returns the next message to send to the sink, or null if there isn't one yet **/
 
-		String s = System.getProperty(propName) ;
-		if (s != null) 
-			try {
-				return Integer.parseInt(s) ;
-			}
-			catch (Exception e) {
-				System.err.println("Invalid value for system property " + propName + " - defaulting to " + defaultVal) ;
-			} ;
-		return defaultVal ;
+	synchronized Message poll() {
+
+		Message m = messageQueue.poll() ;
+		if (m != null) {
+			sent(m) ;
+			out++ ;
+		}
+		return m ;
 	}
 
-	static String SetFromSystemProperty(String propName, String  defaultVal) {
+	private void sent(Message m) {
 
-		String s = System.getProperty(propName) ;
-		return (s == null) ? defaultVal : s ;
+		sentToSink.add(m) ;
+		m.sentNanos = System.nanoTime() ;
+		metrics.messagesSent.increment() ;
+		if (m.possibleReplay) metrics.replays.increment() ;
 	}
-}
-
-class MessageQueueFile {
 
-	static final byte[] HEADER       = "HEADER  ".getBytes() ;
-	static final byte[] VERSION      = "00000001".getBytes() ;
-	static final byte[] MESSAGESTART = "MESSAGE ".getBytes() ;
-	static final byte[] EOF          = "EOF     ".getBytes() ;
+	/* because there is only 1 sink, it is ALWAYS the oldest message sent that is acked */
 
-	static final int APPROX_PER_MESSAGE_FILE_OVERHEAD = 50 ; 		// approx file format overhead..
+	public void lastMessageSentSuccessfully() throws Exception {
 
-	static int seq ;
-	static long lastTime ;
+		messagesSentSuccessfully(1) ;
+	}
 
-	File file ;
-	int len = 0 ;
-	BufferedOutputStream bos ; 
-	int in = 0 ;
+	/** The sink has acked the oldest count messages sent to it **/
 
-	MessageQueueFile(File messageQueueDirectory) throws Exception {		// create a new file
+	synchronized void messagesSentSuccessfully(int count) throws Exception {
 
-		long now = System.currentTimeMillis() ;
-		if (now == lastTime) seq++ ;
-		else {
-			lastTime = now ;
-			seq = 0 ;
+		if (count > sentToSink.size()) throw new Exception("Sink acked " + count + " messages but only " + sentToSink.size() + " are unacked") ;
+		if (root.replicator != null) root.replicator.acked(this, count) ;
+		long now = System.nanoTime() ;
+		metrics.messagesAcked.add(count) ;
+		for (int i=0;i<count;i++) {
+			acked++ ;
+			Message m = sentToSink.remove() ;
+			metrics.sinkAck.record(now - m.sentNanos) ;
+			int size = MemorySize(m) ;
+			messageQueueSize -= size ;
+			memoryUsed.addAndGet(-size) ;
+			if (m.acked) {
+				ackedAhead-- ;
+				ackedAheadSize -= size ;
+			}
+			if (m.arena != null) m.arena.release(m) ;
+			if (m.messageIsLastInThisFile != null) {
+				if (m.contentsChannel != null) m.contentsChannel.close() ;	// shared by all the messages from the file
+				checkpoint.fileAcked(m.messageIsLastInThisFile) ;
+				recycle(m.messageIsLastInThisFile) ;
+			}
+			else checkpoint.messageAcked() ;
 		}
-		String fileName = new Formatter().format("MQ-%016x-%04x", now, seq).toString() ;	// MQ-time-seq (seq is just in case computer is very fast and queue is very busy!
-		file = new File(messageQueueDirectory, fileName) ;
-		bos = new BufferedOutputStream(new FileOutputStream(file)) ;
-		bos.write(HEADER) ;
-		bos.write(VERSION) ;
-		if (MessageQueue.DEBUG) System.err.println("Created MessageQueueFile " + file) ;
+		checkpoint.writeIfDue() ;
+		topUpReadAhead() ;
+		if (messageQueue.isEmpty() && sentToSink.isEmpty()) {	// we have exhausted the memory queue
+			if (MessageQueue.DEBUG) System.err.println("Last message taken, queue empty, writingNewMessagesToMemory:"+writingNewMessagesToMemory+", messageQueueSize:"+messageQueueSize + ", in:" + in + ", out:" + out + ", acked:" + acked) ;
+			if (writingNewMessagesToMemory)	{ // we were writing to disk and to memory
+
+				// So there's nothing on disk to send, but everything in the current file HAS been sent, so
+				// the current file can be deleted.  But it is likely that this last message was the
+				// only record in the file, and we don't really want to keep opening and closing/deleting files
+				// just because the sink is "keeping up".  So, only close and delete if we've written at least
+				// minimumRecordsPerFile (defaults to MINIMUM_RECORDS_PER_FILE)
+
+				if ((currentMessageQueueFile != null) && (currentMessageQueueFile.in >=  minimumRecordsPerFile)) {
+					checkpoint.fileAcked(currentMessageQueueFile.file) ;
+					recycle(currentMessageQueueFile.closeDrained()) ;
+					currentMessageQueueFile = null ;
+				}
+			}
+		}
+		checkWatermarks() ;
 	}
-	
 
-	boolean add(Message message, int maxDiskFileSize) throws Exception {			// return true if more messages can be written to this file, else false
+	/** With the queue locked, when messages have been acked: read more of the backlog if the read ahead is half used up **/
 
-		bos.write(MESSAGESTART) ;
+	private void topUpReadAhead() throws Exception {
 
-		// write message id (16 bytes) encoded as hex and the message contents length (an int) encoded as hex
+		if (prefetcher != null) {		// it reads the backlog
+			if (prefetcher.waiting && prefetcher.wanted()) notifyAll() ;
+		}
+		else if (!writingNewMessagesToMemory && (readAheadMessages() <= backlogReadAheadMessages / 2) && (readAheadSize() <= backlogReadAheadBytes / 2)) {
 
-	    String t = new BigInteger(1, message.id).toString(16) ;
-		if (t.length() < 32) 
-			bos.write("00000000000000000000000000000000".substring(0, 32 - t.length()).getBytes()) ;	// zero pad
+			// We're in "processing disk file" mode and the read ahead is half used up, so top it up.  If the backlog
+			// is exhausted, read what has been written to the current file since, or start receiving from source into memory
 
-		bos.write(t.getBytes()) ;		// id
-		bos.write(new Formatter().format("%08x", message.contents.length).toString().getBytes()) ;		// contents length
-		bos.write(message.contents) ;
-		bos.flush() ;					// ensure it is persisted...
-		in++ ;
-		len += message.contents.length + APPROX_PER_MESSAGE_FILE_OVERHEAD ;
-		if ((len + message.contents.length + APPROX_PER_MESSAGE_FILE_OVERHEAD) >= maxDiskFileSize) {	// checking to see if another message of the size we just got would fit
-			close(message) ;			// close, marking the last message as the last in the file, which when taken, triggers deletion of the file
-			return false ;
+			if (!readFromBacklog() && messageQueue.isEmpty()) {
+				if (currentMessageQueueFile != null) {		// close currently open file - dont want to be reading and writing it!
+					currentMessageQueueFile.close(null) ;
+					currentMessageQueueFile = null ;
+					readFromBacklog() ;
+				}
+				if (messageQueue.isEmpty()) {
+					writingNewMessagesToMemory = true ;
+					backlog = null ;
+				}
+			}
+			if ((sinksWaiting > 0) && !messageQueue.isEmpty()) notifyAll() ;
 		}
-		return true ;
 	}
 
-	void close(Message message) throws Exception {
+	/** Competing consumers: returns the next message to send to sink, leased to it as the sequence'th message of its
+	    session, waiting for one if wait is true, else returning null if there isn't one yet
+	**/
+
+	synchronized Lease lease(MessageQueueSink sink, long sequence, boolean wait) throws Exception {
 
-		if (MessageQueue.DEBUG) System.err.println("close " + file + " total records in: " + in) ;
-		if (message != null) message.setAsLastInFile(file) ;		// when this message is taken by sink, file can be deleted
-		bos.write(EOF) ;
-		bos.close() ;
-		bos = null ;
-		file = null ;
+		while (true) {
+			long now = System.currentTimeMillis() ;
+			long nextExpiry = expireLeases(now) ;
+			Message m = messageQueue.poll() ;
+			if (m != null) {
+				if (!m.sent) {			// it stays on sentToSink, in the order first sent, until acked
+					m.sent = true ;
+					sentToSink.add(m) ;
+					out++ ;
+				}
+				m.sentNanos = System.nanoTime() ;
+				metrics.messagesSent.increment() ;
+				if (m.possibleReplay) metrics.replays.increment() ;
+				m.lease = new Lease(m, sink, sequence, now + leaseMillis) ;
+				leases.add(m.lease) ;
+				return m.lease ;
+			}
+			if (!wait) return null ;
+			checkpoint.writeIfDue() ;
+			long millis = (nextExpiry == 0) ? 0 : Math.max(1, nextExpiry - now) ;
+			long due = checkpoint.dueMillis() ;
+			if ((due > 0) && ((millis == 0) || (due < millis))) millis = due ;
+			sinksWaiting++ ;
+			wait(millis) ;	// for a message, to send again one whose lease expires, or until the last acks are due to be checkpointed
+			sinksWaiting-- ;
+		}
 	}
 
-	void closeAndDelete() throws Exception {
+	/** Put messages whose leases have expired back at the head of the queue, to be sent again flagged as possible
+	    replays.  Returns (about) when the next lease expires, or 0 if none are leased.
+	**/
 
-		if (MessageQueue.DEBUG) System.err.println("close and delete " + file + " total records in: " + in) ;
-		bos.close() ;
-		bos = null ;
-		Delete(file) ;
-		file = null ;
+	private long expireLeases(long now) {
+
+		ArrayList<Lease> expired = null ;
+		while (!leases.isEmpty()) {
+			Lease lease = leases.peek() ;
+			if (lease.message.lease != lease) leases.remove() ;		// acked, or ended with its sink's session
+			else if (lease.expires > now) break ;
+			else {
+				leases.remove() ;
+				if (expired == null) expired = new ArrayList<Lease>() ;
+				expired.add(lease) ;
+			}
+		}
+		if (expired != null) {
+			if (MessageQueue.DEBUG) System.err.println(expired.size() + " leases expired in " + this) ;
+			for (Lease lease: expired) lease.sink.leaseEnded(lease) ;
+			requeue(expired) ;
+		}
+		return leases.isEmpty() ? 0 : leases.peek().expires ;
 	}
 
-	// all messages in the file are guaranteed to fit into the messageQueue
+	/** Competing consumers: put the messages of leases which have ended without being acked back at the head of the queue, in order **/
 
-	static void CopyFileToMemoryQueue(File f, MessageQueue messageQueue, boolean possibleReplay) throws Exception {
+	private void requeue(List<Lease> ended) {
 
-		if (MessageQueue.DEBUG) System.err.println("Adding file to memory: " + f + ",possibleReplay="+possibleReplay) ;
-		BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f)) ;
+		for (int i=ended.size()-1;i>=0;i--) {
+			Message m = ended.get(i).message ;
+			if (m.lease != ended.get(i)) continue ;		// acked since
+			m.lease = null ;
+			m.possibleReplay = true ;
+			messageQueue.addFirst(m) ;
+		}
+		if (sinksWaiting > 0) notifyAll() ;
+	}
 
-		byte header[] = Read(f, bis, 8) ;
-		for (int i=0;i<8;i++) if (header[i] != HEADER[i]) throw new Exception("corrupt message queue file " + f + " detected in header " + new String(header)) ;
-		byte version[] = Read(f, bis, 8) ;
-		for (int i=0;i<8;i++) if (version[i] != VERSION[i])	throw new Exception("corrupt message queue file " + f + " detected in version " + new String(version)) ;
+	/** Competing consumers: a sink has acked the message it was leased, maybe out of order.  It is removed from the memory
+	    queue when every message sent before it has been acked too, so files are still deleted (and the arena released)
+	    in order.  The ack of an expired lease is ignored, as the message is to be sent again.
+	**/
 
-		int readCount = 0 ;
-		Message lastMessage = null ;
-		while (true) {
-			byte messageStart[] = null ;
-			try {
-				messageStart = Read(f, bis, 8) ;
+	synchronized void leaseAcked(Lease lease) throws Exception {
+
+		if (lease.message.lease != lease) return ;
+		lease.message.lease = null ;
+		lease.message.acked = true ;
+		ackedAhead++ ;
+		ackedAheadSize += MemorySize(lease.message) ;
+		int count = 0 ;
+		for (Message m: sentToSink) {
+			if (!m.acked) break ;
+			count++ ;
+		}
+		if (count > 0) messagesSentSuccessfully(count) ;
+		else topUpReadAhead() ;		// it no longer counts towards the read ahead
+	}
+
+	/** A standby: the primary's sink has acked the oldest count messages, which we have too, as they were replicated in
+	    the same order.  As there is no sink here, take them as if sent to one, waiting for any still being read from disk
+	**/
+
+	void replicaAcked(int count) throws Exception {
+
+		while (count > 0) {
+			int n = 0 ;
+			synchronized (this) {
+				while ((n < count) && (poll() != null)) n++ ;
 			}
-			catch (Exception e) {	// file was just suddenly closed...  sort of normal.
-				System.err.println("Unexpected EOF on file " + f + " - processing what we read..") ;
-				break ;
+			if (n == 0) {
+				take() ;
+				n = 1 ;
 			}
-			
-			boolean eof = true ;
-			for (int i=0;i<8;i++) if (messageStart[i] != EOF[i]) { eof = false ; break ; }
-			if (eof) break ;
-			for (int i=0;i<8;i++) if (messageStart[i] != MESSAGESTART[i])
-				throw new Exception("corrupt message queue file " + f + " detected in message start " + new String(messageStart)) ;
+			messagesSentSuccessfully(n) ;
+			count -= n ;
+		}
+	}
 
-			// next 32 bytes are a message id encoded as hex
+	/** Competing consumers: a sink has gone without acking the messages leased to it (given in the order it was sent them), so they'll be sent again **/
 
-			byte[] messageId = new byte[16] ;
-			for (int i=0;i<16;i++) {
-				byte b1 = (byte) bis.read() ;	//0, 1, .. f
-				byte b2 = (byte) bis.read() ;
-				if ((b1 < '0') || (b1 > 'f') || (b2 < '0') || (b2 > 'f')) 
-					throw new Exception("corrupt message queue file " + f + " detected in message hdr") ;
-				messageId[i] = (byte) (((int) (b1 - '0')) * 16 + (int) (b2 - '0')) ;
-			}
+	synchronized void leasesEnded(List<Lease> ended) {
+
+		requeue(ended) ;
+	}
+
+	/** Competing consumers: a message sent to a sink, which it must ack before expires or it will be sent again **/
 
-			// next 8 bytes are message len encoded as hex
+	static class Lease {
 
-			String len = new String(Read(f, bis, 8)) ;
-			int messageLen = 0 ;
+		final Message message ;
+		final MessageQueueSink sink ;
+		final long sequence ;		// the message's sequence number in the sink's session, by which the sink acks it
+		final long expires ;
+
+		Lease(Message message, MessageQueueSink sink, long sequence, long expires) {
+
+			this.message = message ;
+			this.sink = sink ;
+			this.sequence = sequence ;
+			this.expires = expires ;
+		}
+	}
+
+	/** The sink has gone without acking the messages sent to it, so they'll be sent again, in order, to the next sink **/
+
+	synchronized void sinkSessionEnded() {
+
+		while (!sentToSink.isEmpty()) messageQueue.addFirst(sentToSink.removeLast()) ;
+	}
+
+	static int SetFromSystemProperty(String propName, int defaultVal) {
+
+		String s = System.getProperty(propName) ;
+		if (s != null) 
 			try {
-				messageLen = Integer.parseInt(len, 16) ;
+				return Integer.parseInt(s) ;
 			}
 			catch (Exception e) {
-				throw new Exception("corrupt message queue file " + f + " detected in message length " + len + ", e="+e) ;
-			}
+				System.err.println("Invalid value for system property " + propName + " - defaulting to " + defaultVal) ;
+			} ;
+		return defaultVal ;
+	}
 
-			byte messageContents[] = Read(f, bis, messageLen) ;
-			if (messageContents  == null) {
-				System.err.println("Truncated message in file " + f + " - contents truncated") ;
-				break ;
-			}			
-			lastMessage = new Message(messageId, messageContents, possibleReplay) ;
-			messageQueue.writeToMemory(lastMessage) ;				// guaranteed to fit
-			readCount++ ;
-		}
-		if (lastMessage != null) lastMessage.setAsLastInFile(f) ;	// when this message is consumed, file can be deleted
-		if (MessageQueue.DEBUG) System.err.println("file added, mq mem size:"+messageQueue.messageQueueSize + ", records read:"+readCount) ;
+	static String SetFromSystemProperty(String propName, String  defaultVal) {
+
+		String s = System.getProperty(propName) ;
+		return (s == null) ? defaultVal : s ;
 	}
 
-	static byte[] Read(File f, BufferedInputStream bis, int sz) throws Exception {
+	static long SetFromSystemProperty(String propName, long defaultVal) {
 
-		final byte buf[] = new byte[sz] ;
-		int start = 0 ;
-		int len = sz ;
-		while (len > 0) {
-			int i = bis.read(buf, start, len) ;
-			if (i < 0) throw new Exception("truncated message file " + f) ;
-			start += i ;
-			len -= i ;
-		}
-		return buf ;
+		String s = System.getProperty(propName) ;
+		if (s != null) 
+			try {
+				return Long.parseLong(s) ;
+			}
+			catch (Exception e) {
+				System.err.println("Invalid value for system property " + propName + " - defaulting to " + defaultVal) ;
+			} ;
+		return defaultVal ;
 	}
 
-	static void Delete(File messageQueueFile) {
+	static boolean SetFromSystemProperty(String propName, boolean defaultVal) {
 
-			if (MessageQueue.DEBUG) System.err.println("Deleting message queue file " + messageQueueFile) ;
-			if (!messageQueueFile.delete()) System.err.println("Failed to delete message queue file " + messageQueueFile) ;
+		String s = System.getProperty(propName) ;
+		if (s == null) return defaultVal ;
+		if ("true".equalsIgnoreCase(s) || "y".equalsIgnoreCase(s)) return true ;
+		if ("false".equalsIgnoreCase(s) || "n".equalsIgnoreCase(s)) return false ;
+		System.err.println("Invalid value for system property " + propName + " - defaulting to " + defaultVal) ;
+		return defaultVal ;
 	}
 }
 
@@ -419,29 +1215,80 @@ class MessageQueueSourceListener implements Runnable {
 
 		try {
 			Thread.currentThread().setName("MessageQueueSourceListener") ;
-			ServerSocket serverSocket = new ServerSocket(messageQueue.portUsedBySources) ;
-			while (true) {
-				Socket socket = serverSocket.accept() ;
-				new MessageQueueSource(messageQueue, socket) ;
-			}
+			if (MessageQueue.ENGINE_NIO.equals(messageQueue.sourceConnectionEngine)) acceptToEventLoops() ;
+			else acceptToThreads(MessageQueue.ENGINE_VIRTUAL.equals(messageQueue.sourceConnectionEngine)) ;
 		}
 		catch (Exception e) {
 			System.err.println("Error in MessageQueueSourceListener:" + e) ;
 			e.printStackTrace() ;
 		}
 	}
+
+	private void acceptToThreads(boolean virtual) throws Exception {
+
+		Method ofVirtual = null ;		// Thread.ofVirtual(), found by reflection so we still build and run on java 17
+		Method unstarted = null ;		// Thread.Builder.unstarted(Runnable)
+		if (virtual) {
+			try {
+				ofVirtual = Thread.class.getMethod("ofVirtual") ;
+				unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class) ;
+			}
+			catch (Exception e) {
+				System.err.println("Virtual threads are not available in java " + System.getProperty("java.version") + 
+					", using a thread per source connection") ;
+				ofVirtual = null ;
+			}
+		}
+		ServerSocket serverSocket = new ServerSocket(messageQueue.portUsedBySources) ;
+		while (true) {
+			Socket socket = serverSocket.accept() ;
+			MessageQueueSource source = new MessageQueueSource(messageQueue, socket) ;
+			Thread thread = (ofVirtual == null) ? new Thread(source) : (Thread) unstarted.invoke(ofVirtual.invoke(null), source) ;
+			thread.start() ;
+		}
+	}
+
+	private void acceptToEventLoops() throws Exception {
+
+		MessageQueueSourceEventLoop loops[] = new MessageQueueSourceEventLoop[messageQueue.sourceEventLoops] ;
+		for (int i=0;i<loops.length;i++) {
+			loops[i] = new MessageQueueSourceEventLoop(messageQueue, "MessageQueueSourceEventLoop-" + i) ;
+			new Thread(loops[i]).start() ;
+		}
+		messageQueue.eventLoops = loops ;		// to be told when sources paused by the watermarks can resume
+		ServerSocketChannel serverChannel = ServerSocketChannel.open() ;
+		serverChannel.bind(new InetSocketAddress(messageQueue.portUsedBySources), 1024) ;	// sources may connect in a rush
+		int next = 0 ;
+		while (true) {
+			SocketChannel channel = serverChannel.accept() ;
+			loops[next].add(channel) ;
+			next = (next + 1) % loops.length ;
+		}
+	}
 }
 
 class MessageQueueSource implements Runnable {
 
 	private final MessageQueue messageQueue ;
 	private final Socket socket ;
+	private MessageQueue queue ;	// the queue our messages go to
+
+	boolean pipelined = false ;		// source asked for cumulative acks
+	boolean flowControl = false ;	// source asked to be told when it is paused by the watermarks
+	int ackBatch = 1 ;				// in pipelined mode, ack at least this often even when more messages are waiting to be read
+	long received = 0 ;				// messages received from this source
+	long acked = 0 ;				// messages acked to this source
+	final ByteBuffer lenBuffer = ByteBuffer.allocate(4) ;		// reused for every length we read..
+	final ByteBuffer ackBuffer = ByteBuffer.allocate(8) ;		// ..and ack we send
+
+	// all our messages are submitted with this, which lets us wait for them to be committed
+	final MessageQueueCommitter.Receipt receipt = new MessageQueueCommitter.Receipt() ;
 
 	MessageQueueSource(MessageQueue messageQueue, Socket socket) {
 
 		this.messageQueue = messageQueue ;
 		this.socket = socket ;
-		new Thread(this).start() ;
+		this.queue = messageQueue ;
 	}
 
 	public void run() {		// per source thread..
@@ -474,9 +1321,22 @@ class MessageQueueSource implements Runnable {
 			message without an id: 'M', len (4 bytes), contents[len]
 			message with    an id: 'I', id (16 bytes), len (4 bytes), contents[len]
 			orderly eof          : 'E'
+			pipelined acks       : 'P', window (4 bytes)
+			queue name           : 'Q', len (4 bytes), name[len] (UTF-8)
+			flow control         : 'F'
 		
 			The id is a java int serialised as bytes
 			The id is just 16 bytes.
+
+			Each message is acked with 'Y' once it is persisted, unless the source has asked for pipelined acks,
+			in which case we ack with 'A' and the (8 byte long) count of messages persisted from this source so far.  
+			We send a pipelined ack whenever we've run out of messages already sent to us, or at least every half window.
+
+			Messages go to the default queue unless the source names another with 'Q', usually as soon as it connects.
+
+			While a watermark is reached, we don't accept another message until the message queue is below the low
+			watermarks again, so the source blocks.  Before pausing, we ack everything already received and, if the
+			source asked for flow control with 'F', send 'B' (busy), then 'G' (go) when we resume.
 		*/
 
 		while (true) {
@@ -488,16 +1348,30 @@ class MessageQueueSource implements Runnable {
 			if (b == 'M') {
 				int len = readLen(bis) ;
 				byte[] contents = readBytes(bis, len) ;
-				messageQueue.add(new Message(contents)) ; 	// construct a message with our id
-				ack(bos) ;
+				if (messageQueue.busy) pause(bos) ;
+				queue.submit(new Message(contents), receipt) ; 	// construct a message with our id
+				ack(bis, bos) ;
 			}
 			else if (b == 'I') {
 				byte[] id = readBytes(bis, 16) ;
 				int len = readLen(bis) ;
 				byte[] contents = readBytes(bis, len) ;
-				messageQueue.add(new Message(id, contents, false)) ; 	// construct a message with their id
-				ack(bos) ;
+				if (messageQueue.busy) pause(bos) ;
+				queue.submit(new Message(id, contents, false), receipt) ; 	// construct a message with their id
+				ack(bis, bos) ;
+			}
+			else if (b == 'P') {
+				int window = readLen(bis) ;
+				if (window < 1) throw new Exception("Invalid pipelined window: " + window) ;
+				pipelined = true ;
+				ackBatch = Math.max(1, window / 2) ;
+			}
+			else if (b == 'Q') {
+				int len = readLen(bis) ;
+				if ((len < 1) || (len > MessageQueue.MAX_QUEUE_NAME_LENGTH)) throw new Exception("Invalid queue name length: " + len) ;
+				queue = messageQueue.queue(new String(readBytes(bis, len), "UTF-8")) ;
 			}
+			else if (b == 'F') flowControl = true ;
 			else if (b == 'E') {
 				System.out.println("EOF received from source") ;
 				break  ;
@@ -508,13 +1382,12 @@ class MessageQueueSource implements Runnable {
 
 	int readLen(BufferedInputStream bis) throws Exception {
 
-		ByteBuffer bb = ByteBuffer.allocate(4) ;
 		for (int i=0;i<4;i++) {
 			int j = bis.read() ;
 			if (j < 0) throw new Exception("eof reading length") ;
-			bb.put((byte) j) ;
+			lenBuffer.put(i, (byte) j) ;
 		}
-		return bb.getInt(0) ;
+		return lenBuffer.getInt(0) ;
 	}
 
 	byte[] readBytes(BufferedInputStream bis, int sz) throws Exception {
@@ -531,10 +1404,41 @@ class MessageQueueSource implements Runnable {
 		return buf ;
 	}
 
-	void ack(BufferedOutputStream bos) throws Exception {
+	void ack(BufferedInputStream bis, BufferedOutputStream bos) throws Exception {
 		
-		bos.write('Y') ;
+		received++ ;
+		if (!pipelined) {
+			receipt.await(received) ;
+			bos.write('Y') ;
+			bos.flush() ;
+			acked = received ;
+		}
+		else if ((bis.available() == 0) || ((received - acked) >= ackBatch)) {
+			receipt.await(received) ;		// everything we're acking has been persisted
+			bos.write('A') ;
+			bos.write(ackBuffer.putLong(0, received).array()) ;
+			bos.flush() ;
+			acked = received ;
+		}
+	}
+
+	/** A watermark has been reached: ack what we've received, then wait until the message queue is below the low watermarks **/
+
+	void pause(BufferedOutputStream bos) throws Exception {
+
+		if (pipelined && (acked < received)) {
+			receipt.await(received) ;
+			bos.write('A') ;
+			bos.write(ackBuffer.putLong(0, received).array()) ;
+			acked = received ;
+		}
+		if (flowControl) bos.write('B') ;
 		bos.flush() ;
+		messageQueue.awaitNotBusy() ;
+		if (flowControl) {
+			bos.write('G') ;
+			bos.flush() ;
+		}
 	}
 }
 
@@ -543,12 +1447,6 @@ class MessageQueueSinkListener implements Runnable {
 
 	private final MessageQueue messageQueue ;
 
-	ServerSocket serverSocket ;
-	String remote ;
-	BufferedInputStream bis ;
-	BufferedOutputStream bos ;
-
-
 	MessageQueueSinkListener(MessageQueue messageQueue) throws Exception {
 
 		this.messageQueue = messageQueue ;
@@ -558,17 +1456,11 @@ class MessageQueueSinkListener implements Runnable {
 
 		try {
 			Thread.currentThread().setName("MessageQueueSinkListener") ;
-			serverSocket = new ServerSocket(messageQueue.portUsedBySink) ;
+			ServerSocketChannel serverSocket = ServerSocketChannel.open() ;
+			serverSocket.bind(new InetSocketAddress(messageQueue.portUsedBySink)) ;
 			while (true) {
-				
-				try {
-					processSink(serverSocket.accept()) ;
-				}
-				catch (Exception e) {
-					System.err.println("Error in MessageQueueSinkListener processSink:" + e) ;
-					e.printStackTrace() ;
-					// reloop and try again
-				}								
+				SocketChannel channel = serverSocket.accept() ;
+				new Thread(new MessageQueueSink(messageQueue, channel)).start() ;	// there's a sink for each queue
 			}
 		}
 		catch (Exception e) {
@@ -576,89 +1468,392 @@ class MessageQueueSinkListener implements Runnable {
 			e.printStackTrace() ;
 		}
 	}
+}
+
+class MessageQueueSink implements Runnable {
+
+	static final int PROTOCOL_VERSION = 1 ;		// of the hello we understand
+
+	private final MessageQueue messageQueue ;
+	private MessageQueue queue ;		// the queue we're sending from
+
+	final SocketChannel channel ;		// for sending contents held in ByteBuffers
+	final String remote ;
+	BufferedInputStream bis ;
+	BufferedOutputStream bos ;
+	final ByteBuffer lenBuffer = ByteBuffer.allocate(4) ;
+	final ByteBuffer frameHeader = ByteBuffer.allocate(1 + 16 + 4) ;		// type, id, len
+	final ByteBuffer frame[] = new ByteBuffer[2] ;							// frameHeader and contents, for a gathering write
+	final ByteBuffer ackBuffer = ByteBuffer.allocate(8) ;
+	static final int COPY_THRESHOLD = 8192 ;			// contents in buffers up to this size are copied through bos..
+	final byte copyBuffer[] = new byte[COPY_THRESHOLD] ;	// ..using this
+
+	// prefetch mode: up to window messages are sent before the sink acks them, and acks are read by another thread
+
+	boolean prefetching = false ;
+	int window ;
+	long sent = 0 ;					// messages sent this session
+	long acked = 0 ;				// messages acked this session
+	Exception failure ;				// why the ack reader stopped
+	Thread ackReader ;
+	boolean compressed = false ;	// the sink asked to be sent the queue's compressed blocks as they are
+
+	// competing consumers: messages leased to this sink, by their sequence number in this session.  acked is then sent less those still leased
+
+	boolean competing ;
+	final TreeMap<Long, MessageQueue.Lease> leased = new TreeMap<Long, MessageQueue.Lease>() ;
+
+
+	MessageQueueSink(MessageQueue messageQueue, SocketChannel channel) {
+
+		this.messageQueue = messageQueue ;
+		this.queue = messageQueue ;
+		this.channel = channel ;
+		this.remote = channel.socket().getRemoteSocketAddress().toString() ;
+	}
+
+	public void run() {		// per sink thread..
+
+		try {
+			Thread.currentThread().setName("MessageQueueSink-" + remote) ;
+			processSink() ;
+		}
+		catch (Exception e) {
+			System.err.println("Error in MessageQueueSink processSink:" + e) ;
+			e.printStackTrace() ;
+			try {
+				channel.close() ;
+			}
+			catch (Exception e2) { }
+		}
+	}
 
-	void processSink(Socket socket) throws Exception {
+	void processSink() throws Exception {
 
-		remote = socket.getRemoteSocketAddress().toString() ;
+		Socket socket = channel.socket() ;
+		socket.setTcpNoDelay(true) ;		// we flush each message, and may send its header and contents with separate writes
 		System.out.println("Sink session started: " + remote) ;
 		
 		// VERY simple protocol - we send them a message as soon as there is one and they ack its receipt (or drop the socket)
 		// They may have seen the message before - on restart, we resend last uncompleted file.
 		//
-		// We send: 'M', id (16 bytes), len (4 bytes), contents[len]
+		// We send: 'M' (or 'R' if it may be a replay), id (16 bytes), len (4 bytes), contents[len]
+		// They ack each message with 'Y'.
+		//
+		// Or, a sink can ask us to send up to window messages without waiting for their acks by sending 'P', window (4 bytes)
+		// in its hello.  It then acks cumulatively with 'A', number of messages received in this session (8 bytes).
+		//
+		// A sink wanting messages from a named queue rather than the default queue sends 'Q', len (4 bytes), name[len] (UTF-8)
+		// in its hello.  Only one sink at a time is sent a queue's messages: another waits for it to go.
+		// A partitioned queue has a sink for each partition, and a sink is sent the messages of the first partition without one.
+		//
+		// A sink's hello, sent as soon as it connects, is 'H', protocol version (1 byte, 1), any 'Q', 'Z' and 'P' frames, then
+		// 'E'.  A sink using the original protocol sends nothing before it receives a message, so if nothing arrives within
+		// sinkHelloWaitMillis, it is one, and gets the default queue, stop-and-wait.  A hello arriving after that ends the
+		// session, rather than being misread as an ack.
+		//
+		// With competingConsumers, any number of sinks share a queue, and a sink may ack any message it has been sent with
+		// 'K', the message's sequence number in this session (8 bytes, the first message being 1), as well as with 'Y' or 'A'.
+		//
+		// A prefetching sink can send 'Z' before its 'P' to be sent the blocks of messages a queue with compression "deflate"
+		// writes as they are, as 'Z', 1 if they may be replays else 0 (1 byte), count (4 bytes), len (4 bytes) of the messages
+		// inflated, compressedLen (4 bytes), compressed[compressedLen].  Inflated, each message is id (16 bytes), len (4 bytes),
+		// contents[len].  The messages of a block are acked as if sent one by one.  Messages not in a block (or whose block
+		// isn't all there to send, or is bigger than the window) are sent as 'M' or 'R' as usual.
 
 		bis = new BufferedInputStream(socket.getInputStream()) ;
 		bos = new BufferedOutputStream(socket.getOutputStream()) ;
+		readHello(socket) ;
+		MessageQueue namedQueue = queue ;
+		queue = namedQueue.claimSink() ;		// or one of its partitions
+		competing = queue.competingConsumers ;
+		try {
+			if ((queue != messageQueue) || (queue.partitionQueues != null)) System.out.println("Sink session for " + queue + ": " + remote) ;
+			sendToSink() ;
+		}
+		finally {
+			namedQueue.releaseSink(queue) ;
+		}
+	}
+
+	/** Read the hello the sink sends when it connects.  A sink that sends none gets the default queue, stop-and-wait **/
+
+	private void readHello(Socket socket) throws Exception {
+
+		socket.setSoTimeout(messageQueue.sinkHelloWaitMillis) ;		// 0 waits however long it takes
+		int b ;
+		try {
+			b = bis.read() ;
+		}
+		catch (SocketTimeoutException e) {
+			return ;					// it's waiting for its first message
+		}
+		finally {
+			socket.setSoTimeout(0) ;
+		}
+		if (b != 'H') throw new Exception((b == -1) ? "end of input from sink" : "Unexpected frame from sink: " + b) ;
+		int version = bis.read() ;
+		if (version != PROTOCOL_VERSION) throw new Exception("Unsupported sink protocol version: " + version) ;
+		while ((b = bis.read()) != 'E') {
+			if (b == 'Q') {
+				int len = readLen() ;
+				if ((len < 1) || (len > MessageQueue.MAX_QUEUE_NAME_LENGTH)) throw new Exception("Invalid queue name length: " + len) ;
+				byte queueName[] = new byte[len] ;
+				for (int i=0;i<len;i++) {
+					int j = bis.read() ;
+					if (j < 0) throw new Exception("Eof reading queue name") ;
+					queueName[i] = (byte) j ;
+				}
+				queue = messageQueue.queue(new String(queueName, "UTF-8")) ;
+			}
+			else if (b == 'Z') compressed = true ;
+			else if (b == 'P') startPrefetching() ;
+			else if (b == -1) throw new Exception("end of input from sink") ;
+			else throw new Exception("Unexpected frame from sink: " + b) ;
+		}
+	}
+
+	private void startPrefetching() throws Exception {		// this message and those that follow will be acked cumulatively
+
+		window = readLen() ;
+		if (window < 1) throw new Exception("Invalid prefetch window: " + window) ;
+		System.out.println("Sink prefetching " + window + " messages: " + remote) ;
+		prefetching = true ;
+		ackReader = new Thread(new Runnable() {
+			public void run() { readAcks() ; }
+		}, "MessageQueueSink-acks") ;
+		ackReader.start() ;
+	}
+
+	private void sendToSink() throws Exception {
 
 		while (true) {
 			try {
-				Message message = messageQueue.take() ;
+				Message message ;
+				if (competing) {
+					MessageQueue.Lease lease = queue.lease(this, sent + 1, false) ;
+					if (lease == null) {
+						bos.flush() ;				// send whatever we have before waiting for more
+						lease = queue.lease(this, sent + 1, true) ;
+					}
+					synchronized (this) {
+						sent++ ;
+						leased.put(sent, lease) ;
+						acked = sent - leased.size() ;
+					}
+					message = lease.message ;
+				}
+				else {
+					message = queue.poll() ;
+					if (message == null) {
+						bos.flush() ;				// send whatever we have before waiting for more
+						message = queue.take() ;
+					}
+					synchronized (this) {
+						sent++ ;
+					}
+					if (compressed && prefetching && (message.block != null) && (message.blockIndex == 0) && (message.block.count <= window)) {
+						awaitWindow(message.block.count - 1) ;		// room for the rest of the block..
+						if (queue.pollRestOfBlock(message)) {		// ..which is next in the queue, so send it all as it is
+							synchronized (this) {
+								sent += message.block.count - 1 ;
+							}
+							sendBlock(message) ;
+							awaitWindow(1) ;
+							continue ;
+						}
+					}
+				}
 				send(message) ;
-				messageQueue.lastMessageSentSuccessfully() ;
+				if (prefetching) awaitWindow(1) ;
+				else {
+					bos.flush() ;
+					int b = bis.read() ;		// wait for ack
+					if ((b == 'Y') && competing) ackLeases(sent, sent) ;
+					else if (b == 'Y') {
+						acked++ ;
+						queue.lastMessageSentSuccessfully() ;
+					}
+					else if ((b == 'K') && competing) {
+						long sequence = readLong() ;
+						ackLeases(sequence, sequence) ;
+					}
+					else if (b == 'H') throw new Exception("Sink's hello arrived more than sinkHelloWaitMillis (" + messageQueue.sinkHelloWaitMillis + ") after it connected") ;
+					else if (b == -1) throw new Exception("end of input reading sink ack") ;
+					else throw new Exception("didnt get sink ack: " + b) ;
+				}
 			}
 			catch (Exception e) {
-				System.err.println("Error in MessageQueueSinkListener send:" + e) ;
+				System.err.println("Error in MessageQueueSink send:" + e) ;
 				System.out.println("Sink session ended: " + remote) ;
 				e.printStackTrace() ;
+				try {
+					channel.close() ;
+				}
+				catch (Exception e2) { }
+				if (ackReader != null) ackReader.join() ;		// so no more acks can arrive..
+				if (!competing) queue.sinkSessionEnded() ;		// ..before the unacked messages are requeued
+				else {
+					ArrayList<MessageQueue.Lease> ended ;
+					synchronized (this) {
+						ended = new ArrayList<MessageQueue.Lease>(leased.values()) ;
+						leased.clear() ;
+					}
+					queue.leasesEnded(ended) ;
+				}
 				return ;
 			}				
 		}
 	}
 
-	void send(Message message) throws Exception {
+	/** In prefetch mode, wait until another more messages can be sent without more than window being unacked **/
 
-		bos.write(message.possibleReplay ? 'R' : 'M') ;
-		bos.write(message.id) ;
-		bos.write(ByteBuffer.allocate(4).putInt(message.contents.length).array()) ;
-		bos.write(message.contents) ;
-		bos.flush() ;
-		byte b = (byte) bis.read() ;	// wait for ack
-		if (b == -1) throw new Exception("end of input reading sink ack") ;
-		if (b != 'Y') throw new Exception("didnt get sink ack: " + b) ;
-	}		
-}
+	private void awaitWindow(int more) throws Exception {
 
-class Message {
+		synchronized (this) {
+			if (((sent - acked + more) <= window) && (failure == null)) return ;
+		}
+		bos.flush() ;		// they can't ack what they haven't got
+		synchronized (this) {
+			while (((sent - acked + more) > window) && (failure == null)) wait() ;
+			if (failure != null) throw new Exception("Sink ack failed: " + failure, failure) ;
+		}
+	}
 
-	static final byte[] OUR_ID_BASE = ByteBuffer.allocate(8).putLong(System.currentTimeMillis()).array() ;
-	static long seq ;
+	private void readAcks() {		// our ack reader thread, in prefetch mode
 
-	final byte[] id ;
-	final byte[] contents ;
-	final boolean possibleReplay ;
+		try {
+			while (true) {
+				int b = bis.read() ;
+				if (b == -1) throw new Exception("end of input reading sink ack") ;
+				if ((b == 'K') && competing) {
+					long sequence = readLong() ;
+					ackLeases(sequence, sequence) ;
+					continue ;
+				}
+				if (b != 'A') throw new Exception("didnt get sink ack: " + b) ;
+				long total = readLong() ;
+				if (competing) {
+					ackLeases(1, total) ;
+					continue ;
+				}
+				int count ;
+				synchronized (this) {
+					if ((total < acked) || (total > sent)) throw new Exception("Invalid sink ack: " + total + ", sent:" + sent + ", acked:" + acked) ;
+					count = (int) (total - acked) ;
+				}
+				queue.messagesSentSuccessfully(count) ;	// removes them all from the head of the queue together
+				synchronized (this) {
+					acked = total ;
+					notifyAll() ;
+				}
+			}
+		}
+		catch (Exception e) {
+			synchronized (this) {
+				failure = e ;
+				notifyAll() ;
+			}
+		}
+	}
 
-	File messageIsLastInThisFile ;
+	/** Competing consumers: the sink has acked the messages with sequence numbers from first to last **/
 
-	Message(byte[] id, byte[] contents, boolean possibleReplay) {
+	private void ackLeases(long first, long last) throws Exception {
 
-		this.id = id ;
-		this.contents = contents ;
-		this.possibleReplay = possibleReplay ;
+		ArrayList<MessageQueue.Lease> acks = new ArrayList<MessageQueue.Lease>() ;
+		synchronized (this) {
+			if ((first < 1) || (last > sent)) throw new Exception("Invalid sink ack: " + first + "-" + last + ", sent:" + sent) ;
+			SortedMap<Long, MessageQueue.Lease> range = leased.subMap(first, last + 1) ;
+			acks.addAll(range.values()) ;		// not there if already acked, or the lease expired
+			range.clear() ;
+			acked = sent - leased.size() ;
+			notifyAll() ;
+		}
+		for (MessageQueue.Lease lease: acks) queue.leaseAcked(lease) ;
 	}
 
-	Message(byte[] contents) {	// need to generate our own id
+	/** Competing consumers: the message queue has taken back a message leased to us, because its lease expired **/
+
+	synchronized void leaseEnded(MessageQueue.Lease lease) {
 
-		this.id = genId() ;
-		this.contents = contents ;
-		this.possibleReplay = false ;
+		if (leased.get(lease.sequence) == lease) leased.remove(lease.sequence) ;
+		acked = sent - leased.size() ;
+		notifyAll() ;
 	}
 
-	static synchronized long incId() {
+	long readLong() throws Exception {
 
-		return ++seq ;
+		for (int i=0;i<8;i++) {
+			int j = bis.read() ;
+			if (j < 0) throw new Exception("Eof reading sink ack") ;
+			ackBuffer.put(i, (byte) j) ;
+		}
+		return ackBuffer.getLong(0) ;
 	}
 
-	byte[] genId() {
+	int readLen() throws Exception {
 
-		byte[] id = new byte[16] ;
-		for (int i=0;i<8;i++) id[i] = OUR_ID_BASE[i] ;
-		byte[] ourSeqBytes = ByteBuffer.allocate(8).putLong(incId()).array() ;
-		for (int i=0;i<8;i++) id[i+8] = ourSeqBytes[i] ;
-		return id ;
+		for (int i=0;i<4;i++) {
+			int j = bis.read() ;
+			if (j < 0) throw new Exception("Eof reading length") ;
+			lenBuffer.put(i, (byte) j) ;
+		}
+		return lenBuffer.getInt(0) ;
 	}
 
-	void setAsLastInFile(File f) {
+	/** Send first's block, which the sink will inflate into the messages from first on **/
+
+	void sendBlock(Message first) throws Exception {
 
-		messageIsLastInThisFile = f ;
+		MessageQueueBlock block = first.block ;
+		bos.write('Z') ;
+		bos.write(first.possibleReplay ? 1 : 0) ;		// the messages of a block are written, and read back from disk, together
+		bos.write(lenBuffer.putInt(0, block.count).array()) ;
+		bos.write(lenBuffer.putInt(0, block.length).array()) ;
+		bos.write(lenBuffer.putInt(0, block.compressed.length).array()) ;
+		bos.write(block.compressed) ;		// flushed by the caller
 	}
+
+	void send(Message message) throws Exception {
+
+		if (message.contents != null) {
+			bos.write(message.possibleReplay ? 'R' : 'M') ;
+			bos.write(message.id) ;
+			bos.write(lenBuffer.putInt(0, message.contentsLength).array()) ;
+			bos.write(message.contents) ;		// flushed by the caller
+		}
+		else if (message.contentsBuffer != null) {	// contents are in a (mapped or arena) buffer
+			frameHeader.clear() ;
+			frameHeader.put(message.possibleReplay ? (byte) 'R' : (byte) 'M') ;
+			if (message.id != null) frameHeader.put(message.id) ;
+			else for (int i=0;i<16;i++) frameHeader.put(message.contentsBuffer.get((int) message.contentsPosition - 16 + i)) ;	// in the arena, just before the contents
+			frameHeader.putInt(message.contentsLength).flip() ;
+			if (message.contentsLength <= COPY_THRESHOLD) {		// small: copy it to go with the messages around it, rather than a write of its own
+				bos.write(frameHeader.array(), 0, frameHeader.limit()) ;
+				message.contentsBuffer.get((int) message.contentsPosition, copyBuffer, 0, message.contentsLength) ;	// absolute, so no duplicate
+				bos.write(copyBuffer, 0, message.contentsLength) ;
+			}
+			else {				// write it with the header directly to the socket, in one go
+				bos.flush() ;
+				frame[0] = frameHeader ;
+				frame[1] = message.contentsBuffer.duplicate().limit((int) message.contentsPosition + message.contentsLength).position((int) message.contentsPosition) ;
+				while (frame[1].hasRemaining()) channel.write(frame) ;
+				frame[1] = null ;
+			}
+		}
+		else {					// contents are in a file: write the header, then have the OS send the contents from the file
+			bos.flush() ;
+			frameHeader.clear() ;
+			frameHeader.put(message.possibleReplay ? (byte) 'R' : (byte) 'M').put(message.id).putInt(message.contentsLength).flip() ;
+			while (frameHeader.hasRemaining()) channel.write(frameHeader) ;
+			long position = message.contentsPosition ;
+			long end = position + message.contentsLength ;
+			while (position < end) {
+				long i = message.contentsChannel.transferTo(position, end - position, channel) ;
+				if ((i <= 0) && (position >= message.contentsChannel.size())) throw new Exception("message contents truncated in file") ;
+				position += i ;
+			}
+		}
+	}		
 }
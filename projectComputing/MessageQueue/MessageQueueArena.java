@@ -0,0 +1,94 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueArena - off-heap storage for the ids and contents of messages in the in-memory queue.
+
+  Each message's id and contents are appended to the newest of a list of direct ByteBuffer chunks, and the message is
+  replaced in the queue by one holding just the chunk and the position and length of its contents, so a big in-memory
+  queue is a lot of small fixed-size objects on the java heap rather than 2 byte[]s per message.
+
+  Because the queue is first-in first-out, so is the arena: messages are released in the order they were appended,
+  and a chunk is recycled when every message in it has been released.  A message too big for a chunk gets its own.
+  All methods must be called with the message queue locked.
+**/
+
+import java.nio.* ;
+import java.util.* ;
+
+class MessageQueueArena {
+
+	static final int MAX_SPARE_CHUNKS = 2 ;		// released chunks kept for reuse, rather than left to the garbage collector to free
+
+	private final int chunkSize ;
+	private final ArrayDeque<Chunk> chunks = new ArrayDeque<Chunk>() ;		// chunks holding messages, oldest first
+	private final ArrayDeque<Chunk> spare = new ArrayDeque<Chunk>() ;
+	long allocated = 0 ;			// bytes of direct memory in chunks, including spares
+
+	MessageQueueArena(int chunkSize) {
+
+		this.chunkSize = chunkSize ;
+	}
+
+	/** Returns a message equivalent to message, with its id and contents copied into the arena **/
+
+	Message add(Message message) {
+
+		int recordSize = message.id.length + message.contentsLength ;
+		Chunk chunk = chunks.peekLast() ;
+		if ((chunk == null) || (chunk.buffer.remaining() < recordSize)) {
+			if ((recordSize <= chunkSize) && !spare.isEmpty()) chunk = spare.remove() ;
+			else {
+				chunk = new Chunk(ByteBuffer.allocateDirect(Math.max(chunkSize, recordSize))) ;
+				allocated += chunk.buffer.capacity() ;
+			}
+			chunks.add(chunk) ;
+		}
+		chunk.buffer.put(message.id) ;
+		int position = chunk.buffer.position() ;
+		chunk.buffer.put(message.contents) ;
+		chunk.records++ ;
+		Message arenaMessage = new Message(this, chunk.view, position, message.contentsLength, message.possibleReplay) ;
+		arenaMessage.messageIsLastInThisFile = message.messageIsLastInThisFile ;
+		arenaMessage.block = message.block ;
+		arenaMessage.blockIndex = message.blockIndex ;
+		return arenaMessage ;
+	}
+
+	/** The oldest message in the arena has been taken off the queue for good **/
+
+	void release(Message message) throws Exception {
+
+		Chunk chunk = chunks.peek() ;
+		if ((chunk == null) || (chunk.view != message.contentsBuffer)) throw new Exception("message released from the arena out of order") ;
+		if (--chunk.records > 0) return ;
+		if (chunks.size() == 1) chunk.buffer.clear() ;		// empty, but still the newest: start filling it again
+		else {
+			chunks.remove() ;
+			if ((chunk.buffer.capacity() == chunkSize) && (spare.size() < MAX_SPARE_CHUNKS)) {
+				chunk.buffer.clear() ;
+				spare.add(chunk) ;
+			}
+			else allocated -= chunk.buffer.capacity() ;	// freed when the garbage collector finds it unreferenced
+		}
+	}
+
+	/** Bytes a message in the arena takes in it **/
+
+	static int Size(Message message) {
+
+		return 16 + message.contentsLength ;
+	}
+
+	private static class Chunk {
+
+		final ByteBuffer buffer ;		// appended to under the message queue lock..
+		final ByteBuffer view ;			// ..and read by the sink through duplicates of this, whose position and limit never change
+		int records = 0 ;
+
+		Chunk(ByteBuffer buffer) {
+
+			this.buffer = buffer ;
+			this.view = buffer.duplicate() ;
+		}
+	}
+}
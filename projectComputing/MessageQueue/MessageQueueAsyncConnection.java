@@ -0,0 +1,196 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueAsyncConnection - a non-blocking connection to a MessageQueue, for MessageQueueAsyncWriter and MessageQueueAsyncReader.
+
+  Uses an AsynchronousSocketChannel, so its reads and writes complete on the threads of a channel group (by default,
+  the JVM's shared group), rather than any connection having a thread of its own.  A read is always outstanding:
+  whatever arrives is passed to received(), which takes as many whole frames as have arrived, and the rest waits for
+  more input.  Frames to send are queued, and written in order, as many as are queued with each gathering write.
+
+  Completion handlers must not block: they are run by the channel group's few threads, which every connection shares.
+**/
+
+import java.io.*;
+import java.net.*;
+import java.nio.* ;
+import java.nio.channels.* ;
+import java.util.* ;
+import java.util.concurrent.* ;
+
+abstract class MessageQueueAsyncConnection {
+
+	static final int INPUT_BUFFER_SIZE = 16 * 1024 ;		// grown for a bigger frame
+	static final int MAX_GATHER = 64 ;					// frames written by one gathering write
+
+	final AsynchronousSocketChannel channel ;
+	private ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE) ;
+
+	private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>() ;	// our lock for writing
+	private final ByteBuffer gathered[] = new ByteBuffer[MAX_GATHER] ;		// being written
+	private int gatheredCount = 0 ;
+	private boolean writing = false ;		// a write is outstanding
+	private boolean ending = false ;		// close once everything queued has been written
+
+	volatile Exception failure ;			// the connection has failed, or been closed
+	final CompletableFuture<Void> closed = new CompletableFuture<Void>() ;
+
+	/** Connects, using the default channel group if group is null **/
+
+	MessageQueueAsyncConnection(String serverAddr, int serverPort, AsynchronousChannelGroup group) throws Exception {
+
+		channel = AsynchronousSocketChannel.open(group) ;
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true) ;		// acks are tiny, and the other end may be waiting for them
+		try {
+			channel.connect(new InetSocketAddress(serverAddr, serverPort)).get() ;
+		}
+		catch (ExecutionException e) {
+			channel.close() ;
+			throw (Exception) e.getCause() ;
+		}
+	}
+
+	/** Take as many whole frames as have arrived from input (ready to get), and return 0, or the length of the partial
+		frame left, if input must be bigger to hold it
+	**/
+
+	abstract int received(ByteBuffer input) throws Exception ;
+
+	/** The connection has failed, or been closed **/
+
+	abstract void failed(Exception e) ;
+
+	/** Start reading, once the subclass is ready for received() **/
+
+	void startReading() {
+
+		channel.read(input, null, readHandler) ;
+	}
+
+	private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+
+		public void completed(Integer n, Void v) {
+
+			try {
+				if (n < 0) throw new Exception("Unexpected eof from message queue") ;
+				input.flip() ;
+				int needed = received(input) ;
+				input.compact() ;
+				if (needed > input.capacity()) {
+					ByteBuffer bigger = ByteBuffer.allocate(needed) ;
+					input.flip() ;
+					bigger.put(input) ;
+					input = bigger ;
+				}
+				channel.read(input, null, this) ;
+			}
+			catch (Exception e) {
+				fail(e) ;
+			}
+		}
+
+		public void failed(Throwable t, Void v) {
+
+			fail(t) ;
+		}
+	} ;
+
+	/** Queue a frame to be written after those already queued **/
+
+	void output(ByteBuffer frame) {
+
+		synchronized (output) {
+			if ((failure != null) || ending) return ;
+			output.add(frame) ;
+			if (writing) return ;		// the outstanding write's handler will write it
+			writing = true ;
+		}
+		writeQueued() ;
+	}
+
+	private void writeQueued() {
+
+		boolean close = false ;
+		synchronized (output) {
+			gatheredCount = 0 ;
+			while ((gatheredCount < MAX_GATHER) && !output.isEmpty()) gathered[gatheredCount++] = output.poll() ;
+			if (gatheredCount == 0) {
+				writing = false ;
+				close = ending ;
+			}
+		}
+		if (close) close() ;
+		else if (gatheredCount > 0) channel.write(gathered, 0, gatheredCount, 0L, TimeUnit.MILLISECONDS, null, writeHandler) ;
+	}
+
+	private final CompletionHandler<Long, Void> writeHandler = new CompletionHandler<Long, Void>() {
+
+		public void completed(Long n, Void v) {
+
+			for (int i=0;i<gatheredCount;i++) {
+				if (gathered[i].hasRemaining()) {		// a partial write: write the rest
+					channel.write(gathered, i, gatheredCount - i, 0L, TimeUnit.MILLISECONDS, null, this) ;
+					return ;
+				}
+			}
+			for (int i=0;i<gatheredCount;i++) gathered[i] = null ;
+			writeQueued() ;
+		}
+
+		public void failed(Throwable t, Void v) {
+
+			fail(t) ;
+		}
+	} ;
+
+	/** Close once everything queued has been written.  closed completes when it has **/
+
+	void end() {
+
+		synchronized (output) {
+			if (ending) return ;
+			ending = true ;
+			if (writing) return ;		// closed when the last write completes
+		}
+		close() ;
+	}
+
+	private void close() {
+
+		synchronized (output) {
+			if (failure != null) return ;		// it failed first
+			failure = new Exception("Connection to message queue closed") ;
+		}
+		try {
+			channel.close() ;		// the outstanding read fails, and is ignored
+		}
+		catch (IOException e) { }
+		closed.complete(null) ;
+		failed(failure) ;
+	}
+
+	private void fail(Throwable t) {
+
+		synchronized (output) {
+			if (failure != null) return ;		// already failed, or closed
+			failure = (t instanceof Exception) ? (Exception) t : new Exception(t) ;
+			output.clear() ;
+		}
+		try {
+			channel.close() ;
+		}
+		catch (IOException e) { }
+		closed.completeExceptionally(failure) ;
+		failed(failure) ;
+	}
+
+	public String toString() {
+
+		try {
+			return "Connected to message queue " + channel.getRemoteAddress() ;
+		}
+		catch (Exception e) {
+			return "Not connected" ;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueAsyncReader - a non-blocking MessageQueueReader, which pushes messages to a Flow.Subscriber
+
+  use like this:
+
+	MessageQueueAsyncReader mqReader = new MessageQueueAsyncReader(serverAddr, serverPort, 1000) ;
+	mqReader.subscribe(new Flow.Subscriber<ReceivedMessageQueueMessage>() {
+
+		Flow.Subscription subscription ;
+
+		public void onSubscribe(Flow.Subscription subscription) {
+
+			this.subscription = subscription ;
+			subscription.request(100) ;
+		}
+
+		public void onNext(ReceivedMessageQueueMessage message) {
+
+			...
+			subscription.request(1) ;
+		}
+
+		public void onError(Throwable t) { ... }		// the connection failed
+
+		public void onComplete() { ... }		// mqReader.close() was called
+	}) ;
+
+  The message queue sends up to prefetch messages ahead of their acks, and they wait here until the subscriber
+  requests them.  Each is acked once onNext() has returned, cumulatively, as MessageQueueReader acks with a prefetch:
+  when every message that has arrived has been delivered, or at least every prefetch/2 messages.  So messages are
+  sent no faster than the subscriber asks for them, and any not yet delivered when the connection goes are sent again,
+  in order, to the next sink.  Cancelling the subscription (or closing the reader) acks what has been delivered,
+  including a message whose onNext() cancels, and closes the connection.  A message whose onNext() throws isn't acked,
+  and the subscription is cancelled.
+
+  A reader has one subscriber.  onNext() is called on the channel group's threads (or by request(), on the thread
+  calling it), one message at a time, and must not block.
+**/
+
+import java.nio.* ;
+import java.nio.channels.* ;
+import java.util.* ;
+import java.util.concurrent.* ;
+
+public class MessageQueueAsyncReader extends MessageQueueAsyncConnection implements Flow.Publisher<ReceivedMessageQueueMessage> {
+
+	static final int HEADER_LENGTH = 1 + 16 + 4 ;		// 'M' or 'R', id, len
+
+	final int prefetch ;
+	final int ackBatch ;		// ack at least this often even when more messages are waiting to be delivered
+	private final ArrayDeque<ReceivedMessageQueueMessage> arrived = new ArrayDeque<ReceivedMessageQueueMessage>() ;
+	private long count = 0 ;			// messages arrived
+	private long delivered = 0 ;
+	private long acked = 0 ;
+
+	private Flow.Subscriber<? super ReceivedMessageQueueMessage> subscriber ;
+	private long demand = 0 ;
+	private boolean delivering = false ;		// a thread is in deliver()
+	private boolean closing = false ;
+	private boolean terminated = false ;		// the subscriber has been sent onComplete or onError, or has cancelled
+	private Throwable error ;				// to send the subscriber, rather than the connection's failure
+
+	public MessageQueueAsyncReader(String serverAddr, int serverSinkPort, int prefetch) throws Exception {
+
+		this(serverAddr, serverSinkPort, prefetch, null) ;
+	}
+
+	/** Reads from the named queue, which is created if it doesn't exist, or the default queue if queueName is null **/
+
+	public MessageQueueAsyncReader(String serverAddr, int serverSinkPort, int prefetch, String queueName) throws Exception {
+
+		this(serverAddr, serverSinkPort, prefetch, queueName, null) ;
+	}
+
+	/** Completes its reads and writes, and so calls onNext(), on the threads of group, or of the default group if it is null **/
+
+	public MessageQueueAsyncReader(String serverAddr, int serverSinkPort, int prefetch, String queueName, AsynchronousChannelGroup group) throws Exception {
+
+		super(serverAddr, serverSinkPort, group) ;
+		if (prefetch < 1) throw new Exception("prefetch must be at least 1") ;
+		this.prefetch = prefetch ;
+		this.ackBatch = Math.max(1, prefetch / 2) ;
+
+		byte name[] = (queueName != null) ? queueName.getBytes("UTF-8") : null ;
+		ByteBuffer hello = ByteBuffer.allocate(2 + ((name != null) ? 5 + name.length : 0) + 5 + 1) ;
+		hello.put((byte) 'H').put((byte) MessageQueueReader.PROTOCOL_VERSION) ;
+		if (name != null) hello.put((byte) 'Q').putInt(name.length).put(name) ;		// name the queue to read from
+		hello.put((byte) 'P').putInt(prefetch) ;		// ask for prefetching, cumulative acks
+		hello.put((byte) 'E') ;
+		hello.flip() ;
+		output(hello) ;
+		startReading() ;
+	}
+
+	public void subscribe(Flow.Subscriber<? super ReceivedMessageQueueMessage> subscriber) {
+
+		boolean first ;
+		synchronized (this) {
+			first = (this.subscriber == null) ;
+			if (first) this.subscriber = subscriber ;
+		}
+		if (!first) {		// the spec wants onSubscribe before onError
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) { }
+				public void cancel() { }
+			}) ;
+			subscriber.onError(new IllegalStateException("MessageQueueAsyncReader already has a subscriber")) ;
+			return ;
+		}
+		subscriber.onSubscribe(new Flow.Subscription() {
+			public void request(long n) { MessageQueueAsyncReader.this.request(n) ; }
+			public void cancel() { MessageQueueAsyncReader.this.cancel() ; }
+		}) ;
+		deliver() ;		// it may already have failed
+	}
+
+	private void request(long n) {
+
+		synchronized (this) {
+			if (n <= 0) {
+				if (error == null) error = new IllegalArgumentException("Flow.Subscription.request(" + n + ") must request at least 1") ;
+			}
+			else demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n ;		// unbounded, once it overflows
+		}
+		deliver() ;
+	}
+
+	private void cancel() {
+
+		synchronized (this) {
+			terminated = true ;
+		}
+		close() ;
+	}
+
+	/** Ack what has been delivered and close the connection.  The subscriber's onComplete() is called, unless it has already
+		been sent onError.  The future completes when the connection is closed
+	**/
+
+	public CompletableFuture<Void> close() {
+
+		synchronized (this) {
+			if (!closing) {
+				closing = true ;
+				if (delivered > acked) ack() ;
+				end() ;
+			}
+		}
+		deliver() ;
+		return closed ;
+	}
+
+	/** Messages: 'M' (or 'R' if it may be a replay), id (16 bytes), len (4 bytes), contents[len] **/
+
+	int received(ByteBuffer input) throws Exception {
+
+		int arrivals = 0 ;
+		while (input.remaining() >= HEADER_LENGTH) {
+			int start = input.position() ;
+			byte b = input.get(start) ;
+			if ((b != 'M') && (b != 'R')) throw new Exception("Unexpected message type from message queue: " + b) ;
+			int len = input.getInt(start + 17) ;
+			if (len < 0) throw new Exception("Invalid message length from message queue: " + len) ;
+			if (input.remaining() < HEADER_LENGTH + len) return HEADER_LENGTH + len ;
+			input.get() ;
+			byte id[] = new byte[16] ;
+			input.get(id) ;
+			input.getInt() ;
+			byte contents[] = new byte[len] ;
+			input.get(contents) ;
+			synchronized (this) {
+				arrived.add(new ReceivedMessageQueueMessage(id, contents, (b == 'R'), ++count)) ;
+			}
+			arrivals++ ;
+		}
+		if (arrivals > 0) deliver() ;
+		return 0 ;
+	}
+
+	void failed(Exception e) {
+
+		deliver() ;		// onError, or onComplete if we closed it
+	}
+
+	/** Call onNext() for each message the subscriber has asked for, one at a time, on one thread at a time: a thread finding
+		another delivering leaves it to deliver what it has added or requested.  Then onComplete() or onError(), once
+	**/
+
+	private void deliver() {
+
+		synchronized (this) {
+			if (delivering) return ;
+			delivering = true ;
+		}
+		while (true) {
+			ReceivedMessageQueueMessage message = null ;
+			Throwable signal = null ;
+			synchronized (this) {
+				if ((subscriber == null) || terminated) {
+					delivering = false ;
+					return ;
+				}
+				if ((error != null) || closing || (failure != null)) {
+					terminated = true ;
+					signal = (error != null) ? error : closing ? null : failure ;
+				}
+				else if ((demand > 0) && !arrived.isEmpty()) {
+					message = arrived.poll() ;
+					if (demand != Long.MAX_VALUE) demand-- ;
+					delivered++ ;		// so cancelling in onNext() acks it
+				}
+				else {
+					delivering = false ;
+					return ;
+				}
+			}
+			if (message == null) {		// terminated
+				if (signal == null) subscriber.onComplete() ;
+				else subscriber.onError(signal) ;
+				close() ;
+				continue ;
+			}
+			try {
+				subscriber.onNext(message) ;
+			}
+			catch (Throwable t) {
+				System.err.println("Error in MessageQueueAsyncReader subscriber onNext: " + t) ;
+				t.printStackTrace() ;
+				synchronized (this) {
+					delivered-- ;		// not acked, so it will be sent again
+				}
+				cancel() ;
+				continue ;
+			}
+			synchronized (this) {
+				if (arrived.isEmpty() || ((delivered - acked) >= ackBatch)) ack() ;
+			}
+		}
+	}
+
+	private void ack() {		// with our lock: 'A' and the count of messages delivered
+
+		ByteBuffer frame = ByteBuffer.allocate(9) ;
+		frame.put((byte) 'A').putLong(delivered) ;
+		frame.flip() ;
+		output(frame) ;
+		acked = delivered ;
+	}
+
+	public String toString() {
+
+		return super.toString() + ", received count:" + delivered ;
+	}
+}
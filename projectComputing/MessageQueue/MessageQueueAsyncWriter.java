@@ -0,0 +1,212 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueAsyncWriter - a non-blocking MessageQueueWriter, for sources that can't spare a thread per connection
+
+  use like this:
+
+	MessageQueueAsyncWriter mqWriter = new MessageQueueAsyncWriter(serverAddr, serverPort, 1000) ;
+	...
+	mqWriter.write(contents).thenAccept(seq -> ...) ;		// or write(id, contents)
+	...
+	mqWriter.close().get() ;		// or compose on it
+
+  write() never blocks: it returns a CompletableFuture which completes with the message's sequence number on this
+  connection (starting at 1) when the message queue has acked it, or completes exceptionally if the connection fails
+  first.  Any number of writes, from any threads, share the connection.  Up to window messages are sent ahead of their
+  acks (which are cumulative, as for a MessageQueueWriter with a window); the rest wait here, in order, until acks
+  make room.  The caller bounds how many wait, for example by counting its incomplete futures, or with outstanding().
+
+  It always asks for flow control, so when the message queue pauses it at a watermark, messages wait here rather than in
+  the connection, and isBusy() says so.
+
+  The futures are completed on the channel group's threads, so what is run when they complete must not block (use
+  thenApplyAsync() and friends for work that does).
+**/
+
+import java.nio.* ;
+import java.nio.channels.* ;
+import java.util.* ;
+import java.util.concurrent.* ;
+
+public class MessageQueueAsyncWriter extends MessageQueueAsyncConnection {
+
+	final int window ;
+	private final ArrayDeque<CompletableFuture<Long>> unacked = new ArrayDeque<CompletableFuture<Long>>() ;	// sent, then waiting, oldest first
+	private final ArrayDeque<ByteBuffer> waiting = new ArrayDeque<ByteBuffer>() ;		// frames not yet sent
+	private long sent = 0 ;
+	private long acked = 0 ;
+	private volatile boolean busy = false ;		// the message queue has told us it is paused by a watermark
+	private boolean closing = false ;
+	private final CompletableFuture<Void> allAcked = new CompletableFuture<Void>() ;
+
+	public MessageQueueAsyncWriter(String serverAddr, int serverPort, int window) throws Exception {
+
+		this(serverAddr, serverPort, window, null) ;
+	}
+
+	/** Sends to the named queue, which is created if it doesn't exist, or the default queue if queueName is null **/
+
+	public MessageQueueAsyncWriter(String serverAddr, int serverPort, int window, String queueName) throws Exception {
+
+		this(serverAddr, serverPort, window, queueName, null) ;
+	}
+
+	/** Completes its reads and writes on the threads of group, or of the default group if it is null **/
+
+	public MessageQueueAsyncWriter(String serverAddr, int serverPort, int window, String queueName, AsynchronousChannelGroup group) throws Exception {
+
+		super(serverAddr, serverPort, group) ;
+		if (window < 1) throw new Exception("window must be at least 1") ;
+		this.window = window ;
+
+		byte name[] = (queueName != null) ? queueName.getBytes("UTF-8") : null ;
+		ByteBuffer hello = ByteBuffer.allocate(1 + ((name != null) ? 5 + name.length : 0) + 5) ;
+		hello.put((byte) 'F') ;		// ask to be told when the message queue is busy
+		if (name != null) hello.put((byte) 'Q').putInt(name.length).put(name) ;		// name the queue to send to
+		hello.put((byte) 'P').putInt(window) ;		// ask for pipelined, cumulative acks
+		hello.flip() ;
+		output(hello) ;
+		startReading() ;
+	}
+
+	public CompletableFuture<Long> write(byte message[]) {
+
+		return write(null, message) ;
+	}
+
+	/** Queue a message to send, returning a future which completes with its sequence number on this connection when it is acked **/
+
+	public CompletableFuture<Long> write(byte id[], byte message[]) {
+
+		CompletableFuture<Long> future = new CompletableFuture<Long>() ;
+		if ((message == null) || (message.length == 0)) future.completeExceptionally(new Exception("no message supplied")) ;
+		else if ((id != null) && (id.length != 16)) future.completeExceptionally(new Exception("id must be null or 16 bytes")) ;
+		if (future.isDone()) return future ;
+
+		ByteBuffer frame = ByteBuffer.allocate(1 + ((id != null) ? 16 : 0) + 4 + message.length) ;
+		if (id == null) frame.put((byte) 'M') ;
+		else frame.put((byte) 'I').put(id) ;
+		frame.putInt(message.length).put(message) ;
+		frame.flip() ;
+
+		synchronized (this) {
+			if ((failure != null) || closing) {
+				future.completeExceptionally((failure != null) ? failure : new Exception("MessageQueueAsyncWriter closed")) ;
+				return future ;
+			}
+			unacked.add(future) ;
+			if (!busy && waiting.isEmpty() && ((sent - acked) < window)) {
+				sent++ ;
+				output(frame) ;
+			}
+			else waiting.add(frame) ;
+		}
+		return future ;
+	}
+
+	/** The number of messages written and not yet acked, whether sent or waiting to be **/
+
+	public synchronized int outstanding() {
+
+		return unacked.size() ;
+	}
+
+	/** True if the message queue last told us it has reached a watermark, and so isn't accepting messages **/
+
+	public boolean isBusy() {
+
+		return busy ;
+	}
+
+	/** Stop accepting messages, and close the connection when all those written have been acked.  The future completes
+		when it is closed, or completes exceptionally if a message could not be sent or acked
+	**/
+
+	public CompletableFuture<Void> close() {
+
+		synchronized (this) {
+			closing = true ;
+			if (unacked.isEmpty()) finish() ;
+		}
+		return allAcked ;
+	}
+
+	/** Acks ('A' and the 8 byte count of messages persisted from this connection) and, as we asked for flow control,
+		'B' when the message queue pauses us and 'G' when it resumes
+	**/
+
+	int received(ByteBuffer input) throws Exception {
+
+		while (input.hasRemaining()) {
+			byte b = input.get(input.position()) ;
+			if ((b == 'B') || (b == 'G')) {
+				input.get() ;
+				synchronized (this) {
+					busy = (b == 'B') ;
+					sendWaiting() ;
+				}
+				continue ;
+			}
+			if (b != 'A') throw new Exception("Unexpected ack type from message queue: " + b) ;
+			if (input.remaining() < 9) return 0 ;
+			input.get() ;
+			acked(input.getLong()) ;
+		}
+		return 0 ;
+	}
+
+	private void acked(long seq) throws Exception {
+
+		ArrayList<CompletableFuture<Long>> done = new ArrayList<CompletableFuture<Long>>() ;
+		long first ;
+		boolean finished ;
+		synchronized (this) {
+			if (seq > sent) throw new Exception("Ack for message " + seq + " not sent") ;
+			first = acked + 1 ;
+			while (acked < seq) {
+				done.add(unacked.poll()) ;
+				acked++ ;
+			}
+			sendWaiting() ;
+			finished = closing && unacked.isEmpty() ;
+		}
+		for (CompletableFuture<Long> future: done) future.complete(first++) ;		// without our lock, as they may write
+		if (finished) synchronized (this) {
+			finish() ;
+		}
+	}
+
+	private void sendWaiting() {		// with our lock
+
+		while (!busy && !waiting.isEmpty() && ((sent - acked) < window)) {
+			sent++ ;
+			output(waiting.poll()) ;
+		}
+	}
+
+	private void finish() {		// with our lock
+
+		output(ByteBuffer.wrap(new byte[] { 'E' })) ;		// orderly eof
+		end() ;
+	}
+
+	void failed(Exception e) {
+
+		ArrayList<CompletableFuture<Long>> failed ;
+		synchronized (this) {
+			failed = new ArrayList<CompletableFuture<Long>>(unacked) ;
+			unacked.clear() ;
+			waiting.clear() ;
+			busy = false ;
+		}
+		for (CompletableFuture<Long> future: failed) future.completeExceptionally(e) ;
+		if (failed.isEmpty() && closing) allAcked.complete(null) ;
+		else allAcked.completeExceptionally(e) ;
+	}
+
+	public String toString() {
+
+		return super.toString() + ", acked count:" + acked ;
+	}
+}
@@ -0,0 +1,123 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueBacklog - a cursor over the closed message queue files not yet read into memory.
+
+  Files are read one message at a time, in name (and so creation) order, so the message queue can read ahead just a
+  bounded window of a backlog, however big its files are, and start delivering as soon as the first message is read.
+  The file currently being written is never read: the message queue closes it when it wants to read what's in it.
+  One message of lookahead tells us when a message is the last in its file, so the file is deleted when that message is acked.
+  At startup, the queue's checkpoint says which files, and how many messages of the next, the sink had already acked.
+  With prefetchBacklog, the queue's MessageQueuePrefetcher reads it without the queue locked, so what is shared with
+  the queue is only touched with it locked.
+**/
+
+import java.io.*;
+import java.util.* ;
+
+class MessageQueueBacklog {
+
+	private final MessageQueue messageQueue ;
+	private final File directory ;
+	private String lastFileName ;			// files up to and including this have been read (or are being read)
+	private boolean possibleReplay ;		// true until the first file is finished, when created at startup
+	private String ackedFileName ;			// at startup, files up to and including this were acked before the restart..
+	private long skip = 0 ;					// ..as were this many messages of the next
+	private MessageQueueFile.Reader reader ;
+	private Message lookahead ;
+
+	/** Reads files named after afterFileName (or all files if null).  At startup, the sink may already have seen some of the first file **/
+
+	MessageQueueBacklog(MessageQueue messageQueue, String afterFileName, boolean atStartup) {
+
+		this.messageQueue = messageQueue ;
+		this.directory = messageQueue.messageQueueDirectory ;
+		this.lastFileName = afterFileName ;
+		this.possibleReplay = atStartup ;
+		if (atStartup && (messageQueue.checkpoint != null)) {
+			ackedFileName = messageQueue.checkpoint.ackedFileName ;
+			skip = messageQueue.checkpoint.acked ;
+		}
+	}
+
+	/** Returns the next message in the backlog, or null if every closed file has been read.  Call with the message queue
+	    locked, or from its prefetcher
+	**/
+
+	Message next() throws Exception {
+
+		while (true) {
+			if ((reader == null) && !openNextFile()) return null ;
+			boolean skipped = false ;
+			if (skip > 0) {		// dont send again what was acked before the restart
+				long n = 0 ;
+				while ((n < skip) && reader.skip()) n++ ;
+				if (MessageQueue.DEBUG) System.err.println("Skipped " + n + " messages acked before restart in " + reader.f) ;
+				skip = 0 ;
+				skipped = true ;
+			}
+			Message message = (lookahead != null) ? lookahead : reader.next(possibleReplay) ;
+			lookahead = null ;
+			if (message == null) {			// no messages (not already acked) in the file - nothing will be acked to delete it, so delete it now
+				File f = reader.f ;
+				closeReader() ;
+				synchronized (messageQueue) {
+					if (skipped) messageQueue.checkpoint.fileAcked(f) ;
+					messageQueue.recycle(f) ;
+				}
+				continue ;
+			}
+			lookahead = reader.next(possibleReplay) ;
+			if (lookahead == null) {		// last message in the file: when it is acked, the file can be deleted
+				message.setAsLastInFile(reader.f) ;
+				closeReader() ;
+			}
+			return message ;
+		}
+	}
+
+	private void closeReader() throws Exception {
+
+		if (MessageQueue.DEBUG) System.err.println("Backlog file read: " + reader.f) ;
+		reader.close() ;
+		reader = null ;
+		lookahead = null ;
+		possibleReplay = false ;		// only the first file read at startup can have been seen already
+	}
+
+	private boolean openNextFile() throws Exception {
+
+		String contents[] = directory.list() ;
+		if (contents == null) throw new Exception("messageQueueDirectory " + directory + " could not be listed") ;
+		Arrays.sort(contents) ; 		// sorting by name works.. name is monotonically increasing..
+		File current ;
+		synchronized (messageQueue) {
+			current = (messageQueue.currentMessageQueueFile != null) ? messageQueue.currentMessageQueueFile.file : null ;
+		}
+		for (String fn: contents) {
+			if (!fn.startsWith("MQ-") || fn.endsWith(".converting")) continue ;	// not a message queue file, or one being converted
+			if ((lastFileName != null) && (fn.compareTo(lastFileName) <= 0)) continue ;
+			File f = new File(directory, fn) ;
+			if ((ackedFileName != null) && (fn.compareTo(ackedFileName) <= 0)) {	// acked, but not recycled before the restart
+				synchronized (messageQueue) {
+					messageQueue.recycle(f) ;
+				}
+				lastFileName = fn ;
+				continue ;
+			}
+			if (f.equals(current)) return false ;	// only the file being written is left
+			if (f.length() < 16L) {			// must be useless/corrupt..
+				System.err.println("Unexpected short messageQueue file deleted: " + f) ;
+				f.delete() ;
+				lastFileName = fn ;
+				continue ;
+			}
+			if (MessageQueue.DEBUG) System.err.println("Reading backlog file: " + f + ", possibleReplay=" + possibleReplay) ;
+			reader = new MessageQueueFile.Reader(f, messageQueue.transferFilesToSink ? MessageQueueFile.READ_TRANSFER :
+				(messageQueue.mapFilesForReading ? MessageQueueFile.READ_MAP : MessageQueueFile.READ_COPY)) ;
+			lastFileName = fn ;
+			return true ;
+		}
+		return false ;
+	}
+}
@@ -0,0 +1,91 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueBlock - a group of messages compressed together with Deflate.
+
+  With compression "deflate", each group commit batch is written to the queue's file as one or more blocks of up to
+  about BLOCK_SIZE bytes of messages, rather than a record per message: messages such as JSON compress much better
+  together than one at a time.  The messages keep a reference to their block, so a sink which asked for compression
+  can be sent the block as it is, and the MessageQueueReader inflates it.
+
+  Uncompressed, a block is each message's 16 byte id, length (4 bytes) and contents, one after another.
+**/
+
+import java.nio.* ;
+import java.util.* ;
+import java.util.zip.* ;
+
+class MessageQueueBlock {
+
+	static final int BLOCK_SIZE = 256 * 1024 ;		// a batch is split into blocks of about this many bytes of messages
+	static final int LEVEL = Deflater.BEST_SPEED ;	// most of the compression, for a fraction of the cpu of the default level
+
+	final byte compressed[] ;
+	final int count ;			// messages in the block
+	final int length ;			// uncompressed
+
+	MessageQueueBlock(byte compressed[], int count, int length) {
+
+		this.compressed = compressed ;
+		this.count = count ;
+		this.length = length ;
+	}
+
+	/** Returns the index after the last of the messages from first that should go in a block with it **/
+
+	static int End(List<Message> messages, int first) {
+
+		int length = 0 ;
+		int end = first ;
+		while ((end < messages.size()) && ((end == first) || ((length + 20 + messages.get(end).contentsLength) <= BLOCK_SIZE)))
+			length += 20 + messages.get(end++).contentsLength ;
+		return end ;
+	}
+
+	/** Compress messages first to end (exclusive), whose contents must be in byte[]s **/
+
+	static MessageQueueBlock Compress(List<Message> messages, int first, int end, Deflater deflater) {
+
+		int length = 0 ;
+		for (int i=first;i<end;i++) length += 20 + messages.get(i).contentsLength ;
+		ByteBuffer uncompressed = ByteBuffer.allocate(length) ;
+		for (int i=first;i<end;i++) {
+			Message message = messages.get(i) ;
+			uncompressed.put(message.id).putInt(message.contentsLength).put(message.contents) ;
+		}
+		deflater.reset() ;
+		deflater.setInput(uncompressed.array()) ;
+		deflater.finish() ;
+		byte output[] = new byte[Math.max(64, length + length / 100 + 64)] ;	// more than deflate can ever need
+		int compressedLength = 0 ;
+		while (!deflater.finished()) {
+			if (compressedLength == output.length) output = Arrays.copyOf(output, output.length * 2) ;
+			compressedLength += deflater.deflate(output, compressedLength, output.length - compressedLength) ;
+		}
+		return new MessageQueueBlock(Arrays.copyOf(output, compressedLength), end - first, length) ;
+	}
+
+	/** Returns the messages in the block, as id, length, contents.. or throws if it doesn't inflate to length bytes **/
+
+	static ByteBuffer Inflate(byte compressed[], int offset, int compressedLength, int length, Inflater inflater) throws Exception {
+
+		byte uncompressed[] = new byte[length] ;
+		Inflate(compressed, offset, compressedLength, uncompressed, length, inflater) ;
+		return ByteBuffer.wrap(uncompressed) ;
+	}
+
+	/** Inflates the block into the first length bytes of uncompressed, which a reader can reuse for every block **/
+
+	static void Inflate(byte compressed[], int offset, int compressedLength, byte uncompressed[], int length, Inflater inflater) throws Exception {
+
+		inflater.reset() ;
+		inflater.setInput(compressed, offset, compressedLength) ;
+		int n = 0 ;
+		while ((n < length) && !inflater.finished()) {
+			int i = inflater.inflate(uncompressed, n, length - n) ;
+			if ((i == 0) && (inflater.needsInput() || inflater.needsDictionary())) break ;
+			n += i ;
+		}
+		if ((n != length) || !inflater.finished()) throw new Exception("compressed block inflated to " + n + " bytes, not " + length) ;
+	}
+}
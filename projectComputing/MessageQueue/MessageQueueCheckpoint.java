@@ -0,0 +1,121 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueCheckpoint - records how far the sink has acked, so a restart doesn't send it all of the first file again.
+
+  Messages are acked in the order they were written, so the acked position is just the last file all of whose messages
+  have been acked (and which has been, or is about to be, recycled or deleted) and the number of messages acked in the
+  file after it.  That is written to a small file in the queue's directory every checkpointEveryMessages acks or
+  checkpointIntervalMillis millisecs, whichever comes first (a sink waiting for messages waits no longer than that, so
+  its last acks are written too), and always before a file is recycled or deleted.  It is written to a temporary file
+  which is then renamed over the old one, so it is never half written.
+
+  On restart, files up to the last fully acked one are recycled, the acked messages of the next are skipped, and only
+  the rest of that file is flagged as possibly replayed.  At most checkpointEveryMessages acked messages are sent again.
+**/
+
+import java.io.*;
+import java.nio.file.* ;
+import java.util.* ;
+
+class MessageQueueCheckpoint {
+
+	static final String FILE_NAME = "CHECKPOINT" ;
+	static final byte HEADER[] = "MQCHECK1".getBytes() ;
+
+	private final File file ;
+	private final File temporaryFile ;
+	private final int everyMessages ;
+	private final int intervalMillis ;
+	private final boolean sync ;			// sync the checkpoint before renaming it, unless durability is "none"
+
+	String ackedFileName ;		// every message in this file, and those before it, has been acked.  null if none has been
+	long acked = 0 ;			// messages acked in the file after it
+	private int unwritten = 0 ;	// acks not yet written
+	private long lastWriteTime = System.currentTimeMillis() ;
+
+	/** Reads the queue directory's checkpoint, if there is one.  A checkpoint which can't be read is ignored, as if there was none **/
+
+	MessageQueueCheckpoint(File directory, int everyMessages, int intervalMillis, boolean sync) {
+
+		this.file = new File(directory, FILE_NAME) ;
+		this.temporaryFile = new File(directory, FILE_NAME + ".tmp") ;
+		this.everyMessages = Math.max(1, everyMessages) ;
+		this.intervalMillis = intervalMillis ;
+		this.sync = sync ;
+		if (!file.exists()) return ;
+		try {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file))) ;
+			try {
+				byte header[] = new byte[HEADER.length] ;
+				dis.readFully(header) ;
+				if (!Arrays.equals(header, HEADER)) throw new Exception("unexpected header " + new String(header)) ;
+				String fileName = dis.readUTF() ;
+				long count = dis.readLong() ;
+				if (count < 0) throw new Exception("invalid acked count " + count) ;
+				ackedFileName = (fileName.length() == 0) ? null : fileName ;
+				acked = count ;
+			}
+			finally {
+				dis.close() ;
+			}
+			if (MessageQueue.DEBUG) System.err.println("Checkpoint read from " + file + ": acked file " + ackedFileName + ", then " + acked + " messages") ;
+		}
+		catch (Exception e) {
+			System.err.println("Ignoring unreadable checkpoint " + file + ": " + e) ;
+		}
+	}
+
+	/** The oldest message in the queue has been acked **/
+
+	void messageAcked() {
+
+		acked++ ;
+		unwritten++ ;
+	}
+
+	/** Every message in f has been acked: record that before it is recycled or deleted **/
+
+	void fileAcked(File f) throws Exception {
+
+		ackedFileName = f.getName() ;
+		acked = 0 ;
+		write() ;
+	}
+
+	/** Write the checkpoint if enough messages or time have passed since it was last written **/
+
+	void writeIfDue() throws Exception {
+
+		if (unwritten == 0) return ;
+		if ((unwritten >= everyMessages) || ((System.currentTimeMillis() - lastWriteTime) >= intervalMillis)) write() ;
+	}
+
+	/** Millisecs until writeIfDue() will write the checkpoint, or 0 if there is nothing to write **/
+
+	long dueMillis() {
+
+		if (unwritten == 0) return 0 ;
+		return Math.max(1, intervalMillis - (System.currentTimeMillis() - lastWriteTime)) ;
+	}
+
+	private void write() throws Exception {
+
+		FileOutputStream fos = new FileOutputStream(temporaryFile) ;
+		try {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos)) ;
+			dos.write(HEADER) ;
+			dos.writeUTF((ackedFileName == null) ? "" : ackedFileName) ;
+			dos.writeLong(acked) ;
+			dos.flush() ;
+			if (sync) fos.getChannel().force(false) ;
+		}
+		finally {
+			fos.close() ;
+		}
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE) ;
+		if (sync) MessageQueueFile.SyncDirectory(file.getParentFile()) ;		// so the rename survives a crash
+		unwritten = 0 ;
+		lastWriteTime = System.currentTimeMillis() ;
+	}
+}
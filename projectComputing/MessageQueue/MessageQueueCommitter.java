@@ -0,0 +1,197 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueCommitter - group commit of messages received from sources.
+
+  Rather than every source thread taking the MessageQueue lock and flushing the current file for each message, sources
+  publish their messages to a ring buffer and wait for them to be committed.  One thread takes every message published
+  since its last commit (up to maxBatchSize) from the ring, appends them all to disk (and memory) with a single flush under
+  one acquisition of the MessageQueue lock, then tells each source how many of its messages have been committed.
+
+  Sources don't share a lock to hand over their messages, and each waits on its own Receipt, which is only notified
+  if its source is actually waiting.
+
+  Messages are committed (and so delivered to the sink) in the order they were published.  One committer is shared by
+  all the named queues: a batch is committed with a flush per queue with messages in it.
+
+  With replicationAcks "sync", sources are told their messages are committed when the standby confirms them, by the
+  MessageQueueReplicator, while we go on committing the next batch.
+**/
+
+import java.util.* ;
+
+class MessageQueueCommitter implements Runnable {
+
+	private final MessageQueue messageQueue ;	// the root queue
+	private final int maxBatchSize ;
+	private final long lingerNanos ;
+	private final long idleNanos ;		// when > 0, let the message queue sync unsynced messages after being idle this long
+
+	private final MessageQueueRingBuffer<Entry> ring ;
+	private final ArrayList<Message> batch = new ArrayList<Message>() ;
+
+	MessageQueueCommitter(MessageQueue messageQueue, int maxBatchSize, int lingerMillis, int idleMillis, int ringBufferSize, String waitStrategy) throws Exception {
+
+		this.messageQueue = messageQueue ;
+		this.maxBatchSize = Math.max(1, maxBatchSize) ;
+		this.lingerNanos = Math.max(0, lingerMillis) * 1000000L ;
+		this.idleNanos = Math.max(0, idleMillis) * 1000000L ;
+		Entry entries[] = new Entry[ringBufferSize] ;
+		for (int i=0;i<entries.length;i++) entries[i] = new Entry() ;
+		ring = new MessageQueueRingBuffer<Entry>(entries, waitStrategy) ;
+	}
+
+	/** Publish a message to queue for the next group commit.  receipt.await() waits for it (and the receipt's earlier messages) to be committed **/
+
+	void submit(MessageQueue queue, Message message, Receipt receipt) {
+
+		publish(ring.claim(), queue, message, receipt) ;
+	}
+
+	/** Publish a message as submit() does, unless the ring is full, when it returns false rather than waiting for room **/
+
+	boolean trySubmit(MessageQueue queue, Message message, Receipt receipt) {
+
+		long sequence = ring.tryClaim() ;
+		if (sequence < 0) return false ;
+		publish(sequence, queue, message, receipt) ;
+		return true ;
+	}
+
+	private void publish(long sequence, MessageQueue queue, Message message, Receipt receipt) {
+
+		receipt.submitted++ ;
+		Entry entry = ring.get(sequence) ;
+		entry.queue = queue ;
+		entry.message = message ;
+		entry.receipt = receipt ;
+		entry.submitted = System.nanoTime() ;
+		ring.publish(sequence) ;
+	}
+
+	public void run() {		// our thread..
+
+		Thread.currentThread().setName("MessageQueueCommitter") ;
+		long next = 0 ;		// the next sequence to commit
+		while (true) {
+			try {
+				if (!ring.waitFor(next, (idleNanos > 0) ? idleNanos : -1)) {		// we've waited idleNanos for a message
+					for (MessageQueue queue: messageQueue.allQueues()) queue.syncIfDue() ;
+					continue ;
+				}
+			}
+			catch (Exception e) {
+				System.err.println("Error in MessageQueueCommitter syncing:" + e) ;
+				e.printStackTrace() ;
+				continue ;
+			}
+			long last = next + maxBatchSize - 1 ;
+			if (lingerNanos > 0) ring.waitFor(last, lingerNanos) ;		// give other sources a chance to join this batch
+			last = Math.min(last, ring.availableFrom(next)) ;
+
+			long start = next ;
+			while (start <= last) {		// commit each run of messages for the same queue together
+				MessageQueue queue = ring.get(start).queue ;
+				long end = start ;
+				batch.clear() ;
+				while ((end <= last) && (ring.get(end).queue == queue)) batch.add(ring.get(end++).message) ;
+				Exception failure = null ;
+				long replicated = 0 ;
+				try {
+					replicated = queue.commit(batch) ;
+				}
+				catch (Exception e) {
+					System.err.println("Error in MessageQueueCommitter committing " + batch.size() + " messages to " + queue + ":" + e) ;
+					e.printStackTrace() ;
+					failure = e ;
+				}
+
+				// tell each source how many of its messages were committed - usually a source's messages are together
+
+				MessageQueueReplicator replicator = ((replicated > 0) && messageQueue.replicator.sync) ? messageQueue.replicator : null ;
+				Receipt receipt = null ;
+				int count = 0 ;
+				long committed = System.nanoTime() ;
+				for (long s=start;s<end;s++) {
+					Entry entry = ring.get(s) ;
+					queue.metrics.sourceAck.record(committed - entry.submitted) ;
+					if (entry.receipt != receipt) {
+						if (receipt != null) committed(receipt, count, failure, replicator, replicated) ;
+						receipt = entry.receipt ;
+						count = 0 ;
+					}
+					count++ ;
+					entry.queue = null ;
+					entry.message = null ;
+					entry.receipt = null ;
+				}
+				committed(receipt, count, failure, replicator, replicated) ;
+				start = end ;
+			}
+			ring.release(last) ;
+			next = last + 1 ;
+		}
+	}
+
+	private void committed(Receipt receipt, int count, Exception failure, MessageQueueReplicator replicator, long replicated) {
+
+		if (replicator != null) replicator.confirm(replicated, receipt, count) ;	// when the standby has them too
+		else receipt.committed(count, failure) ;
+	}
+
+	static class Entry {		// preallocated, and reused for each message published to its slot in the ring
+
+		MessageQueue queue ;
+		Message message ;
+		Receipt receipt ;
+		long submitted ;		// nanoTime, for the source ack latency
+	}
+
+	/** Each source submits all its messages with the same receipt, and awaits them with it **/
+
+	static class Receipt {
+
+		long submitted = 0 ;				// only used by the submitting thread
+		private long committed = 0 ;
+		private Exception failure ;
+		private boolean waiting = false ;
+
+		synchronized void committed(int count, Exception failure) {
+
+			committed += count ;
+			if (failure != null) this.failure = failure ;
+			if (waiting) notifyAll() ;
+		}
+
+		synchronized long committedCount() {
+
+			return committed ;
+		}
+
+		/** Throws if a message submitted with this receipt could not be persisted **/
+
+		synchronized void failed() throws Exception {
+
+			if (failure != null) throw new Exception("Message not persisted: " + failure, failure) ;
+		}
+
+		/** Returns when every message submitted with this receipt has been persisted, or throws if one could not be **/
+
+		void await() throws Exception {
+
+			await(submitted) ;
+		}
+
+		/** Returns when the first count messages submitted with this receipt have been persisted, or throws if one could not be **/
+
+		synchronized void await(long count) throws Exception {
+
+			while ((committed < count) && (failure == null)) {
+				waiting = true ;
+				wait() ;
+				waiting = false ;
+			}
+			if (failure != null) throw new Exception("Message not persisted: " + failure, failure) ;
+		}
+	}
+}
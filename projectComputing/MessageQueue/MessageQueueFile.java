@@ -0,0 +1,627 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueFile - manages the files which comprise the on-disk message queue.
+  2012 John Evershed, Kent Fitch, www.projectcomputing.com
+**/
+
+import java.io.*;
+import java.nio.* ;
+import java.nio.channels.* ;
+import java.nio.file.* ;
+import java.util.*;
+import java.util.zip.* ;
+
+class MessageQueueFile {
+
+	/* File formats.  Both versions start with HEADER then the version (8 bytes each).
+
+	   Version 00000001 (read only): each message is MESSAGESTART, the 16 byte id as 32 hex chars, the contents
+	   length as 8 hex chars then the contents.  A closed file ends with EOF.
+
+	   Version 00000002: the version is followed by an 8 byte segment id, then each message is a RECORD_HEADER_SIZE
+	   record header of RECORD_MESSAGE (1 byte), the raw 16 byte id, the contents length (a 4 byte int) and a
+	   CRC32C (4 bytes) then the contents.  The CRC covers the segment id, message id, length and contents, so a
+	   record can't be mistaken for one written to another file.  A closed file ends with RECORD_EOF.
+	   A zero byte where a record should start means no more records were written.
+
+	   With compression, messages are written in RECORD_BLOCK records instead (see MessageQueueBlock): RECORD_BLOCK
+	   (1 byte), the number of messages, their uncompressed length and the compressed length (4 bytes each), a CRC32C
+	   of the segment id, those 3 lengths and the compressed bytes (4 bytes), then the compressed bytes.
+
+	   A file written over a recycled one (see MessageQueue.recycle) has RECYCLED_SEGMENT set in its segment id.  What
+	   follows the last record written to it is what was left from its last use, so in such a file, a record that
+	   isn't valid is taken to be the end of the records written (after a crash), rather than corruption.
+	*/
+
+	static final byte[] HEADER       = "HEADER  ".getBytes() ;
+	static final byte[] VERSION_1    = "00000001".getBytes() ;
+	static final byte[] VERSION_2    = "00000002".getBytes() ;
+	static final byte[] VERSION      = VERSION_2 ;			// the version we write
+	static final byte[] MESSAGESTART = "MESSAGE ".getBytes() ;
+	static final byte[] EOF          = "EOF     ".getBytes() ;
+
+	static final byte RECORD_MESSAGE = 'M' ;
+	static final byte RECORD_EOF = 'E' ;
+	static final byte RECORD_BLOCK = 'Z' ;
+	static final int FILE_HEADER_SIZE = 8 + 8 + 8 ;			// HEADER, VERSION, segment id
+	static final long RECYCLED_SEGMENT = 1L << 62 ;			// set in the segment id of a file written over a recycled one
+	static final String SPARE_PREFIX = "SPARE-" ;			// a recycled file waiting to be reused
+	static final int RECORD_HEADER_SIZE = 1 + 16 + 4 + 4 ;	// type, id, len, crc
+	static final int BLOCK_HEADER_SIZE = 1 + 4 + 4 + 4 + 4 ;	// type, count, len, compressed len, crc
+
+	// how a Reader returns message contents: copied into a byte[], as a slice of a mapping of the file, or as a position in the file
+	static final int READ_COPY = 0 ;
+	static final int READ_MAP = 1 ;
+	static final int READ_TRANSFER = 2 ;
+	static final int TRANSFER_READ_WINDOW = 64 * 1024 ;
+
+	static int seq ;
+	static long lastTime ;
+
+	File file ;
+	int len = 0 ;
+	FileOutputStream fos ;
+	RandomAccessFile spareFile ;	// when writing over a spare, opened so it isn't truncated, and what fos writes to
+	BufferedOutputStream bos ;
+	int in = 0 ;
+	final boolean syncOnClose ;		// sync the file (and creating it) to the disk device, not just flush to the OS
+	final long segmentId ;
+	final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE) ;		// reused for every record we write
+	final CRC32C crc = new CRC32C() ;
+
+	MessageQueueFile(File messageQueueDirectory, boolean syncOnClose) throws Exception {		// create a new file
+
+		this(messageQueueDirectory, null, null, syncOnClose) ;
+	}
+
+	MessageQueueFile(File messageQueueDirectory, String fileName, boolean syncOnClose) throws Exception {
+
+		this(messageQueueDirectory, fileName, null, syncOnClose) ;
+	}
+
+	/** Create a new file, named for its creation time unless a name is given.  If spare is given, it is renamed and written
+	    over instead of creating a file, so the file's blocks are already allocated and appending doesn't extend it.
+	**/
+
+	MessageQueueFile(File messageQueueDirectory, String fileName, File spare, boolean syncOnClose) throws Exception {
+
+		long now ;
+		synchronized (MessageQueueFile.class) {
+			now = System.currentTimeMillis() ;
+			if (now == lastTime) seq++ ;
+			else {
+				lastTime = now ;
+				seq = 0 ;
+			}
+			segmentId = (now << 16) | (seq & 0xffff) | ((spare != null) ? RECYCLED_SEGMENT : 0) ;
+		}
+		if (fileName == null) fileName = new Formatter().format("MQ-%016x-%04x", now, seq).toString() ;	// MQ-time-seq (seq is just in case computer is very fast and queue is very busy!
+		file = new File(messageQueueDirectory, fileName) ;
+		this.syncOnClose = syncOnClose ;
+		if (spare == null) fos = new FileOutputStream(file) ;
+		else {
+			spareFile = new RandomAccessFile(spare, "rw") ;
+			fos = new FileOutputStream(spareFile.getFD()) ;
+		}
+		bos = new BufferedOutputStream(fos) ;
+		bos.write(HEADER) ;
+		bos.write(VERSION) ;
+		bos.write(ByteBuffer.allocate(8).putLong(segmentId).array()) ;
+		len = FILE_HEADER_SIZE ;
+		if (spare != null) {		// the new header must be written before the old records can be found under the new name
+			if (syncOnClose) sync() ;
+			else bos.flush() ;
+			Files.move(spare.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE) ;
+		}
+		if (syncOnClose) SyncDirectory(messageQueueDirectory) ;		// so the new file's directory entry survives a crash
+		if (MessageQueue.DEBUG) System.err.println(((spare == null) ? "Created MessageQueueFile " : "Recycled " + spare + " as MessageQueueFile ") + file) ;
+	}
+
+
+	boolean add(Message message, int maxDiskFileSize) throws Exception {			// return true if more messages can be written to this file, else false
+
+		recordHeader.clear() ;
+		recordHeader.put(RECORD_MESSAGE) ;
+		recordHeader.put(message.id) ;
+		recordHeader.putInt(message.contents.length) ;
+		recordHeader.putInt(RecordCrc(crc, segmentId, recordHeader.array(), message.contents, 0, message.contents.length)) ;
+
+		bos.write(recordHeader.array(), 0, RECORD_HEADER_SIZE) ;
+		bos.write(message.contents) ;	// not flushed until the whole batch has been written
+		in++ ;
+		len += RECORD_HEADER_SIZE + message.contents.length ;
+		if ((len + message.contents.length + RECORD_HEADER_SIZE) >= maxDiskFileSize) {	// checking to see if another message of the size we just got would fit
+			close(message) ;			// close, marking the last message as the last in the file, which when taken, triggers deletion of the file
+			return false ;
+		}
+		return true ;
+	}
+
+	/** Write a block of compressed messages, returning false (and closing the file, marking last as the last message in it)
+	    if the file is now full
+	**/
+
+	boolean add(MessageQueueBlock block, Message last, int maxDiskFileSize) throws Exception {
+
+		recordHeader.clear() ;
+		recordHeader.put(RECORD_BLOCK).putInt(block.count).putInt(block.length).putInt(block.compressed.length) ;
+		crc.reset() ;
+		for (int i=56;i>=0;i-=8) crc.update((int) (segmentId >>> i)) ;
+		crc.update(recordHeader.array(), 1, 4 + 4 + 4) ;
+		crc.update(block.compressed) ;
+		recordHeader.putInt((int) crc.getValue()) ;
+
+		bos.write(recordHeader.array(), 0, BLOCK_HEADER_SIZE) ;
+		bos.write(block.compressed) ;
+		in += block.count ;
+		len += BLOCK_HEADER_SIZE + block.compressed.length ;
+		if ((len + block.compressed.length + BLOCK_HEADER_SIZE) >= maxDiskFileSize) {	// another block the same size wouldn't fit
+			close(last) ;
+			return false ;
+		}
+		return true ;
+	}
+
+	void flush() throws Exception {
+
+		bos.flush() ;					// ensure it is persisted...
+	}
+
+	void sync() throws Exception {		// ..and really persisted, not just in the OS's buffers
+
+		bos.flush() ;
+		fos.getChannel().force(false) ;	// data (and the file length), not other metadata
+	}
+
+	void close(Message message) throws Exception {
+
+		if (MessageQueue.DEBUG) System.err.println("close " + file + " total records in: " + in) ;
+		if (message != null) message.setAsLastInFile(file) ;		// when this message is taken by sink, file can be deleted
+		bos.write(RECORD_EOF) ;
+		if (syncOnClose) sync() ;
+		closeStreams() ;
+		file = null ;
+	}
+
+	/** Close a file whose messages have all been acked, returning it to be recycled or deleted **/
+
+	File closeDrained() throws Exception {
+
+		if (MessageQueue.DEBUG) System.err.println("close drained " + file + " total records in: " + in) ;
+		closeStreams() ;
+		File drained = file ;
+		file = null ;
+		return drained ;
+	}
+
+	private void closeStreams() throws Exception {
+
+		bos.close() ;
+		bos = null ;
+		if (spareFile != null) {
+			spareFile.close() ;
+			spareFile = null ;
+		}
+	}
+
+	/** CRC32C of a version 2 record: the segment id, the id and length from the record header, and the contents **/
+
+	static int RecordCrc(CRC32C crc, long segmentId, byte recordHeader[], byte contents[], int offset, int length) {
+
+		crc.reset() ;
+		for (int i=56;i>=0;i-=8) crc.update((int) (segmentId >>> i)) ;
+		crc.update(recordHeader, 1, 16 + 4) ;
+		crc.update(contents, offset, length) ;
+		return (int) crc.getValue() ;
+	}
+
+	static int RecordCrc(CRC32C crc, long segmentId, byte recordHeader[], ByteBuffer contents) {
+
+		crc.reset() ;
+		for (int i=56;i>=0;i-=8) crc.update((int) (segmentId >>> i)) ;
+		crc.update(recordHeader, 1, 16 + 4) ;
+		crc.update(contents.duplicate()) ;
+		return (int) crc.getValue() ;
+	}
+
+	/** Reads the messages in a file of either version, in order.  With READ_MAP, a version 2 file is memory mapped and
+	    the messages returned hold their contents as a slice of the mapping, rather than in a byte[].  With READ_TRANSFER,
+	    they hold the file's channel and the position of their contents in it, and the channel stays open until the
+	    last message is acked.  Version 1 files are always read with READ_COPY.
+	**/
+
+	static class Reader {
+
+		final File f ;
+		BufferedInputStream bis ;
+		ByteBuffer mapping ;		// READ_MAP: the whole file, positioned at the next record
+		FileChannel channel ;		// READ_TRANSFER: the file, read through window..
+		ByteBuffer window ;
+		long windowEnd ;			// ..which holds the bytes of the file up to here
+		int transferred = 0 ;		// messages returned holding channel
+		final boolean version1 ;
+		long segmentId ;
+		boolean recycled ;			// written over a recycled file, so a bad record is the end of those written
+		long fileLength ;
+		final byte recordHeader[] = new byte[RECORD_HEADER_SIZE] ;
+		final ByteBuffer recordHeaderBuffer = ByteBuffer.wrap(recordHeader) ;
+		final CRC32C crc = new CRC32C() ;
+		final ArrayDeque<Message> inflated = new ArrayDeque<Message>() ;	// the rest of the messages in the last block read
+		Inflater inflater ;
+
+		Reader(File f) throws Exception {
+
+			this(f, READ_COPY) ;
+		}
+
+		Reader(File f, int mode) throws Exception {
+
+			this.f = f ;
+			bis = new BufferedInputStream(new FileInputStream(f)) ;
+			try {
+				byte header[] = Read(f, bis, 8) ;
+				if (!Arrays.equals(header, HEADER)) throw new Exception("corrupt message queue file " + f + " detected in header " + new String(header)) ;
+				byte version[] = Read(f, bis, 8) ;
+				version1 = Arrays.equals(version, VERSION_1) ;
+				if (!version1) {
+					if (!Arrays.equals(version, VERSION_2)) throw new Exception("corrupt message queue file " + f + " detected in version " + new String(version)) ;
+					segmentId = ByteBuffer.wrap(Read(f, bis, 8)).getLong() ;
+					recycled = (segmentId & RECYCLED_SEGMENT) != 0 ;
+					fileLength = f.length() ;
+					if (mode == READ_MAP) {		// we've checked the header - now read the records from a mapping instead
+						bis.close() ;
+						bis = null ;
+						FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ) ;
+						try {
+							mapping = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()) ;	// stays valid after the channel is closed
+						}
+						finally {
+							fc.close() ;
+						}
+						mapping.position(FILE_HEADER_SIZE) ;
+					}
+					else if (mode == READ_TRANSFER) {	// or from the channel
+						bis.close() ;
+						bis = null ;
+						channel = FileChannel.open(f.toPath(), StandardOpenOption.READ) ;
+						window = ByteBuffer.allocateDirect(TRANSFER_READ_WINDOW) ;
+						window.flip() ;		// empty
+						windowEnd = FILE_HEADER_SIZE ;
+					}
+				}
+			}
+			catch (Exception e) {
+				if (bis != null) bis.close() ;
+				throw e ;
+			}
+		}
+
+		/** Returns the next message in the file, or null if there are no more **/
+
+		Message next(boolean possibleReplay) throws Exception {
+
+			if (!inflated.isEmpty()) return inflated.poll() ;
+			if (version1) return nextVersion1(possibleReplay) ;
+			if (mapping != null) return nextMapped(possibleReplay) ;
+			return (channel != null) ? nextTransfer(possibleReplay) : nextVersion2(possibleReplay) ;
+		}
+
+		/** Reads past the next message in the file, returning false if there are no more **/
+
+		boolean skip() throws Exception {
+
+			Message message = next(false) ;
+			if (message == null) return false ;
+			if (message.contentsChannel != null) transferred-- ;	// it wont be acked to close the channel
+			return true ;
+		}
+
+		void close() throws Exception {
+
+			if (bis != null) bis.close() ;
+			if (inflater != null) inflater.end() ;
+			mapping = null ;			// unmapped when the last message slice is no longer referenced
+			if ((channel != null) && (transferred == 0)) channel.close() ;	// else closed when the last message is acked
+			window = null ;
+		}
+
+		/** A record that isn't valid is corruption, unless the file was recycled, when it is where the records written ended **/
+
+		private Message badRecord(String what) throws Exception {
+
+			if (!recycled) throw new Exception("corrupt message queue file " + f + " detected in " + what) ;
+			System.err.println("Unexpected " + what + " in recycled file " + f + " - processing what we read..") ;
+			return null ;
+		}
+
+		/** Reads a block record, after its type, returning its first message and keeping the rest for the following calls **/
+
+		private Message nextBlock(boolean possibleReplay) throws Exception {
+
+			if (!readRecord(recordHeader, 1, BLOCK_HEADER_SIZE - 1)) {
+				System.err.println("Truncated block in file " + f + " - header truncated") ;
+				return null ;
+			}
+			int count = recordHeaderBuffer.getInt(1) ;
+			int length = recordHeaderBuffer.getInt(1 + 4) ;
+			int compressedLength = recordHeaderBuffer.getInt(1 + 4 + 4) ;
+			int blockCrc = recordHeaderBuffer.getInt(1 + 4 + 4 + 4) ;
+			if ((count < 1) || (length < 0) || (compressedLength < 0) || (recycled && (compressedLength > fileLength))) 
+				return badRecord("block header") ;
+			byte compressed[] = new byte[compressedLength] ;
+			if (!readRecord(compressed, 0, compressedLength)) {
+				System.err.println("Truncated block in file " + f + " - contents truncated") ;
+				return null ;
+			}
+			crc.reset() ;
+			for (int i=56;i>=0;i-=8) crc.update((int) (segmentId >>> i)) ;
+			crc.update(recordHeader, 1, 4 + 4 + 4) ;
+			crc.update(compressed) ;
+			if ((int) crc.getValue() != blockCrc) return badRecord("block checksum") ;
+
+			if (inflater == null) inflater = new Inflater() ;
+			ByteBuffer messages = MessageQueueBlock.Inflate(compressed, 0, compressedLength, length, inflater) ;
+			MessageQueueBlock block = new MessageQueueBlock(compressed, count, length) ;
+			for (int i=0;i<count;i++) {
+				byte messageId[] = new byte[16] ;
+				messages.get(messageId) ;
+				byte messageContents[] = new byte[messages.getInt()] ;
+				messages.get(messageContents) ;
+				Message message = new Message(messageId, messageContents, possibleReplay) ;
+				message.block = block ;
+				message.blockIndex = i ;
+				inflated.add(message) ;
+			}
+			return inflated.poll() ;
+		}
+
+		/** Reads the next n bytes of the file into buf, returning false if the file ends first **/
+
+		private boolean readRecord(byte buf[], int offset, int n) throws Exception {
+
+			if (mapping != null) {
+				if (mapping.remaining() < n) return false ;
+				mapping.get(buf, offset, n) ;
+				return true ;
+			}
+			if (channel == null) return ReadFully(bis, buf, offset, n) ;
+			while (n > 0) {
+				int chunk = Math.min(n, TRANSFER_READ_WINDOW) ;
+				if (!fillWindow(chunk)) return false ;
+				window.get(buf, offset, chunk) ;
+				offset += chunk ;
+				n -= chunk ;
+			}
+			return true ;
+		}
+
+		private Message nextTransfer(boolean possibleReplay) throws Exception {
+
+			if (!fillWindow(1)) {	// file was just suddenly closed...  sort of normal.
+				System.err.println("Unexpected EOF on file " + f + " - processing what we read..") ;
+				return null ;
+			}
+			int type = window.get() ;
+			if (type == RECORD_EOF) return null ;
+			if (type == 0) {		// nothing more was written
+				System.err.println("Unexpected end of records on file " + f + " - processing what we read..") ;
+				return null ;
+			}
+			if (type == RECORD_BLOCK) return nextBlock(possibleReplay) ;
+			if (type != RECORD_MESSAGE) return badRecord("record type " + type) ;
+
+			if (!fillWindow(RECORD_HEADER_SIZE - 1)) {
+				System.err.println("Truncated message in file " + f + " - header truncated") ;
+				return null ;
+			}
+			recordHeader[0] = (byte) type ;
+			window.get(recordHeader, 1, RECORD_HEADER_SIZE - 1) ;
+			byte[] messageId = new byte[16] ;
+			System.arraycopy(recordHeader, 1, messageId, 0, 16) ;
+			int messageLen = recordHeaderBuffer.getInt(1 + 16) ;
+			int recordCrc = recordHeaderBuffer.getInt(1 + 16 + 4) ;
+			if ((messageLen < 0) || (recycled && (messageLen > fileLength))) return badRecord("message length " + messageLen) ;
+
+			// check the contents against the crc as they pass through the window, without keeping them
+
+			long contentsPosition = windowEnd - window.remaining() ;
+			crc.reset() ;
+			for (int i=56;i>=0;i-=8) crc.update((int) (segmentId >>> i)) ;
+			crc.update(recordHeader, 1, 16 + 4) ;
+			int remaining = messageLen ;
+			while (remaining > 0) {
+				int chunk = Math.min(remaining, TRANSFER_READ_WINDOW) ;
+				if (!fillWindow(chunk)) {
+					System.err.println("Truncated message in file " + f + " - contents truncated") ;
+					return null ;
+				}
+				ByteBuffer contents = window.duplicate() ;
+				contents.limit(contents.position() + chunk) ;
+				crc.update(contents) ;
+				window.position(window.position() + chunk) ;
+				remaining -= chunk ;
+			}
+			if ((int) crc.getValue() != recordCrc)
+				return badRecord("message checksum") ;
+			transferred++ ;
+			return new Message(messageId, channel, contentsPosition, messageLen, possibleReplay) ;
+		}
+
+		private boolean fillWindow(int n) throws Exception {		// false if the file ends before window has n bytes remaining
+
+			if (window.remaining() >= n) return true ;
+			window.compact() ;
+			while (window.position() < n) {
+				int i = channel.read(window, windowEnd) ;
+				if (i < 0) {
+					window.flip() ;
+					return false ;
+				}
+				windowEnd += i ;
+			}
+			window.flip() ;
+			return true ;
+		}
+
+		private Message nextMapped(boolean possibleReplay) throws Exception {
+
+			if (!mapping.hasRemaining()) {	// file was just suddenly closed...  sort of normal.
+				System.err.println("Unexpected EOF on file " + f + " - processing what we read..") ;
+				return null ;
+			}
+			int type = mapping.get() ;
+			if (type == RECORD_EOF) return null ;
+			if (type == 0) {		// nothing more was written
+				System.err.println("Unexpected end of records on file " + f + " - processing what we read..") ;
+				return null ;
+			}
+			if (type == RECORD_BLOCK) return nextBlock(possibleReplay) ;
+			if (type != RECORD_MESSAGE) return badRecord("record type " + type) ;
+
+			if (mapping.remaining() < (RECORD_HEADER_SIZE - 1)) {
+				System.err.println("Truncated message in file " + f + " - header truncated") ;
+				return null ;
+			}
+			recordHeader[0] = (byte) type ;
+			mapping.get(recordHeader, 1, RECORD_HEADER_SIZE - 1) ;
+			byte[] messageId = new byte[16] ;
+			System.arraycopy(recordHeader, 1, messageId, 0, 16) ;
+			int messageLen = recordHeaderBuffer.getInt(1 + 16) ;
+			int recordCrc = recordHeaderBuffer.getInt(1 + 16 + 4) ;
+			if ((messageLen < 0) || (recycled && (messageLen > fileLength))) return badRecord("message length " + messageLen) ;
+
+			if (mapping.remaining() < messageLen) {
+				System.err.println("Truncated message in file " + f + " - contents truncated") ;
+				return null ;
+			}
+			ByteBuffer messageContents = mapping.slice() ;
+			messageContents.limit(messageLen) ;
+			mapping.position(mapping.position() + messageLen) ;
+			if (RecordCrc(crc, segmentId, recordHeader, messageContents) != recordCrc)
+				return badRecord("message checksum") ;
+			return new Message(messageId, messageContents, possibleReplay) ;
+		}
+
+		private Message nextVersion2(boolean possibleReplay) throws Exception {
+
+			int type = bis.read() ;
+			if (type < 0) {			// file was just suddenly closed...  sort of normal.
+				System.err.println("Unexpected EOF on file " + f + " - processing what we read..") ;
+				return null ;
+			}
+			if (type == RECORD_EOF) return null ;
+			if (type == 0) {		// nothing more was written
+				System.err.println("Unexpected end of records on file " + f + " - processing what we read..") ;
+				return null ;
+			}
+			if (type == RECORD_BLOCK) return nextBlock(possibleReplay) ;
+			if (type != RECORD_MESSAGE) return badRecord("record type " + type) ;
+
+			recordHeader[0] = (byte) type ;
+			if (!ReadFully(bis, recordHeader, 1, RECORD_HEADER_SIZE - 1)) {
+				System.err.println("Truncated message in file " + f + " - header truncated") ;
+				return null ;
+			}
+			byte[] messageId = new byte[16] ;
+			System.arraycopy(recordHeader, 1, messageId, 0, 16) ;
+			int messageLen = recordHeaderBuffer.getInt(1 + 16) ;
+			int recordCrc = recordHeaderBuffer.getInt(1 + 16 + 4) ;
+			if ((messageLen < 0) || (recycled && (messageLen > fileLength))) return badRecord("message length " + messageLen) ;
+
+			byte messageContents[] = new byte[messageLen] ;
+			if (!ReadFully(bis, messageContents, 0, messageLen)) {
+				System.err.println("Truncated message in file " + f + " - contents truncated") ;
+				return null ;
+			}
+			if (RecordCrc(crc, segmentId, recordHeader, messageContents, 0, messageLen) != recordCrc)
+				return badRecord("message checksum") ;
+			return new Message(messageId, messageContents, possibleReplay) ;
+		}
+
+		private Message nextVersion1(boolean possibleReplay) throws Exception {
+
+			byte messageStart[] = null ;
+			try {
+				messageStart = Read(f, bis, 8) ;
+			}
+			catch (Exception e) {	// file was just suddenly closed...  sort of normal.
+				System.err.println("Unexpected EOF on file " + f + " - processing what we read..") ;
+				return null ;
+			}
+
+			if (Arrays.equals(messageStart, EOF)) return null ;
+			if (!Arrays.equals(messageStart, MESSAGESTART))
+				throw new Exception("corrupt message queue file " + f + " detected in message start " + new String(messageStart)) ;
+
+			// next 32 bytes are a message id encoded as hex
+
+			byte[] messageId = new byte[16] ;
+			for (int i=0;i<16;i++) {
+				int d1 = Character.digit(bis.read(), 16) ;	//0, 1, .. f
+				int d2 = Character.digit(bis.read(), 16) ;
+				if ((d1 < 0) || (d2 < 0))
+					throw new Exception("corrupt message queue file " + f + " detected in message hdr") ;
+				messageId[i] = (byte) (d1 * 16 + d2) ;
+			}
+
+			// next 8 bytes are message len encoded as hex
+
+			String len = new String(Read(f, bis, 8)) ;
+			int messageLen = 0 ;
+			try {
+				messageLen = Integer.parseInt(len, 16) ;
+			}
+			catch (Exception e) {
+				throw new Exception("corrupt message queue file " + f + " detected in message length " + len + ", e="+e) ;
+			}
+
+			byte messageContents[] = new byte[messageLen] ;
+			if (!ReadFully(bis, messageContents, 0, messageLen)) {
+				System.err.println("Truncated message in file " + f + " - contents truncated") ;
+				return null ;
+			}
+			return new Message(messageId, messageContents, possibleReplay) ;
+		}
+	}
+
+	static byte[] Read(File f, BufferedInputStream bis, int sz) throws Exception {
+
+		final byte buf[] = new byte[sz] ;
+		if (!ReadFully(bis, buf, 0, sz)) throw new Exception("truncated message file " + f) ;
+		return buf ;
+	}
+
+	static boolean ReadFully(BufferedInputStream bis, byte buf[], int start, int len) throws Exception {	// false if eof first
+
+		while (len > 0) {
+			int i = bis.read(buf, start, len) ;
+			if (i < 0) return false ;
+			start += i ;
+			len -= i ;
+		}
+		return true ;
+	}
+
+	static void SyncDirectory(File directory) {
+
+		try {
+			FileChannel fc = FileChannel.open(directory.toPath(), StandardOpenOption.READ) ;
+			try {
+				fc.force(true) ;
+			}
+			finally {
+				fc.close() ;
+			}
+		}
+		catch (IOException e) { 	// not all platforms can open or sync a directory
+			if (MessageQueue.DEBUG) System.err.println("Could not sync directory " + directory + ":" + e) ;
+		}
+	}
+
+	static void Delete(File messageQueueFile) {
+
+			if (MessageQueue.DEBUG) System.err.println("Deleting message queue file " + messageQueueFile) ;
+			if (!messageQueueFile.delete()) System.err.println("Failed to delete message queue file " + messageQueueFile) ;
+	}
+}
@@ -0,0 +1,75 @@
+package projectComputing.MessageQueue ;
+
+import java.io.*;
+import java.nio.file.* ;
+import java.util.* ;
+
+// java -classpath . projectComputing.MessageQueue.MessageQueueFileConverter messageStore
+
+public class MessageQueueFileConverter {
+
+	// Rewrites any version 00000001 (hex encoded) message queue files in a message queue directory in the current
+	// version 00000002 (binary) format.  The message queue reads both versions, so this is optional, but converted files
+	// are smaller and faster to read.  Only run this when the message queue using the directory is not running.
+
+	public static void main(String args[]) throws Exception {
+
+		if (args.length != 1) Usage() ;
+
+		File directory = new File(args[0]) ;
+		if (!directory.isDirectory()) throw new Exception("messageQueueDirectory " + directory + " is not a directory") ;
+
+		String contents[] = directory.list() ;
+		Arrays.sort(contents) ;
+		int converted = 0 ;
+		for (String fn: contents) {
+			File f = new File(directory, fn) ;
+			if (!f.isFile() || fn.endsWith(".converting")) continue ;
+			if (Convert(f)) converted++ ;
+		}
+		System.out.println("Converted " + converted + " file(s) in " + directory) ;
+	}
+
+	/** Convert a version 1 file to version 2, returning false if it is not a version 1 file **/
+
+	static boolean Convert(File f) throws Exception {
+
+		MessageQueueFile.Reader reader ;
+		try {
+			reader = new MessageQueueFile.Reader(f) ;
+		}
+		catch (Exception e) {
+			System.err.println("Skipping " + f + ": " + e.getMessage()) ;
+			return false ;
+		}
+
+		int count = 0 ;
+		try {
+			if (!reader.version1) return false ;
+			String tempName = f.getName() + ".converting" ;
+			MessageQueueFile out = new MessageQueueFile(f.getParentFile(), tempName, true) ;
+			while (true) {
+				Message message = reader.next(false) ;
+				if (message == null) break ;
+				out.add(message, Integer.MAX_VALUE) ;
+				count++ ;
+			}
+			out.close(null) ;		// synced, as created with syncOnClose
+			Files.move(new File(f.getParentFile(), tempName).toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE) ;
+		}
+		finally {
+			reader.close() ;
+		}
+		MessageQueueFile.SyncDirectory(f.getParentFile()) ;
+		System.out.println("Converted " + f + ", messages: " + count) ;
+		return true ;
+	}
+
+	static void Usage() {
+
+		System.out.println("MessageQueueFileConverter command line parms are:\n" +
+			"Message queue directory\n" +
+			"eg java projectcomputing.MessageQueue.MessageQueueFileConverter messageStore") ;
+			System.exit(-1) ;
+	}
+}
@@ -0,0 +1,49 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueMessageBuffer - a reusable message, filled by MessageQueueReader.read(buffer) instead of returning a new one
+
+  Each read overwrites the last message's id, contents and flags, so a sink reading with one buffer allocates nothing
+  per message once its contents array has grown to the biggest message.  Only the first length bytes of contents are
+  the message's.
+**/
+
+import java.math.*;
+
+public class MessageQueueMessageBuffer {
+
+	static final int DEFAULT_CAPACITY = 1024 ;
+
+	public final byte id[] = new byte[16] ;
+	public byte contents[] ;				// grown as needed
+	public int length ;
+	public boolean possiblyReplayed ;
+	public long sequence ;				// this message's number in the reader's session, the first being 1
+
+	public MessageQueueMessageBuffer() {
+
+		this(DEFAULT_CAPACITY) ;
+	}
+
+	public MessageQueueMessageBuffer(int capacity) {
+
+		contents = new byte[Math.max(1, capacity)] ;
+	}
+
+	/** Make contents big enough for len bytes.  What it held is lost **/
+
+	void ensureCapacity(int len) {
+
+		if (contents.length < len) contents = new byte[Math.max(len, contents.length * 2)] ;
+	}
+
+	public String idAsString() {
+
+		return new BigInteger(1, id).toString(16) ;
+	}
+
+	public String contentsAsString() {
+
+		return new String(contents, 0, length) ;
+	}
+}
@@ -0,0 +1,229 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueMetrics - counters and latency histograms for a queue, served over HTTP.
+
+  Each queue (and partition) has its own metrics.  They are recorded by the committer, source and sink threads without
+  locks: counters are LongAdders, and each histogram is an array of atomic counts with a bucket for every 1/16th of a
+  power of 2 nanosecs (as an HDR histogram with 1 significant digit), so any percentile is known to within about 6%.
+  They count from when the message queue started.
+
+  With portUsedForMetrics set, the root queue serves them all from http://127.0.0.1:port/metrics in the Prometheus
+  text format, with a queue and partition label on each, latencies in seconds as quantiles, and gauges read from the
+  queue when asked: the messages and bytes in memory, the messages sent to a sink but not acked, and the files on disk
+  and their bytes.
+
+  The latencies split the time a message spends in the message queue into its parts:
+
+	source_ack: from a source's message being received to its being committed, when the source is acked
+	commit_lock_wait: the committer waiting for the queue's lock, held by sinks taking and acking messages
+	append, flush, sync: writing a batch to the current file, flushing it, and syncing it to the disk device
+	sink_ack: from a message being sent to a sink to its being acked
+**/
+
+import java.io.*;
+import java.net.*;
+import java.util.* ;
+import java.util.concurrent.atomic.* ;
+
+import com.sun.net.httpserver.* ;
+
+class MessageQueueMetrics {
+
+	final LongAdder messagesIn = new LongAdder() ;		// committed
+	final LongAdder bytesIn = new LongAdder() ;
+	final LongAdder batches = new LongAdder() ;			// group commits, so messagesIn / batches is the mean batch size
+	final LongAdder messagesSent = new LongAdder() ;		// to sinks, including those sent again
+	final LongAdder replays = new LongAdder() ;			// sent flagged as possible replays
+	final LongAdder messagesAcked = new LongAdder() ;
+
+	final Histogram sourceAck = new Histogram() ;
+	final Histogram lockWait = new Histogram() ;
+	final Histogram append = new Histogram() ;
+	final Histogram flush = new Histogram() ;
+	final Histogram sync = new Histogram() ;
+	final Histogram sinkAck = new Histogram() ;
+
+	static final double QUANTILES[] = { 0.5, 0.9, 0.99, 0.999 } ;
+
+	/** A lock-free histogram of nanosecs, with a bucket for every 1/16th of a power of 2 **/
+
+	static class Histogram {
+
+		static final int SUB_BUCKET_BITS = 4 ;
+		static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS ;
+
+		final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS) ;
+		final LongAdder count = new LongAdder() ;
+		final LongAdder sum = new LongAdder() ;
+		final AtomicLong max = new AtomicLong() ;
+
+		void record(long nanos) {
+
+			if (nanos < 0) nanos = 0 ;
+			counts.incrementAndGet(Bucket(nanos)) ;
+			count.increment() ;
+			sum.add(nanos) ;
+			long m = max.get() ;
+			while ((nanos > m) && !max.compareAndSet(m, nanos)) m = max.get() ;
+		}
+
+		/** Values below SUB_BUCKETS have a bucket each, then each power of 2 has SUB_BUCKETS buckets **/
+
+		static int Bucket(long value) {
+
+			if (value < SUB_BUCKETS) return (int) value ;
+			int exponent = 63 - Long.numberOfLeadingZeros(value) ;		// >= SUB_BUCKET_BITS
+			int shift = exponent - SUB_BUCKET_BITS ;
+			return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1)) ;
+		}
+
+		/** The highest value in a bucket **/
+
+		static long BucketMax(int bucket) {
+
+			if (bucket < SUB_BUCKETS) return bucket ;
+			int shift = (bucket >>> SUB_BUCKET_BITS) - 1 ;
+			long lowest = ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)))) << shift ;
+			return lowest + (1L << shift) - 1 ;
+		}
+
+		/** The value at quantile q (0 to 1) of those recorded, to within a bucket, or 0 if none have been **/
+
+		long quantile(double q) {
+
+			long total = 0 ;
+			long snapshot[] = new long[counts.length()] ;
+			for (int i=0;i<snapshot.length;i++) total += snapshot[i] = counts.get(i) ;
+			if (total == 0) return 0 ;
+			long rank = Math.max(1, (long) Math.ceil(q * total)) ;
+			long seen = 0 ;
+			for (int i=0;i<snapshot.length;i++) {
+				seen += snapshot[i] ;
+				if (seen >= rank) return Math.min(BucketMax(i), max.get()) ;
+			}
+			return max.get() ;
+		}
+	}
+
+	/** Serve the metrics of all of root's queues on the loopback interface **/
+
+	static HttpServer Serve(final MessageQueue root, int port) throws Exception {
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0) ;
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+
+				try {
+					byte body[] = Render(root.allQueues()).getBytes("UTF-8") ;
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8") ;
+					exchange.sendResponseHeaders(200, body.length) ;
+					OutputStream os = exchange.getResponseBody() ;
+					os.write(body) ;
+					os.close() ;
+				}
+				catch (Exception e) {
+					System.err.println("Error in MessageQueueMetrics serving metrics:" + e) ;
+					if (exchange.getResponseCode() == -1) exchange.sendResponseHeaders(500, -1) ;	// else the 200 has gone, so just close it
+				}
+				finally {
+					exchange.close() ;
+				}
+			}
+		}) ;
+		server.start() ;		// on a thread of its own
+		return server ;
+	}
+
+	/** The metrics of queues in the Prometheus text format, grouped by metric **/
+
+	static String Render(List<MessageQueue> queues) {
+
+		StringBuilder sb = new StringBuilder() ;
+		String labels[] = new String[queues.size()] ;
+		MessageQueueMetrics metrics[] = new MessageQueueMetrics[queues.size()] ;
+		long gauges[][] = new long[queues.size()][] ;
+		for (int i=0;i<labels.length;i++) {
+			MessageQueue queue = queues.get(i) ;
+			labels[i] = "queue=\"" + ((queue.name == null) ? "default" : queue.name) + "\",partition=\"" + queue.partition + "\"" ;
+			metrics[i] = queue.metrics ;
+			gauges[i] = queue.metricsGauges() ;
+		}
+
+		Counter(sb, "mq_messages_in_total", "Messages committed from sources", labels, metrics, 0) ;
+		Counter(sb, "mq_bytes_in_total", "Bytes of message contents committed from sources", labels, metrics, 1) ;
+		Counter(sb, "mq_commit_batches_total", "Group commits", labels, metrics, 2) ;
+		Counter(sb, "mq_messages_sent_total", "Messages sent to sinks, including those sent again", labels, metrics, 3) ;
+		Counter(sb, "mq_replays_total", "Messages sent to sinks flagged as possible replays", labels, metrics, 4) ;
+		Counter(sb, "mq_messages_acked_total", "Messages acked by sinks", labels, metrics, 5) ;
+
+		Gauge(sb, "mq_memory_queue_messages", "Messages in memory waiting to be sent to a sink", labels, gauges, 0) ;
+		Gauge(sb, "mq_unacked_messages", "Messages sent to sinks and not yet acked", labels, gauges, 1) ;
+		Gauge(sb, "mq_memory_queue_bytes", "Approximate bytes used by messages in memory", labels, gauges, 2) ;
+		Gauge(sb, "mq_backlog_files", "Message queue files on disk, not yet drained", labels, gauges, 3) ;
+		Gauge(sb, "mq_disk_bytes", "Bytes in message queue files on disk, as counted towards diskHighWatermark", labels, gauges, 4) ;
+
+		Summary(sb, "mq_source_ack_latency_seconds", "From receiving a source's message to its commit", labels, metrics, 0) ;
+		Summary(sb, "mq_commit_lock_wait_seconds", "The committer waiting for the queue lock", labels, metrics, 1) ;
+		Summary(sb, "mq_append_latency_seconds", "Writing a batch to the current file", labels, metrics, 2) ;
+		Summary(sb, "mq_flush_latency_seconds", "Flushing a batch to the current file", labels, metrics, 3) ;
+		Summary(sb, "mq_sync_latency_seconds", "Syncing the current file to the disk device", labels, metrics, 4) ;
+		Summary(sb, "mq_sink_ack_latency_seconds", "From sending a message to a sink to its ack", labels, metrics, 5) ;
+		return sb.toString() ;
+	}
+
+	long counter(int which) {
+
+		switch (which) {
+			case 0: return messagesIn.sum() ;
+			case 1: return bytesIn.sum() ;
+			case 2: return batches.sum() ;
+			case 3: return messagesSent.sum() ;
+			case 4: return replays.sum() ;
+			default: return messagesAcked.sum() ;
+		}
+	}
+
+	Histogram histogram(int which) {
+
+		switch (which) {
+			case 0: return sourceAck ;
+			case 1: return lockWait ;
+			case 2: return append ;
+			case 3: return flush ;
+			case 4: return sync ;
+			default: return sinkAck ;
+		}
+	}
+
+	private static void Counter(StringBuilder sb, String name, String help, String labels[], MessageQueueMetrics metrics[], int which) {
+
+		sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" counter\n") ;
+		for (int i=0;i<labels.length;i++) sb.append(name).append('{').append(labels[i]).append("} ").append(metrics[i].counter(which)).append('\n') ;
+	}
+
+	private static void Gauge(StringBuilder sb, String name, String help, String labels[], long gauges[][], int which) {
+
+		sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" gauge\n") ;
+		for (int i=0;i<labels.length;i++) sb.append(name).append('{').append(labels[i]).append("} ").append(gauges[i][which]).append('\n') ;
+	}
+
+	private static void Summary(StringBuilder sb, String name, String help, String labels[], MessageQueueMetrics metrics[], int which) {
+
+		sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" summary\n") ;
+		for (int i=0;i<labels.length;i++) {
+			Histogram h = metrics[i].histogram(which) ;
+			for (double q: QUANTILES)
+				sb.append(name).append('{').append(labels[i]).append(",quantile=\"").append(q).append("\"} ").append(Seconds(h.quantile(q))).append('\n') ;
+			sb.append(name).append("_sum{").append(labels[i]).append("} ").append(Seconds(h.sum.sum())).append('\n') ;
+			sb.append(name).append("_count{").append(labels[i]).append("} ").append(h.count.sum()).append('\n') ;
+		}
+		sb.append("# HELP ").append(name).append("_max ").append(help).append(", the longest\n# TYPE ").append(name).append("_max gauge\n") ;
+		for (int i=0;i<labels.length;i++) sb.append(name).append("_max{").append(labels[i]).append("} ").append(Seconds(metrics[i].histogram(which).max.get())).append('\n') ;
+	}
+
+	static String Seconds(long nanos) {
+
+		return Double.toString(nanos / 1e9) ;
+	}
+}
@@ -0,0 +1,128 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueuePrefetcher - reads a queue's backlog of files into memory on a thread of its own.
+
+  Used when prefetchBacklog is set.  Otherwise, when the sink's acks have used up half of the read ahead, the sink's
+  thread tops it up, reading (and checking, and decompressing) the next messages of the backlog while holding the
+  queue's lock, so neither the sink nor the committer (and so no source) can get on until it has.  The prefetcher
+  waits for the same moment, but reads the messages without the lock, into a batch of its own, and then takes the lock
+  just to append the batch to the memory queue.  The sink goes on sending the other half of the read ahead meanwhile.
+
+  When the backlog has no more closed files, the prefetcher waits for the sink to take everything read, then (as the
+  sink's thread would) closes the current file to read what has been written to it since, or, if nothing has been,
+  goes back to writing new messages to memory.
+**/
+
+import java.util.* ;
+
+class MessageQueuePrefetcher implements Runnable {
+
+	static final int RETRY_MILLIS = 1000 ;		// after failing to read the backlog
+
+	private final MessageQueue queue ;
+	private final ArrayList<Message> batch = new ArrayList<Message>() ;
+	boolean waiting = false ;			// in wanted(), so needs notifying; guarded by the queue's lock
+	private boolean exhausted = false ;	// there were no more closed files when we last read; guarded by the queue's lock
+
+	MessageQueuePrefetcher(MessageQueue queue) {
+
+		this.queue = queue ;
+	}
+
+	/** True when the queue is reading a backlog and wants more of it read into memory.  Call with the queue locked **/
+
+	boolean wanted() {
+
+		if (queue.writingNewMessagesToMemory || (queue.backlog == null)) return false ;
+		if (exhausted) return queue.messageQueue.isEmpty() ;		// the sink has caught up
+		return (queue.readAheadMessages() <= queue.backlogReadAheadMessages / 2) && (queue.readAheadSize() <= queue.backlogReadAheadBytes / 2) &&
+			((queue.messageQueueSize < queue.maxMemoryQueueSize) || queue.messageQueue.isEmpty()) ;
+	}
+
+	public void run() {		// our thread..
+
+		Thread.currentThread().setName("MessageQueuePrefetcher-" + queue) ;
+		while (true) {
+			try {
+				MessageQueueBacklog backlog ;
+				int messages ;
+				long bytes ;
+				synchronized (queue) {
+					while (!wanted()) {
+						waiting = true ;
+						queue.wait() ;
+						waiting = false ;
+					}
+					if (exhausted) {
+						caughtUp() ;
+						continue ;
+					}
+					backlog = queue.backlog ;		// only replaced when the queue goes back to disk, after we've finished with it
+					messages = queue.backlogReadAheadMessages - queue.readAheadMessages() ;
+					bytes = Math.max(1, Math.min(queue.backlogReadAheadBytes - queue.readAheadSize(), queue.maxMemoryQueueSize - queue.messageQueueSize)) ;
+				}
+
+				// read without the lock, all of the last block read, so it can be sent whole
+
+				boolean more = true ;
+				long read = 0 ;
+				Message message = null ;
+				while (((batch.size() < messages) && (read < bytes)) ||
+					((message != null) && (message.block != null) && (message.blockIndex < message.block.count - 1))) {
+					message = backlog.next() ;
+					if (message == null) {
+						more = false ;
+						break ;
+					}
+					batch.add(message) ;
+					read += MessageQueue.MemorySize(message) ;
+				}
+				append(!more) ;
+			}
+			catch (Exception e) {
+				System.err.println("Error in MessageQueuePrefetcher reading the backlog of " + queue + ":" + e) ;
+				e.printStackTrace() ;
+				append(false) ;		// what was read before the error has been taken from the backlog, so must still be delivered
+				try {
+					Thread.sleep(RETRY_MILLIS) ;
+				}
+				catch (InterruptedException ie) { }
+			}
+		}
+	}
+
+	/** Append the messages read to the memory queue, and empty the batch **/
+
+	private void append(boolean exhausted) {
+
+		synchronized (queue) {
+			for (Message m: batch) queue.writeToMemory(m) ;
+			if (exhausted) this.exhausted = true ;
+			if ((queue.sinksWaiting > 0) && !queue.messageQueue.isEmpty()) queue.notifyAll() ;
+		}
+		batch.clear() ;
+	}
+
+	/** The sink has taken everything read from the backlog: read any file closed since we looked, or close the current
+	    file to read it, or go back to writing new messages to memory.  Call with the queue locked.
+	**/
+
+	private void caughtUp() throws Exception {
+
+		exhausted = false ;
+		Message message = queue.backlog.next() ;		// the rest of its file is read without the lock
+		if (message != null) {
+			queue.writeToMemory(message) ;
+			if (queue.sinksWaiting > 0) queue.notifyAll() ;
+		}
+		else if (queue.currentMessageQueueFile != null) {		// close it - dont want to be reading and writing it!
+			queue.currentMessageQueueFile.close(null) ;
+			queue.currentMessageQueueFile = null ;
+		}
+		else {
+			queue.writingNewMessagesToMemory = true ;
+			queue.backlog = null ;
+		}
+	}
+}
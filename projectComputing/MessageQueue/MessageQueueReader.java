@@ -21,51 +21,270 @@ package projectComputing.MessageQueue ;
 		..
 	}
 	mqReader.close() ;
+
+  or, to have the message queue send up to prefetch messages ahead of those read, acking them a batch at a time
+  rather than each one waiting for its own ack to reach the message queue:
+
+	MessageQueueReader mqReader = new MessageQueueReader(serverAddr, serverPort, 1000) ;
+
+  or, to read from a named queue rather than the default queue:
+
+	MessageQueueReader mqReader = new MessageQueueReader(serverAddr, serverPort, 1000, "orders") ;
+
+  or, when the message queue has competingConsumers, to ack each message when it has been processed, in any order,
+  rather than as it is read (a message not acked within the message queue's leaseMillis is sent again, maybe to another sink):
+
+	MessageQueueReader mqReader = new MessageQueueReader(serverAddr, serverPort, 1000, "orders", true) ;
+	...
+	ReceivedMessageQueueMessage message = mqReader.read() ;
+	...
+	mqReader.ack(message) ;
+
+  or, to read each message into the same buffer, rather than a new ReceivedMessageQueueMessage, so reading allocates
+  nothing for each message (only message.contents[0..message.length-1] are the message's contents):
+
+	MessageQueueMessageBuffer message = new MessageQueueMessageBuffer() ;
+	while (true) {
+		mqReader.read(message) ;
+		...
+	}
+
+  or, when the message queue has compression "deflate", to be sent its blocks of compressed messages as they are, to
+  inflate here (only with a prefetch bigger than 1, and not with competingConsumers):
+
+	MessageQueueReader mqReader = new MessageQueueReader(serverAddr, serverPort, 1000, "orders", false, true) ;
 **/
 
 import java.io.*;
 import java.net.*;
 import java.nio.* ;
+import java.util.zip.* ;
 
 public class MessageQueueReader {
 
+	static final int PROTOCOL_VERSION = 1 ;		// of the hello we send when we connect
+
 	Socket server ;
 	final BufferedInputStream bis ;
 	final BufferedOutputStream bos ;
 	final ByteBuffer lenBuffer ;
 	public int count = 0 ;
 
+	// prefetch mode only
+
+	final int prefetch ;
+	final int ackBatch ;		// ack at least this often even when more messages are waiting to be read
+	final ByteBuffer ackBuffer = ByteBuffer.allocate(8) ;
+	long acked = 0 ;
+
+	final boolean ackIndividually ;		// the caller acks each message with ack(message)
+
+	// compressed blocks: the messages of the block being read, and how many of them are left
+
+	Inflater inflater ;
+	byte compressed[] ;
+	ByteBuffer block ;
+	int blockRemaining = 0 ;
+	boolean blockReplayed ;
+
 	public MessageQueueReader(String serverAddr, int serverSinkPort) throws Exception {
 
+		this(serverAddr, serverSinkPort, 1) ;
+	}
+
+	/** prefetch is the max number of messages the message queue sends before they are acked.  1 gives the original
+		stop-and-wait protocol, where each message is acked as it is read, and the next message isn't sent until the ack
+		arrives.  A bigger prefetch acks cumulatively, when there are no more messages waiting to be read or every prefetch/2 messages.
+	**/
+
+	public MessageQueueReader(String serverAddr, int serverSinkPort, int prefetch) throws Exception {
+
+		this(serverAddr, serverSinkPort, prefetch, null) ;
+	}
+
+	/** Reads from the named queue, which is created if it doesn't exist, or the default queue if queueName is null **/
+
+	public MessageQueueReader(String serverAddr, int serverSinkPort, int prefetch, String queueName) throws Exception {
+
+		this(serverAddr, serverSinkPort, prefetch, queueName, false) ;
+	}
+
+	/** If ackIndividually, messages are not acked as they are read, but when the caller calls ack(message), in any order.
+		This needs the message queue to have competingConsumers.  With a prefetch of 1, each message must be acked before
+		the next can be read.
+	**/
+
+	public MessageQueueReader(String serverAddr, int serverSinkPort, int prefetch, String queueName, boolean ackIndividually) throws Exception {
+
+		this(serverAddr, serverSinkPort, prefetch, queueName, ackIndividually, false) ;
+	}
+
+	/** If compressed and prefetch is bigger than 1, asks the message queue to send the blocks of messages it compressed
+		(with compression "deflate") as they are, and inflates them here.  read() still returns one message at a time.
+	**/
+
+	public MessageQueueReader(String serverAddr, int serverSinkPort, int prefetch, String queueName, boolean ackIndividually,
+		boolean compressed) throws Exception {
+
+		if (prefetch < 1) throw new Exception("prefetch must be at least 1") ;
 		this.server = new Socket(serverAddr, serverSinkPort) ;
+		server.setTcpNoDelay(true) ;		// acks are tiny, and the message queue may be waiting for them
 		this.bis = new BufferedInputStream(server.getInputStream()) ;
 		this.bos = new BufferedOutputStream(server.getOutputStream()) ;
 
 		this.lenBuffer = ByteBuffer.allocate(4) ;
+		this.prefetch = prefetch ;
+		this.ackBatch = Math.max(1, prefetch / 2) ;
+		this.ackIndividually = ackIndividually ;
+		bos.write('H') ;		// our hello..
+		bos.write(PROTOCOL_VERSION) ;
+		if (queueName != null) {
+			byte name[] = queueName.getBytes("UTF-8") ;
+			bos.write('Q') ;		// name the queue to read from
+			bos.write(lenBuffer.putInt(0, name.length).array()) ;
+			bos.write(name) ;
+		}
+		if (compressed && (prefetch > 1)) {
+			bos.write('Z') ;		// send compressed blocks as they are
+			inflater = new Inflater() ;
+		}
+		if (prefetch > 1) {
+			bos.write('P') ;		// ask for prefetching, cumulative acks
+			bos.write(lenBuffer.putInt(0, prefetch).array()) ;
+		}
+		bos.write('E') ;		// ..ends
+		bos.flush() ;
 	}
 
 	public ReceivedMessageQueueMessage read() throws Exception {
 
-			byte b = (byte) bis.read() ;
-			if (b < 0) throw new Exception("Unexpected eof received from message queue") ;
+			boolean possiblyReplayed = next() ;
+			byte[] id = new byte[16] ;
+			byte[] contents ;
+			if (blockRemaining == 0) {
+				readBytes(id, 16) ;
+				contents = readBytes(readLen()) ;
+			}
+			else {		// the next message of the block
+				block.get(id) ;
+				contents = new byte[blockLen()] ;
+				block.get(contents) ;
+				blockRemaining-- ;
+			}
+			return new ReceivedMessageQueueMessage(id, contents, possiblyReplayed, received()) ;
+	}
+
+	/** Read the next message into buffer, overwriting the last, rather than returning a new message.  Once buffer has
+		grown to the biggest message, nothing is allocated for each message (nor, reusing their buffers, for each
+		compressed block).  Returns buffer
+	**/
+
+	public MessageQueueMessageBuffer read(MessageQueueMessageBuffer buffer) throws Exception {
+
+			buffer.possiblyReplayed = next() ;
+			int len ;
+			if (blockRemaining == 0) {
+				readBytes(buffer.id, 16) ;
+				len = readLen() ;
+				if (len < 0) throw new Exception("Invalid message length: " + len) ;
+				buffer.ensureCapacity(len) ;
+				readBytes(buffer.contents, len) ;
+			}
+			else {
+				block.get(buffer.id) ;
+				len = blockLen() ;
+				buffer.ensureCapacity(len) ;
+				block.get(buffer.contents, 0, len) ;
+				blockRemaining-- ;
+			}
+			buffer.length = len ;
+			buffer.sequence = received() ;
+			return buffer ;
+	}
+
+	/** Read up to the id of the next message, reading and inflating a block of them if a 'Z' frame comes next, and
+		return whether it may be a replay
+	**/
+
+	private boolean next() throws Exception {
+
+		if (blockRemaining > 0) return blockReplayed ;
+		byte b = (byte) bis.read() ;
+		if (b < 0) throw new Exception("Unexpected eof received from message queue") ;
+		if ((b == 'Z') && (inflater != null)) {
+			readBlock() ;
+			return blockReplayed ;
+		}
+		if (b == 'M') return false ;
+		if (b == 'R') return true ;
+		throw new Exception("Unexpected message type from message queue: " + b) ;
+	}
+
+	private int blockLen() throws Exception {
+
+		int len = block.getInt() ;
+		if ((len < 0) || (len > block.remaining())) throw new Exception("Invalid message length in compressed block: " + len) ;
+		return len ;
+	}
 
-			boolean possiblyReplayed ;
-			if (b == 'M') possiblyReplayed = false ;
-			else if (b == 'R') possiblyReplayed = true ;
-			else throw new Exception("Unexpected message type from message queue: " + b) ;
+	/** A message has been read: ack it unless the caller will, and return its sequence number **/
+
+	private long received() throws Exception {
 
-			byte[] id = readBytes(16) ;
-			int len = readLen() ;
-			byte[] contents = readBytes(len) ;
-			
-			bos.write('Y') ;
-			bos.flush() ;
 			count++ ;
-			return new ReceivedMessageQueueMessage(id, contents, possiblyReplayed) ;
+			if (!ackIndividually) {		// else the caller will ack it
+				if (prefetch == 1) {
+					bos.write('Y') ;
+					bos.flush() ;
+				}
+				else if (((blockRemaining == 0) && (bis.available() == 0)) || ((count - acked) >= ackBatch)) ack() ;
+			}
+			return count ;
+	}
+
+	/** Read and inflate a 'Z' frame's block of messages, into the buffers used for the last block if they are big enough **/
+
+	private void readBlock() throws Exception {
+
+		int b = bis.read() ;
+		if (b < 0) throw new Exception("Eof reading compressed block") ;
+		blockReplayed = (b != 0) ;
+		int blockCount = readLen() ;
+		int len = readLen() ;
+		int compressedLen = readLen() ;
+		if ((blockCount < 1) || (len < 0) || (compressedLen < 0)) throw new Exception("Invalid compressed block: " + blockCount + " messages, length " + len + ", compressed " + compressedLen) ;
+		if ((compressed == null) || (compressed.length < compressedLen)) compressed = new byte[compressedLen] ;
+		readBytes(compressed, compressedLen) ;
+		if ((block == null) || (block.capacity() < len)) block = ByteBuffer.allocate(len) ;
+		MessageQueueBlock.Inflate(compressed, 0, compressedLen, block.array(), len, inflater) ;
+		block.clear() ;
+		block.limit(len) ;
+		blockRemaining = blockCount ;
+	}
+
+	void ack() throws Exception {		// prefetch mode: ack everything read so far
+
+		bos.write('A') ;
+		bos.write(ackBuffer.putLong(0, count).array()) ;
+		bos.flush() ;
+		acked = count ;
+	}
+
+	/** Ack a message read from a reader created with ackIndividually **/
+
+	public void ack(ReceivedMessageQueueMessage message) throws Exception {
+
+		if (!ackIndividually) throw new Exception("ack(message) needs a MessageQueueReader created with ackIndividually") ;
+		bos.write('K') ;
+		bos.write(ackBuffer.putLong(0, message.sequence).array()) ;
+		bos.flush() ;
 	}
 
 	public void close() throws Exception { 
 
+		if ((prefetch > 1) && (count > acked) && !ackIndividually) ack() ;
+
+		if (inflater != null) inflater.end() ;
 		bis.close() ;	
 		bos.close() ;
 		server.close() ;
@@ -89,7 +308,11 @@ public class MessageQueueReader {
 
 	byte[] readBytes(int sz) throws Exception {
 
-		final byte buf[] = new byte[sz] ;
+		return readBytes(new byte[sz], sz) ;
+	}
+
+	byte[] readBytes(byte buf[], int sz) throws Exception {		// into the first sz bytes of buf
+
 		int start = 0 ;
 		int len = sz ;
 		while (len > 0) {
@@ -0,0 +1,285 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueReplicator - streams a primary message queue's commits and sink acks to its standby.
+
+  Used when standbyAddress is set.  Each queue's commit() queues a record of its batch of messages, and each sink ack
+  (messagesSentSuccessfully) a record of how many messages were acked, under the queue's lock, so the standby sees
+  them in the same order for each queue.  Our thread writes whatever records are queued, flushing only when it has
+  written them all, so the batches of many commits go together, and nothing waits for the standby between them (unless
+  it falls MAX_RECORDS behind).  When there is nothing to send for a while, it sends a heartbeat, so the standby knows
+  we're still here.
+
+  The standby confirms cumulatively, with the sequence number of the last batch it has committed, and confirms again as a
+  heartbeat when it has nothing new to confirm, so if we hear nothing from it for failoverMillis, it has gone (or hung),
+  and we stop waiting for it.  With replicationAcks "sync", the committer doesn't tell sources their messages are
+  committed until the standby has confirmed them (the committer itself goes on to the next batch meanwhile); with
+  "async", as soon as they are committed here.
+
+  If the standby goes, we carry on without it, and sources waiting for it are acked.  If it isn't there when we start
+  (as when this was the primary, and is restarted after its standby has taken over), we wait for it for failoverMillis,
+  then start without it.
+
+  To the standby:
+
+	commit  : 'C', sequence (8 bytes), queue name len (4 bytes, 0 for the default queue), name[len] (UTF-8), partition (4 bytes),
+			  count (4 bytes), then count messages, each id (16 bytes), len (4 bytes), contents[len]
+	acked   : 'A', queue name len (4 bytes), name[len], partition (4 bytes), count (4 bytes)
+	heartbeat : 'H'
+
+  From the standby:
+
+	confirm : 'Y', sequence of the last commit it has committed (8 bytes), also its heartbeat
+**/
+
+import java.io.*;
+import java.net.*;
+import java.nio.* ;
+import java.util.* ;
+
+class MessageQueueReplicator implements Runnable {
+
+	static final int CONNECT_RETRY_MILLIS = 1000 ;
+	static final int MAX_RECORDS = 10000 ;		// queued and not yet written, before commits and acks wait for the standby
+
+	private final String host ;
+	private final int port ;
+	final boolean sync ;
+	private final int heartbeatMillis ;
+	private final int failoverMillis ;
+
+	private Socket socket ;
+	private BufferedInputStream bis ;
+	private BufferedOutputStream bos ;
+	private final ByteBuffer header = ByteBuffer.allocate(8) ;
+
+	private final ArrayDeque<Record> records = new ArrayDeque<Record>() ;	// waiting to be written, and our lock for them
+	private long sequence = 0 ;			// of the last commit queued
+	private boolean lost = false ;		// the standby has gone, so we no longer replicate
+
+	private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>() ;	// sync only: receipts waiting for the standby, and our lock for them
+	private long confirmed = 0 ;		// sequence of the last commit the standby has confirmed
+
+	MessageQueueReplicator(String standbyAddress, boolean sync, int failoverMillis) throws Exception {
+
+		int colon = standbyAddress.lastIndexOf(':') ;
+		if (colon < 1) throw new Exception("standbyAddress must be host:port, not " + standbyAddress) ;
+		this.host = standbyAddress.substring(0, colon) ;
+		this.port = Integer.parseInt(standbyAddress.substring(colon + 1)) ;
+		this.sync = sync ;
+		this.heartbeatMillis = Math.max(1, failoverMillis / 4) ;
+		this.failoverMillis = failoverMillis ;
+	}
+
+	/** Connect to the standby, waiting up to failoverMillis for it to listen, and start streaming to it.  If it doesn't,
+		we start without it, as if it had gone.
+	**/
+
+	void start() throws Exception {
+
+		long giveUp = System.currentTimeMillis() + failoverMillis ;
+		while (socket == null) {
+			try {
+				socket = new Socket(host, port) ;
+			}
+			catch (ConnectException e) {
+				long now = System.currentTimeMillis() ;
+				if (now >= giveUp) {
+					lost = true ;
+					System.err.println("*** NOT REPLICATING: no standby message queue listening at " + host + ":" + port + " after " + failoverMillis +
+						" millisecs (failoverMillis), so starting without one.  Nothing is replicated until this message queue is restarted with its standby running ***") ;
+					return ;
+				}
+				System.err.println("Waiting for the standby message queue at " + host + ":" + port) ;
+				Thread.sleep(Math.min(CONNECT_RETRY_MILLIS, giveUp - now)) ;
+			}
+		}
+		socket.setTcpNoDelay(true) ;
+		socket.setSoTimeout(failoverMillis) ;		// its heartbeats come more often than this
+		bis = new BufferedInputStream(socket.getInputStream()) ;
+		bos = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024) ;
+		System.out.println("Replicating to the standby message queue at " + host + ":" + port + ", replicationAcks: " + (sync ? MessageQueue.REPLICATION_SYNC : MessageQueue.REPLICATION_ASYNC)) ;
+		new Thread(this).start() ;
+		Thread confirmations = new Thread(new Runnable() {
+			public void run() { readConfirmations() ; }
+		}, "MessageQueueReplicator-confirmations") ;
+		confirmations.setDaemon(true) ;
+		confirmations.start() ;
+	}
+
+	/** queue has committed messages: returns the sequence number of their record, or 0 if we're not replicating.  Call with queue locked **/
+
+	long committed(MessageQueue queue, List<Message> messages) throws InterruptedException {
+
+		synchronized (records) {
+			if (!queue(new Record(queue, new ArrayList<Message>(messages), 0, sequence + 1))) return 0 ;	// the committer reuses its list
+			return ++sequence ;
+		}
+	}
+
+	/** queue's sink has acked count messages.  Call with queue locked **/
+
+	void acked(MessageQueue queue, int count) throws InterruptedException {
+
+		synchronized (records) {
+			queue(new Record(queue, null, count, 0)) ;
+		}
+	}
+
+	private boolean queue(Record record) throws InterruptedException {		// with the records lock: false if we're not replicating
+
+		while (!lost && (records.size() >= MAX_RECORDS)) records.wait() ;	// the standby is falling behind
+		if (lost) return false ;
+		records.add(record) ;
+		records.notifyAll() ;
+		return true ;
+	}
+
+	/** Sync only: tell receipt its count messages are committed once the standby has confirmed the commit with this sequence number **/
+
+	void confirm(long sequence, MessageQueueCommitter.Receipt receipt, int count) {
+
+		synchronized (pending) {
+			if (lost || (confirmed >= sequence)) receipt.committed(count, null) ;
+			else pending.add(new Pending(sequence, receipt, count)) ;
+		}
+	}
+
+	public void run() {		// our thread..
+
+		Thread.currentThread().setName("MessageQueueReplicator") ;
+		try {
+			while (true) {
+				Record record ;
+				synchronized (records) {
+					record = records.poll() ;
+					if ((record != null) && (records.size() == MAX_RECORDS - 1)) records.notifyAll() ;	// there's room now
+				}
+				if (record != null) {
+					write(record) ;
+					continue ;
+				}
+				bos.flush() ;		// everything queued has been written
+				boolean idle ;
+				synchronized (records) {
+					if (records.isEmpty()) records.wait(heartbeatMillis) ;
+					idle = records.isEmpty() ;
+				}
+				if (idle) {
+					bos.write('H') ;
+					bos.flush() ;
+				}
+			}
+		}
+		catch (Exception e) {
+			lost(e) ;
+		}
+	}
+
+	private void write(Record record) throws Exception {
+
+		MessageQueue queue = record.queue ;
+		bos.write((record.messages != null) ? 'C' : 'A') ;
+		if (record.messages != null) bos.write(header.putLong(0, record.sequence).array(), 0, 8) ;
+		byte name[] = (queue.name == null) ? new byte[0] : queue.name.getBytes("UTF-8") ;
+		bos.write(header.putInt(0, name.length).array(), 0, 4) ;
+		bos.write(name) ;
+		bos.write(header.putInt(0, queue.partition).array(), 0, 4) ;
+		if (record.messages == null) {
+			bos.write(header.putInt(0, record.acked).array(), 0, 4) ;
+			return ;
+		}
+		bos.write(header.putInt(0, record.messages.size()).array(), 0, 4) ;
+		for (Message message: record.messages) {		// from sources, so their ids and contents are arrays
+			bos.write(message.id) ;
+			bos.write(header.putInt(0, message.contentsLength).array(), 0, 4) ;
+			bos.write(message.contents, 0, message.contentsLength) ;
+		}
+	}
+
+	private void readConfirmations() {
+
+		byte sequenceBytes[] = new byte[8] ;
+		try {
+			while (true) {
+				int b = bis.read() ;
+				if (b < 0) throw new Exception("Eof from standby") ;
+				if (b != 'Y') throw new Exception("Unexpected confirmation from standby: " + b) ;
+				for (int i=0;i<8;i++) {
+					int j = bis.read() ;
+					if (j < 0) throw new Exception("Eof reading confirmation from standby") ;
+					sequenceBytes[i] = (byte) j ;
+				}
+				long sequence = ByteBuffer.wrap(sequenceBytes).getLong() ;
+				synchronized (pending) {
+					confirmed = Math.max(confirmed, sequence) ;
+					while (!pending.isEmpty() && (pending.peek().sequence <= sequence)) {
+						Pending p = pending.poll() ;
+						p.receipt.committed(p.count, null) ;
+					}
+				}
+			}
+		}
+		catch (SocketTimeoutException e) {
+			lost(new Exception("Nothing from standby for " + failoverMillis + " millisecs")) ;
+		}
+		catch (Exception e) {
+			lost(e) ;
+		}
+	}
+
+	/** The standby has gone: carry on without it, acking the sources waiting for it, and waking commits and acks waiting
+		for room.  Closing the connection also ends a write blocked on a hung standby
+	**/
+
+	private void lost(Exception e) {
+
+		synchronized (records) {
+			if (lost) return ;
+			lost = true ;
+			records.clear() ;
+			records.notifyAll() ;
+		}
+		System.err.println("Lost the standby message queue at " + host + ":" + port + ", no longer replicating: " + e) ;
+		synchronized (pending) {
+			while (!pending.isEmpty()) {
+				Pending p = pending.poll() ;
+				p.receipt.committed(p.count, null) ;
+			}
+		}
+		try {
+			socket.close() ;
+		}
+		catch (Exception e2) { }
+	}
+
+	static class Record {
+
+		final MessageQueue queue ;
+		final List<Message> messages ;	// committed, or null if acked
+		final int acked ;
+		final long sequence ;
+
+		Record(MessageQueue queue, List<Message> messages, int acked, long sequence) {
+
+			this.queue = queue ;
+			this.messages = messages ;
+			this.acked = acked ;
+			this.sequence = sequence ;
+		}
+	}
+
+	static class Pending {
+
+		final long sequence ;
+		final MessageQueueCommitter.Receipt receipt ;
+		final int count ;
+
+		Pending(long sequence, MessageQueueCommitter.Receipt receipt, int count) {
+
+			this.sequence = sequence ;
+			this.receipt = receipt ;
+			this.count = count ;
+		}
+	}
+}
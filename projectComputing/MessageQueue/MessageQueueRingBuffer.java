@@ -0,0 +1,148 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueRingBuffer - a bounded, preallocated, multi-producer single-consumer ring of entries.
+
+  Producers claim the next sequence number with a compare-and-set, fill in the preallocated entry for it, then publish it
+  by setting the entry's slot to the "round" of the ring the sequence is in.  The single consumer reads published entries
+  in sequence order and releases them when it has finished with them, so producers can reuse their slots.  No locks are
+  taken, and no objects are allocated, to pass an entry from a producer to the consumer.
+
+  How the consumer waits for an entry to be published is configurable: "spin" busy-waits, "yield" busy-waits yielding its
+  cpu, and "park" spins briefly then parks its thread, in which case producers unpark it, but only when it is actually parked.
+  Producers waiting for the consumer to release a slot (the ring is full) spin, yield or sleep briefly in the same way.
+**/
+
+import java.util.concurrent.atomic.* ;
+import java.util.concurrent.locks.* ;
+
+class MessageQueueRingBuffer<E> {
+
+	static final String WAIT_SPIN = "spin" ;
+	static final String WAIT_YIELD = "yield" ;
+	static final String WAIT_PARK = "park" ;
+
+	static final int SPINS_BEFORE_WAITING = 100 ;
+	static final long PRODUCER_PARK_NANOS = 50000 ;		// how long a producer sleeps between checks for a free slot, with "park"
+
+	private final E[] entries ;
+	private final int mask ;
+	private final int roundShift ;
+	private final AtomicIntegerArray published ;			// the round of the sequence last published in each slot
+	private final AtomicLong claimed = new AtomicLong(0) ;	// the next sequence to be claimed by a producer
+	private volatile long released = 0 ;					// sequences before this have been released by the consumer
+	private final String waitStrategy ;
+
+	private volatile Thread consumer ;
+	private volatile boolean consumerParked = false ;
+
+	/** entries are the preallocated entries, and their number must be a power of 2 **/
+
+	MessageQueueRingBuffer(E[] entries, String waitStrategy) throws Exception {
+
+		if ((entries.length < 2) || (Integer.bitCount(entries.length) != 1)) throw new Exception("ring buffer size must be a power of 2, not " + entries.length) ;
+		if (!WAIT_SPIN.equals(waitStrategy) && !WAIT_YIELD.equals(waitStrategy) && !WAIT_PARK.equals(waitStrategy))
+			throw new Exception("wait strategy must be one of " + WAIT_SPIN + ", " + WAIT_YIELD + " or " + WAIT_PARK + ", not " + waitStrategy) ;
+		this.entries = entries ;
+		this.mask = entries.length - 1 ;
+		this.roundShift = Integer.numberOfTrailingZeros(entries.length) ;
+		this.published = new AtomicIntegerArray(entries.length) ;
+		for (int i=0;i<entries.length;i++) published.set(i, -1) ;
+		this.waitStrategy = waitStrategy ;
+	}
+
+	int capacity() {
+
+		return entries.length ;
+	}
+
+	E get(long sequence) {
+
+		return entries[(int) sequence & mask] ;
+	}
+
+	/** Producer: claim the next sequence, waiting while the ring is full.  Fill in get(sequence), then publish(sequence) **/
+
+	long claim() {
+
+		int spins = 0 ;
+		while (true) {
+			long sequence = claimed.get() ;
+			if ((sequence - released) >= entries.length) {		// its slot still holds an entry the consumer hasn't finished with
+				if (spins++ < SPINS_BEFORE_WAITING) Thread.onSpinWait() ;
+				else if (WAIT_SPIN.equals(waitStrategy)) Thread.onSpinWait() ;
+				else if (WAIT_YIELD.equals(waitStrategy)) Thread.yield() ;
+				else LockSupport.parkNanos(PRODUCER_PARK_NANOS) ;
+				continue ;
+			}
+			if (claimed.compareAndSet(sequence, sequence + 1)) return sequence ;
+		}
+	}
+
+	/** Producer: claim the next sequence as claim() does, unless the ring is full, when it returns -1 rather than waiting **/
+
+	long tryClaim() {
+
+		while (true) {
+			long sequence = claimed.get() ;
+			if ((sequence - released) >= entries.length) return -1 ;
+			if (claimed.compareAndSet(sequence, sequence + 1)) return sequence ;
+		}
+	}
+
+	void publish(long sequence) {
+
+		published.set((int) sequence & mask, (int) (sequence >>> roundShift)) ;	// a volatile write, ordered before reading consumerParked
+		if (consumerParked) LockSupport.unpark(consumer) ;
+	}
+
+	/** Consumer: true if the entry for sequence has been published **/
+
+	boolean isPublished(long sequence) {
+
+		return published.get((int) sequence & mask) == (int) (sequence >>> roundShift) ;
+	}
+
+	/** Consumer: the highest sequence, from sequence on, up to which every entry has been published, or sequence - 1 if sequence hasn't been **/
+
+	long availableFrom(long sequence) {
+
+		long last = sequence - 1 ;
+		long limit = released + entries.length ;		// sequences from here on can't have been claimed yet
+		while ((last + 1 < limit) && isPublished(last + 1)) last++ ;
+		return last ;
+	}
+
+	/** Consumer: wait until sequence is published, or for timeoutNanos (forever if < 0).  Returns true if it was published **/
+
+	boolean waitFor(long sequence, long timeoutNanos) {
+
+		if (isPublished(sequence)) return true ;
+		long deadline = (timeoutNanos < 0) ? 0 : System.nanoTime() + timeoutNanos ;
+		int spins = 0 ;
+		while (!isPublished(sequence)) {
+			long remaining = (timeoutNanos < 0) ? Long.MAX_VALUE : deadline - System.nanoTime() ;
+			if (remaining <= 0) return false ;
+			if (spins++ < SPINS_BEFORE_WAITING) Thread.onSpinWait() ;
+			else if (WAIT_SPIN.equals(waitStrategy)) Thread.onSpinWait() ;
+			else if (WAIT_YIELD.equals(waitStrategy)) Thread.yield() ;
+			else {
+				if (consumer == null) consumer = Thread.currentThread() ;
+				consumerParked = true ;							// a volatile write, ordered before reading the slot again..
+				if (!isPublished(sequence)) {					// ..so a producer publishing now will see we're parked
+					if (timeoutNanos < 0) LockSupport.park(this) ;
+					else LockSupport.parkNanos(this, remaining) ;
+				}
+				consumerParked = false ;
+			}
+		}
+		return true ;
+	}
+
+	/** Consumer: every entry up to and including sequence has been consumed, and its slot can be reused **/
+
+	void release(long sequence) {
+
+		released = sequence + 1 ;
+	}
+}
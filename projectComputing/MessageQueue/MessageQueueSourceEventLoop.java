@@ -0,0 +1,396 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueSourceEventLoop - handles many source connections on one thread, with a Selector.
+
+  Used when sourceConnectionEngine is "nio", instead of a thread per source.  Each connection's input is read into the
+  loop's ByteBuffer and parsed without blocking: as many whole frames as have arrived are handled, and only the rest is
+  kept, in a buffer of the connection's own the size of its frame, until the rest arrives.  Acks are written from the
+  loop's buffer too, and only those the connection can't take straight away are kept.  So an idle connection holds no
+  buffers.  The protocol is the same as MessageQueueSource's.  Messages are submitted to the committer as usual, but rather
+  than waiting for them to be committed, the loop is told when they have been (by the connection's receipt), and then
+  acks them, with 'Y' for each message or, if the source asked for pipelined acks, with one cumulative 'A'.
+
+  While a watermark is reached, a connection with a message to submit is paused: it stops being read, and its message
+  waits in its input buffer until the message queue tells us to resume (see MessageQueue.checkWatermarks).
+
+  The loop never waits for the committer: when its ring buffer is full, a connection with a message to submit stops
+  being read in the same way, and tries again when the committer tells it some of its messages are committed, or
+  within RING_FULL_RETRY_MILLIS, so its other connections' acks and flow control frames aren't held up.
+**/
+
+import java.io.*;
+import java.net.*;
+import java.nio.* ;
+import java.nio.channels.* ;
+import java.util.* ;
+import java.util.concurrent.* ;
+import java.util.concurrent.atomic.* ;
+
+class MessageQueueSourceEventLoop implements Runnable {
+
+	static final int INPUT_BUFFER_SIZE = 16 * 1024 ;
+	static final int OUTPUT_BUFFER_SIZE = 1024 ;
+	static final int RING_FULL_RETRY_MILLIS = 1 ;
+
+	private final MessageQueue messageQueue ;
+	private final String name ;
+	private final Selector selector ;
+	private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>() ;
+	private final ConcurrentLinkedQueue<Connection> committedConnections = new ConcurrentLinkedQueue<Connection>() ;
+	private final AtomicBoolean wakeupPending = new AtomicBoolean(false) ;
+	private final AtomicBoolean resumePending = new AtomicBoolean(false) ;
+	private final ArrayList<Connection> paused = new ArrayList<Connection>() ;		// only used by our thread
+	private final ArrayList<Connection> waitingForRoom = new ArrayList<Connection>() ;	// in the ring buffer; only used by our thread
+	private final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE) ;		// what a connection has sent, read by our thread..
+	private final ByteBuffer output = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE) ;		// ..and its acks to write
+	int connections = 0 ;
+
+	MessageQueueSourceEventLoop(MessageQueue messageQueue, String name) throws Exception {
+
+		this.messageQueue = messageQueue ;
+		this.name = name ;
+		this.selector = Selector.open() ;
+	}
+
+	/** Hand a newly accepted connection to this loop **/
+
+	void add(SocketChannel channel) {
+
+		newChannels.add(channel) ;
+		wakeup() ;
+	}
+
+	private void wakeup() {
+
+		if (wakeupPending.compareAndSet(false, true)) selector.wakeup() ;
+	}
+
+	/** The message queue is below the low watermarks again, so resume the connections we've paused **/
+
+	void resume() {
+
+		resumePending.set(true) ;
+		wakeup() ;
+	}
+
+	private void resumePaused() {
+
+		ArrayList<Connection> resuming = new ArrayList<Connection>(paused) ;
+		paused.clear() ;
+		for (Connection connection: resuming) {
+			if (!connection.paused || !connection.key.isValid()) continue ;
+			if (messageQueue.busy) paused.add(connection) ;		// busy again already, so wait to be resumed next time
+			else handle(connection, false) ;
+		}
+	}
+
+	private void retryWaitingForRoom() {
+
+		ArrayList<Connection> retrying = new ArrayList<Connection>(waitingForRoom) ;
+		waitingForRoom.clear() ;
+		for (Connection connection: retrying) if (connection.waitingForRoom && connection.key.isValid()) handle(connection, false) ;
+	}
+
+	public void run() {		// our thread..
+
+		Thread.currentThread().setName(name) ;
+		while (true) {
+			try {
+				if (waitingForRoom.isEmpty()) selector.select() ;
+				else selector.select(RING_FULL_RETRY_MILLIS) ;
+				wakeupPending.set(false) ;
+				SocketChannel channel ;
+				while ((channel = newChannels.poll()) != null) register(channel) ;
+				if (resumePending.getAndSet(false)) resumePaused() ;
+				if (!waitingForRoom.isEmpty()) retryWaitingForRoom() ;
+				Connection connection ;
+				while ((connection = committedConnections.poll()) != null) {
+					connection.queued.set(false) ;
+					if (connection.key.isValid()) handle(connection, false) ;
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator() ;
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next() ;
+					keys.remove() ;
+					if (key.isValid()) handle((Connection) key.attachment(), key.isReadable()) ;
+				}
+			}
+			catch (Exception e) {
+				System.err.println("Error in " + name + ":" + e) ;
+				e.printStackTrace() ;
+			}
+		}
+	}
+
+	private void register(SocketChannel channel) {
+
+		try {
+			channel.configureBlocking(false) ;
+			channel.socket().setTcpNoDelay(true) ;		// acks are tiny, and the source is waiting for them
+			Connection connection = new Connection(channel) ;
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection) ;
+			connections++ ;
+			System.out.println("Source session started: " + connection.remote) ;
+		}
+		catch (Exception e) {
+			System.err.println("Error in " + name + " registering source:" + e) ;
+			try {
+				channel.close() ;
+			}
+			catch (Exception e2) { }
+		}
+	}
+
+	private void handle(Connection connection, boolean readable) {
+
+		try {
+			output.clear() ;
+			if (readable) connection.read() ;
+			else if (connection.waitingForRoom) connection.retry() ;
+			else if (connection.paused && !messageQueue.busy) connection.resume() ;
+			connection.ack() ;
+			connection.tell() ;
+			connection.write() ;
+			if (connection.finished()) connection.close() ;
+		}
+		catch (Exception e) {
+			System.err.println("Error in MessageQueueSource-" + connection.remote + ":" + e) ;
+			if (!(e instanceof IOException)) e.printStackTrace() ;
+			connection.close() ;
+		}
+	}
+
+	/** A source connection.  Its messages are submitted with it as their receipt, so it is told when they are committed **/
+
+	class Connection extends MessageQueueCommitter.Receipt {
+
+		final SocketChannel channel ;
+		final String remote ;
+		SelectionKey key ;
+		ByteBuffer input ;				// what is left of what has been read, in write mode, or null when nothing is
+		ByteBuffer output ;				// acks which couldn't be written yet, in write mode, or null
+		final AtomicBoolean queued = new AtomicBoolean(false) ;		// on committedConnections
+
+		MessageQueue queue = messageQueue ;		// the queue this source's messages go to
+		boolean pipelined = false ;		// source asked for cumulative acks
+		boolean flowControl = false ;	// source asked to be told when it is paused
+		boolean paused = false ;		// by the watermarks, with the message to submit next in input
+		boolean toldPaused = false ;	// what we last told a source with flowControl
+		boolean waitingForRoom = false ;	// in the committer's ring buffer, with the message to submit next in input
+		boolean ended = false ;			// source sent 'E', or its connection was closed
+		long received = 0 ;				// messages received from this source
+		long acked = 0 ;				// messages acked to this source
+
+		Connection(SocketChannel channel) throws Exception {
+
+			this.channel = channel ;
+			this.remote = channel.socket().getRemoteSocketAddress().toString() ;
+		}
+
+		/** Called by the committer thread when some of our messages have been committed **/
+
+		void committed(int count, Exception failure) {
+
+			super.committed(count, failure) ;
+			if (queued.compareAndSet(false, true)) {
+				committedConnections.add(this) ;
+				MessageQueueSourceEventLoop.this.wakeup() ;
+			}
+		}
+
+		void read() throws Exception {
+
+			ByteBuffer in = (input != null) ? input : MessageQueueSourceEventLoop.this.input ;	// after the start of a frame, or the loop's
+			if (input == null) in.clear() ;
+			int n = channel.read(in) ;
+			if (n < 0) {
+				if (!ended) System.out.println("Unexpected EOF from source") ;
+				ended = true ;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ) ;
+			}
+			parse(in) ;
+		}
+
+		/** Handle the whole frames in, which is in write mode, keeping the rest in input **/
+
+		private void parse(ByteBuffer in) throws Exception {
+
+			in.flip() ;
+			int needed = 0 ;		// size of a frame which hasn't all arrived
+			while (!ended && !paused && !waitingForRoom && in.hasRemaining()) {
+				in.mark() ;
+				byte b = in.get() ;
+				if ((b == 'M') || (b == 'I')) {
+					int headerLength = (b == 'I') ? 16 + 4 : 4 ;
+					if (in.remaining() < headerLength) {
+						in.reset() ;
+						needed = 1 + headerLength ;
+						break ;
+					}
+					byte id[] = null ;
+					if (b == 'I') {
+						id = new byte[16] ;
+						in.get(id) ;
+					}
+					int len = in.getInt() ;
+					if (len < 0) throw new Exception("Invalid message length: " + len) ;
+					if (in.remaining() < len) {			// wait for the rest
+						in.reset() ;
+						needed = 1 + headerLength + len ;
+						break ;
+					}
+					if (messageQueue.busy) {		// leave it to be submitted when we resume
+						in.reset() ;
+						pause() ;
+						break ;
+					}
+					byte contents[] = new byte[len] ;
+					in.get(contents) ;
+					if (!queue.trySubmit((id == null) ? new Message(contents) : new Message(id, contents, false), this)) {	// the ring is full
+						in.reset() ;
+						waitForRoom() ;
+						break ;
+					}
+					received++ ;
+				}
+				else if (b == 'P') {
+					if (in.remaining() < 4) {
+						in.reset() ;
+						needed = 1 + 4 ;
+						break ;
+					}
+					int window = in.getInt() ;
+					if (window < 1) throw new Exception("Invalid pipelined window: " + window) ;
+					pipelined = true ;
+				}
+				else if (b == 'Q') {
+					if (in.remaining() < 4) {
+						in.reset() ;
+						needed = 1 + 4 ;
+						break ;
+					}
+					int len = in.getInt() ;
+					if ((len < 1) || (len > MessageQueue.MAX_QUEUE_NAME_LENGTH)) throw new Exception("Invalid queue name length: " + len) ;
+					if (in.remaining() < len) {
+						in.reset() ;
+						needed = 1 + 4 + len ;
+						break ;
+					}
+					byte queueName[] = new byte[len] ;
+					in.get(queueName) ;
+					queue = messageQueue.queue(new String(queueName, "UTF-8")) ;
+				}
+				else if (b == 'F') flowControl = true ;
+				else if (b == 'E') {
+					System.out.println("EOF received from source") ;
+					ended = true ;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ) ;
+				}
+				else throw new Exception("Unexpected message start: " + b) ;
+			}
+			if (!in.hasRemaining()) input = null ;
+			else if ((in == input) && (input.capacity() >= needed)) input.compact() ;
+			else {		// keep it, with room for the rest of the frame, so that is read straight in
+				input = ByteBuffer.allocate(Math.max(in.remaining(), needed)) ;
+				input.put(in) ;
+			}
+		}
+
+		private void pause() {
+
+			paused = true ;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ) ;
+			MessageQueueSourceEventLoop.this.paused.add(this) ;
+		}
+
+		private void waitForRoom() {
+
+			waitingForRoom = true ;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ) ;
+			MessageQueueSourceEventLoop.this.waitingForRoom.add(this) ;
+		}
+
+		void retry() throws Exception {
+
+			waitingForRoom = false ;
+			if (!ended) key.interestOps(key.interestOps() | SelectionKey.OP_READ) ;
+			parse(input) ;		// the message we couldn't submit, which may have to wait again
+		}
+
+		void resume() throws Exception {
+
+			paused = false ;
+			if (!ended) key.interestOps(key.interestOps() | SelectionKey.OP_READ) ;
+			parse(input) ;		// what arrived before we paused, which may pause us again
+		}
+
+		private ByteBuffer output() {		// where to put what we write: after what we couldn't write before, or the loop's buffer
+
+			return (output != null) ? output : MessageQueueSourceEventLoop.this.output ;
+		}
+
+		/** Queue acks for any of our messages which have been committed since we last acked **/
+
+		void ack() throws Exception {
+
+			long committed = committedCount() ;
+			if (committed <= acked) return ;
+			ByteBuffer output = output() ;
+			if (pipelined) {
+				if (output.remaining() < 9) return ;		// when the output already written has gone
+				output.put((byte) 'A').putLong(committed) ;
+				acked = committed ;
+			}
+			else while ((acked < committed) && output.hasRemaining()) {
+				output.put((byte) 'Y') ;
+				acked++ ;
+			}
+		}
+
+		/** With flow control, tell the source when we pause ('B') and resume ('G') it **/
+
+		void tell() {
+
+			ByteBuffer output = output() ;
+			if (flowControl && (paused != toldPaused) && output.hasRemaining()) {
+				output.put(paused ? (byte) 'B' : (byte) 'G') ;
+				toldPaused = paused ;
+			}
+		}
+
+		void write() throws Exception {
+
+			ByteBuffer out = output() ;
+			if (out.position() > 0) {
+				out.flip() ;
+				channel.write(out) ;
+				if (!out.hasRemaining()) output = null ;
+				else if (output == null) {		// keep the rest
+					output = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE) ;
+					output.put(out) ;
+				}
+				else output.compact() ;
+			}
+			int ops = key.interestOps() ;
+			if ((output != null) != ((ops & SelectionKey.OP_WRITE) != 0)) key.interestOps(ops ^ SelectionKey.OP_WRITE) ;	// wait to write the rest
+		}
+
+		boolean finished() throws Exception {
+
+			failed() ;		// throws if a message wasn't persisted
+			return ended && (acked == received) && (output == null) ;
+		}
+
+		void close() {
+
+			key.cancel() ;
+			try {
+				channel.close() ;
+			}
+			catch (Exception e) { }
+			connections-- ;
+			System.out.println("Source session ended: " + remote) ;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package projectComputing.MessageQueue ;
+
+/**
+  MessageQueueStandby - a standby message queue, committing what its primary's MessageQueueReplicator sends it, until
+  the primary fails, when it takes over.
+
+  Used when portUsedForReplication is set.  The standby doesn't listen for sources or sinks: it accepts one primary on
+  portUsedForReplication, commits each batch of messages the primary committed to the same queue (and partition)
+  here, and takes the messages the primary's sinks acked as if a sink here had acked them.  So it ends up with the same
+  messages, in the same order, as the primary, as long as it started with none or a copy of the primary's directory.
+  It confirms commits to the primary whenever it has caught up with what has arrived, so one confirmation covers many,
+  but at least every CONFIRM_EVERY_RECORDS records or CONFIRM_EVERY_MILLIS, so a steady stream doesn't hold up sync acks.
+  When there is nothing new to confirm, it confirms again every failoverMillis/4 anyway, as a heartbeat.
+
+  When the primary hasn't sent anything (even a heartbeat) for failoverMillis, or its connection ends, the standby takes
+  over: it flags the messages in memory as possible replays (the sink may have had them from the primary without its
+  acks getting here), and starts listening for sources and sinks on the message queue's ports, as soon as it can bind
+  them (which, on the same machine, is when the primary has released them).  If it still can't bind them after another
+  failoverMillis, the primary is still running (it was paused, or just lost us) and has gone on without us, so what we
+  hold is out of date: we never take over, and must be restarted with a fresh copy of the primary's directory.
+**/
+
+import java.io.*;
+import java.net.*;
+import java.util.* ;
+
+class MessageQueueStandby implements Runnable {
+
+	static final int BIND_RETRY_MILLIS = 100 ;
+	static final int CONFIRM_EVERY_RECORDS = 100 ;
+	static final int CONFIRM_EVERY_MILLIS = 5 ;
+
+	private final MessageQueue messageQueue ;		// the root
+	private final int port ;
+	private final int failoverMillis ;
+
+	MessageQueueStandby(MessageQueue messageQueue, int port, int failoverMillis) {
+
+		this.messageQueue = messageQueue ;
+		this.port = port ;
+		this.failoverMillis = failoverMillis ;
+	}
+
+	public void run() {		// our thread..
+
+		Thread.currentThread().setName("MessageQueueStandby") ;
+		try {
+			ServerSocket serverSocket = new ServerSocket(port) ;
+			System.err.println("Standby message queue waiting for its primary on port " + port) ;
+			Socket socket = serverSocket.accept() ;
+			serverSocket.close() ;		// only one primary
+			System.err.println("Standby message queue replicating from " + socket.getRemoteSocketAddress()) ;
+			try {
+				replicate(socket) ;
+			}
+			catch (Exception e) {
+				System.err.println("Standby message queue lost its primary: " + e) ;
+			}
+			finally {
+				socket.close() ;
+			}
+			takeOver() ;
+		}
+		catch (Exception e) {
+			System.err.println("Error in MessageQueueStandby:" + e) ;
+			e.printStackTrace() ;
+		}
+	}
+
+	/** Commit and ack what the primary sends until it stops, or fails **/
+
+	private void replicate(Socket socket) throws Exception {
+
+		int heartbeatMillis = Math.max(1, failoverMillis / 4) ;
+		socket.setTcpNoDelay(true) ;
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024)) ;
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())) ;
+		ArrayList<Message> batch = new ArrayList<Message>() ;
+		long committed = 0 ;
+		long heard = System.currentTimeMillis() ;		// when the primary last sent anything
+		long confirmed = 0 ;
+		long confirmedAt = heard ;						// when we last confirmed
+		int unconfirmed = 0 ;							// records since
+		while (true) {
+			int b ;
+			try {
+				socket.setSoTimeout(heartbeatMillis) ;		// so we send our heartbeat while waiting for the primary's
+				b = dis.read() ;
+				socket.setSoTimeout(failoverMillis) ;		// the rest of the record can take as long as a heartbeat, but no longer
+			}
+			catch (SocketTimeoutException e) {
+				long now = System.currentTimeMillis() ;
+				if (now - heard >= failoverMillis) throw new Exception("Nothing from primary for " + failoverMillis + " millisecs") ;
+				if (now - confirmedAt >= heartbeatMillis) {
+					confirm(dos, committed) ;
+					confirmed = committed ;
+					confirmedAt = now ;
+				}
+				continue ;
+			}
+			if (b < 0) throw new Exception("Eof from primary") ;
+			heard = System.currentTimeMillis() ;
+			unconfirmed++ ;
+			if (b == 'C') {
+				long sequence = dis.readLong() ;
+				MessageQueue queue = queue(dis) ;
+				int count = dis.readInt() ;
+				batch.clear() ;
+				for (int i=0;i<count;i++) {
+					byte id[] = new byte[16] ;
+					dis.readFully(id) ;
+					byte contents[] = new byte[dis.readInt()] ;
+					dis.readFully(contents) ;
+					batch.add(new Message(id, contents, false)) ;
+				}
+				queue.commit(batch) ;
+				committed = sequence ;
+			}
+			else if (b == 'A') {
+				MessageQueue queue = queue(dis) ;
+				queue.replicaAcked(dis.readInt()) ;
+			}
+			else if (b != 'H') throw new Exception("Unexpected record type from primary: " + b) ;
+
+			long now = System.currentTimeMillis() ;
+			if (((committed > confirmed) && ((dis.available() == 0) || (unconfirmed >= CONFIRM_EVERY_RECORDS) || (now - confirmedAt >= CONFIRM_EVERY_MILLIS))) ||
+				(now - confirmedAt >= heartbeatMillis)) {		// caught up, or it's time to confirm, or to send a heartbeat
+				confirm(dos, committed) ;
+				confirmed = committed ;
+				confirmedAt = now ;
+				unconfirmed = 0 ;
+			}
+		}
+	}
+
+	/** 'Y', and the sequence of the last commit we've committed: everything up to it is confirmed **/
+
+	private void confirm(DataOutputStream dos, long committed) throws IOException {
+
+		dos.write('Y') ;
+		dos.writeLong(committed) ;
+		dos.flush() ;
+	}
+
+	/** The queue, or partition of a queue, a record is for: queue name len, name[len] (0 for the default queue), partition **/
+
+	private MessageQueue queue(DataInputStream dis) throws Exception {
+
+		int len = dis.readInt() ;
+		if ((len < 0) || (len > MessageQueue.MAX_QUEUE_NAME_LENGTH)) throw new Exception("Invalid queue name length from primary: " + len) ;
+		String name = null ;
+		if (len > 0) {
+			byte nameBytes[] = new byte[len] ;
+			dis.readFully(nameBytes) ;
+			name = new String(nameBytes, "UTF-8") ;
+		}
+		int partition = dis.readInt() ;
+		MessageQueue queue = messageQueue.queue(name) ;
+		if (partition == 0) return queue ;
+		if ((queue.partitionQueues == null) || (partition >= queue.partitionQueues.length))
+			throw new Exception("Standby has no partition " + partition + " of " + queue + ": it must have as many partitions as the primary") ;
+		return queue.partitionQueues[partition] ;
+	}
+
+	private void takeOver() throws Exception {
+
+		for (MessageQueue queue: messageQueue.allQueues()) {
+			synchronized (queue) {
+				for (Message m: queue.messageQueue) m.possibleReplay = true ;
+			}
+		}
+		long giveUp = System.currentTimeMillis() + failoverMillis ;
+		while (!Bindable(messageQueue.portUsedBySources) || !Bindable(messageQueue.portUsedBySink)) {
+			if (System.currentTimeMillis() >= giveUp) {
+				System.err.println("Standby message queue NOT taking over: ports " + messageQueue.portUsedBySources + " and " + messageQueue.portUsedBySink +
+					" are still in use, so the primary is still running without us, and our messages are out of date.  Restart this standby with a fresh copy of the primary's directory") ;
+				return ;
+			}
+			Thread.sleep(BIND_RETRY_MILLIS) ;
+		}
+		messageQueue.listen() ;
+		System.err.println("Standby message queue has taken over, portUsedBySources: " + messageQueue.portUsedBySources +
+			", portUsedBySink: " + messageQueue.portUsedBySink + ", named queues: " + messageQueue.queues.keySet()) ;
+	}
+
+	static boolean Bindable(int port) {
+
+		ServerSocket s = null ;
+		try {
+			s = new ServerSocket() ;
+			s.setReuseAddress(true) ;
+			s.bind(new InetSocketAddress(port)) ;
+			return true ;
+		}
+		catch (IOException e) {
+			return false ;
+		}
+		finally {
+			try {
+				if (s != null) s.close() ;
+			}
+			catch (IOException e) { }
+		}
+	}
+}
@@ -23,12 +23,34 @@ package projectComputing.MessageQueue ;
 		..
 	}
 	mqWriter.close() ;
+
+  or, to keep up to window unacked messages in flight rather than waiting for each ack:
+
+	MessageQueueWriter mqWriter = new MessageQueueWriter(serverAddr, serverPort, 1000) ;
+	...
+	CompletableFuture<Long> acked = mqWriter.writeAsync(contents) ;	// completes with the message's sequence number on this connection
+	...
+	mqWriter.close() ;		// waits for all messages to be acked
+
+  or, to send to a named queue rather than the default queue:
+
+	MessageQueueWriter mqWriter = new MessageQueueWriter(serverAddr, serverPort, 1000, "orders") ;
+
+  When the message queue has reached a disk or memory watermark, it stops accepting messages, so write() and
+  writeAsync() block until it is below the watermarks again.  With flowControl, it tells us when it does so, and
+  isBusy() says whether it is busy now, so a source can back off (or shed load) rather than block:
+
+	MessageQueueWriter mqWriter = new MessageQueueWriter(serverAddr, serverPort, 1000, null, true) ;
+	...
+	if (mqWriter.isBusy()) ...
 **/
 
 		
 import java.io.*;
 import java.net.*;
 import java.nio.* ;
+import java.util.* ;
+import java.util.concurrent.* ;
 
 public class MessageQueueWriter {
 
@@ -38,13 +60,75 @@ public class MessageQueueWriter {
 	final ByteBuffer lenBuffer ;
 	int count = 0 ;
 
+	// pipelined mode only: messages sent but not yet acked, oldest first, and the number we may still send before blocking
+
+	final int window ;
+	final ArrayDeque<CompletableFuture<Long>> unacked = new ArrayDeque<CompletableFuture<Long>>() ;
+	Semaphore windowPermits ;
+	long sent = 0 ;
+	long acked = 0 ;
+	volatile Exception failure ;
+	volatile boolean closing = false ;
+
+	final boolean flowControl ;
+	volatile boolean busy = false ;		// the message queue has told us it is paused by a watermark
+	final Object notBusy = new Object() ;	// writeAsync() waits on this while busy
+
 	public MessageQueueWriter(String serverAddr, int serverPort) throws Exception {
 
+		this(serverAddr, serverPort, 1) ;
+	}
+
+	/** window is the max number of messages sent but not yet acked.  1 gives the original stop-and-wait protocol, where
+		every write() waits for its own ack.  A bigger window asks the message queue to ack cumulatively, and write()/writeAsync()
+		only block when window messages are awaiting their ack.
+	**/
+
+	public MessageQueueWriter(String serverAddr, int serverPort, int window) throws Exception {
+
+		this(serverAddr, serverPort, window, null) ;
+	}
+
+	/** Sends to the named queue, which is created if it doesn't exist, or the default queue if queueName is null **/
+
+	public MessageQueueWriter(String serverAddr, int serverPort, int window, String queueName) throws Exception {
+
+		this(serverAddr, serverPort, window, queueName, false) ;
+	}
+
+	/** With flowControl, the message queue tells us when it pauses and resumes accepting messages because of its
+		watermarks, which isBusy() reports.  writeAsync() then waits while it is paused, rather than sending messages
+		which will just wait in the connection.
+	**/
+
+	public MessageQueueWriter(String serverAddr, int serverPort, int window, String queueName, boolean flowControl) throws Exception {
+
+		if (window < 1) throw new Exception("window must be at least 1") ;
 		this.server = new Socket(serverAddr, serverPort) ;
 		this.bis = new BufferedInputStream(server.getInputStream()) ;
 		this.bos = new BufferedOutputStream(server.getOutputStream()) ;
 
 		this.lenBuffer = ByteBuffer.allocate(4) ;
+		this.window = window ;
+		this.flowControl = flowControl ;
+		if (flowControl) bos.write('F') ;		// ask to be told when the message queue is busy
+		if (queueName != null) {
+			byte name[] = queueName.getBytes("UTF-8") ;
+			bos.write('Q') ;		// name the queue to send to, sent with the first message
+			bos.write(lenBuffer.putInt(0, name.length).array()) ;
+			bos.write(name) ;
+		}
+		if (window > 1) {
+			windowPermits = new Semaphore(window) ;
+			bos.write('P') ;		// ask for pipelined, cumulative acks
+			bos.write(lenBuffer.putInt(0, window).array()) ;
+			bos.flush() ;
+			Thread ackReader = new Thread(new Runnable() {
+				public void run() { readAcks() ; }
+			}, "MessageQueueWriter-acks") ;
+			ackReader.setDaemon(true) ;
+			ackReader.start() ;
+		}
 	}
 
 	public void write(byte[] message) throws Exception {
@@ -54,6 +138,81 @@ public class MessageQueueWriter {
 
 	public void write(byte id[], byte[] message) throws Exception {
 
+		if (window > 1) {
+			try {
+				writeAsync(id, message).get() ;
+			}
+			catch (ExecutionException e) {
+				throw (Exception) e.getCause() ;
+			}
+			return ;
+		}
+
+		writeFrame(id, message) ;
+		bos.flush() ;
+
+		while (true) {
+			int b = bis.read() ;
+			if (b == 'Y') break ;
+			if (flowControl && ((b == 'B') || (b == 'G'))) busy = (b == 'B') ;	// the ack follows when it resumes
+			else throw new Exception("Message not acked") ;
+		}
+		count++ ;
+	}
+
+	/** With flowControl, true if the message queue last told us it has reached a watermark, and so isn't accepting messages **/
+
+	public boolean isBusy() {
+
+		return busy ;
+	}
+
+	private void busy(boolean busy) {
+
+		synchronized (notBusy) {
+			this.busy = busy ;
+			if (!busy) notBusy.notifyAll() ;
+		}
+	}
+
+	public CompletableFuture<Long> writeAsync(byte[] message) throws Exception {
+
+		return writeAsync(null, message) ;
+	}
+
+	/** Pipelined mode only.  Returns once the message has been sent, blocking only if window messages are awaiting their ack.
+		The future completes with the message's sequence number on this connection (starting at 1) when the message queue
+		has acked it, or completes exceptionally if the connection fails first.
+	**/
+
+	public CompletableFuture<Long> writeAsync(byte id[], byte[] message) throws Exception {
+
+		if (window == 1) throw new Exception("writeAsync needs a MessageQueueWriter created with a window greater than 1") ;
+		if ((message == null) || (message.length == 0)) throw new Exception("no message supplied") ;
+		if ((id != null) && (id.length != 16)) throw new Exception("id must be null or 16 bytes") ;
+
+		windowPermits.acquire() ;
+		if (busy) synchronized (notBusy) {
+			while (busy && (failure == null)) notBusy.wait() ;
+		}
+		CompletableFuture<Long> future = new CompletableFuture<Long>() ;
+		synchronized (this) {
+			synchronized (unacked) {		// the ack reader sets failure and fails what is unacked with this lock, so none is missed
+				if (failure != null) {
+					windowPermits.release() ;
+					throw failure ;
+				}
+				unacked.add(future) ;
+			}
+			writeFrame(id, message) ;
+			bos.flush() ;
+			sent++ ;
+		}
+		return future ;
+	}
+
+	private void writeFrame(byte id[], byte[] message) throws Exception {
+
 		if ((message == null) || (message.length == 0)) throw new Exception("no message supplied") ;
 
 		if (id == null)	bos.write('M') ;
@@ -67,14 +226,66 @@ public class MessageQueueWriter {
 		bos.write(lenBytes) ;
 
 		bos.write(message) ;
-		bos.flush() ;
+	}
 
-		if (bis.read() != 'Y') throw new Exception("Message not acked") ;
-		count++ ;
+	/* pipelined mode ack reader thread: the message queue sends 'A' followed by the (8 byte) count of messages
+	   it has persisted from this connection, acking every message up to and including that one.  With flowControl,
+	   it also sends 'B' when it pauses and 'G' when it resumes.
+	*/
+
+	private void readAcks() {
+
+		ByteBuffer seqBuffer = ByteBuffer.allocate(8) ;
+		try {
+			while (true) {
+				int b = bis.read() ;
+				if (b < 0) throw new Exception("Unexpected eof reading acks from message queue") ;
+				if (flowControl && ((b == 'B') || (b == 'G'))) {
+					busy(b == 'B') ;
+					continue ;
+				}
+				if (b != 'A') throw new Exception("Unexpected ack type from message queue: " + b) ;
+				for (int i=0;i<8;i++) {
+					int j = bis.read() ;
+					if (j < 0) throw new Exception("Eof reading ack sequence") ;
+					seqBuffer.put(i, (byte) j) ;
+				}
+				long seq = seqBuffer.getLong(0) ;
+				int n = 0 ;
+				while (acked < seq) {
+					CompletableFuture<Long> future ;
+					synchronized (unacked) {
+						future = unacked.poll() ;
+					}
+					if (future == null) throw new Exception("Ack for message " + seq + " not sent") ;
+					acked++ ;
+					count++ ;
+					n++ ;
+					future.complete(acked) ;
+				}
+				windowPermits.release(n) ;
+			}
+		}
+		catch (Exception e) {
+			ArrayList<CompletableFuture<Long>> failed ;
+			synchronized (unacked) {
+				failure = closing ? new Exception("MessageQueueWriter closed") : e ;
+				failed = new ArrayList<CompletableFuture<Long>>(unacked) ;
+				unacked.clear() ;
+			}
+			for (CompletableFuture<Long> future: failed) future.completeExceptionally(failure) ;
+			windowPermits.release(failed.size()) ;		// back to window, waking any blocked writers so they see the failure
+			busy(false) ;
+		}
 	}
 
 	public void close() throws Exception { 
 
+		if (window > 1) {		// wait for everything we've sent to be acked
+			windowPermits.acquire(window) ;
+			if (failure != null) throw failure ;
+			closing = true ;
+		}
 		bos.write('E') ;
 		bos.flush() ;
 		bis.close() ;	
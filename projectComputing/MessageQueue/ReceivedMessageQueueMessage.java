@@ -12,12 +12,14 @@ public class ReceivedMessageQueueMessage {
 	public final byte id[] ;
 	public final byte contents[] ;
 	public final boolean possiblyReplayed ;
+	public final long sequence ;		// this message's number in the reader's session, the first being 1
 
-	ReceivedMessageQueueMessage(byte id[], byte contents[], boolean possiblyReplayed) {
+	ReceivedMessageQueueMessage(byte id[], byte contents[], boolean possiblyReplayed, long sequence) {
 
 		this.id = id ;
 		this.contents = contents ;
 		this.possiblyReplayed = possiblyReplayed ;
+		this.sequence = sequence ;
 	}
 
 	public String idAsString() {
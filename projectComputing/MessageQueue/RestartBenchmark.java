@@ -0,0 +1,108 @@
+package projectComputing.MessageQueue ;
+
+import java.io.*;
+import java.lang.management.* ;
+import java.util.* ;
+
+// java -classpath . projectComputing.MessageQueue.RestartBenchmark create backlogDirectory 10000 1000
+// java -classpath . projectComputing.MessageQueue.RestartBenchmark time backlogDirectory 7211 map 100000
+
+public class RestartBenchmark {
+
+	// Measures how long a restarted message queue with a big backlog takes to deliver its first message to a sink, and
+	// how fast it then drains the backlog, reading files normally ("copy"), with mapFilesForReading ("map") or with
+	// transferFilesToSink ("transfer").
+	//
+	// "create" writes a backlog of the given number of megabytes of messages straight into message queue files.
+	// "time" starts a message queue on that backlog in this JVM, connects a sink and reports the time to the first
+	// message, then optionally drains the given number of messages, reporting messages/sec and GC time.
+	// Draining deletes files as they are consumed, so recreate the backlog (or copy it first) between runs.
+
+	public static void main(String args[]) throws Exception {
+
+		if ((args.length == 4) && "create".equals(args[0])) Create(new File(args[1]), Long.parseLong(args[2]), Integer.parseInt(args[3])) ;
+		else if (((args.length == 4) || (args.length == 5)) && "time".equals(args[0]))
+			Time(args[1], Integer.parseInt(args[2]), args[3], (args.length == 5) ? Integer.parseInt(args[4]) : 0) ;
+		else Usage() ;
+	}
+
+	static void Create(File directory, long megabytes, int messageSize) throws Exception {
+
+		MessageQueue.DEBUG = false ;
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new Exception("could not create " + directory) ;
+		int maxDiskFileSize = MessageQueue.DEFAULT_MAX_MEMORY_QUEUE_SIZE / MessageQueue.DEFAULT_DISK_FILE_SIZE_DIVISOR ;
+
+		byte contents[] = new byte[messageSize] ;
+		Arrays.fill(contents, (byte) 'Z') ;
+		long target = megabytes * 1000000L ;
+		long written = 0 ;
+		long messages = 0 ;
+		int files = 0 ;
+		MessageQueueFile file = null ;
+		while (written < target) {
+			if (file == null) {
+				file = new MessageQueueFile(directory, false) ;
+				files++ ;
+			}
+			if (!file.add(new Message(contents), maxDiskFileSize)) file = null ;	// add() closes the file when it is full
+			written += contents.length + MessageQueueFile.RECORD_HEADER_SIZE ;
+			messages++ ;
+		}
+		if (file != null) file.close(null) ;
+		System.out.println("Created " + messages + " messages in " + files + " files, " + (written / 1000000) + "MB, in " + directory) ;
+	}
+
+	static void Time(String directory, int port, String readMode, int drainCount) throws Exception {
+
+		MessageQueue.DEBUG = false ;
+		MessageQueue mq = new MessageQueue() ;
+		mq.portUsedBySources = port ;
+		mq.portUsedBySink = port + 1 ;
+		mq.messageQueueDirectoryName = directory ;
+		if ("map".equals(readMode)) mq.mapFilesForReading = true ;
+		else if ("transfer".equals(readMode)) mq.transferFilesToSink = true ;
+		else if (!"copy".equals(readMode)) Usage() ;
+
+		long gcStart = GcMillis() ;
+		long start = System.nanoTime() ;
+		mq.begin() ;
+		MessageQueueReader mqReader = null ;
+		while (mqReader == null) {		// the sink listener may not have started yet
+			try {
+				mqReader = new MessageQueueReader("127.0.0.1", mq.portUsedBySink) ;
+			}
+			catch (IOException e) {
+				Thread.sleep(1) ;
+			}
+		}
+		mqReader.read() ;
+		long first = System.nanoTime() ;
+		System.out.println(readMode + ": restart to first delivery " + (first - start) / 1000000 + "ms, GC " + (GcMillis() - gcStart) + "ms") ;
+
+		if (drainCount > 0) {
+			for (int i=1;i<drainCount;i++) mqReader.read() ;
+			long elapsed = Math.max(1, System.nanoTime() - first) ;
+			System.out.println(readMode + ": drained " + drainCount + " messages at " +
+				((long) drainCount * 1000000000L / elapsed) + " messages/sec, total GC " + (GcMillis() - gcStart) + "ms") ;
+		}
+		System.exit(0) ;		// the message queue's threads would otherwise keep running
+	}
+
+	static long GcMillis() {
+
+		long total = 0 ;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) total += Math.max(0, gc.getCollectionTime()) ;
+		return total ;
+	}
+
+	static void Usage() {
+
+		System.out.println("RestartBenchmark command line parms are either:\n" +
+			"create, message queue directory, backlog size in megabytes, message contents size in bytes\n" +
+			"or\n" +
+			"time, message queue directory, first of 2 ports to use, copy, map or transfer, optional number of messages to drain\n" +
+			"eg java projectcomputing.MessageQueue.RestartBenchmark create backlogDirectory 10000 1000\n" +
+			"   java projectcomputing.MessageQueue.RestartBenchmark time backlogDirectory 7211 map 100000") ;
+			System.exit(-1) ;
+	}
+}
@@ -0,0 +1,124 @@
+package projectComputing.MessageQueue ;
+
+import java.io.*;
+import java.lang.management.* ;
+import java.util.* ;
+
+// java -Xmx2g -classpath . projectComputing.MessageQueue.SourceScalingBenchmark nio benchDirectory 7211 10000 8 200000 100
+// java -Xmx2g -classpath . projectComputing.MessageQueue.SourceScalingBenchmark thread benchDirectory 7211 10000 8 200000 100
+
+public class SourceScalingBenchmark {
+
+	// Runs a message queue in this JVM with the given sourceConnectionEngine, and opens the given number of source
+	// connections to it, most of which are idle at any moment: a few sender threads each send messages round-robin over
+	// their share of the connections, waiting for each ack.  A sink drains the queue as it runs.  Reports how long it took
+	// to connect, the number of threads and the resident set size of the process with every connection open, then
+	// messages/sec and ack latency percentiles.
+	// Run it with "thread", "virtual" and "nio" in separate JVMs to compare them.  The connections' sockets are at both
+	// ends in this process, so it needs a file descriptor limit (ulimit -n) of more than twice the number of connections.
+
+	public static void main(String args[]) throws Exception {
+
+		if (args.length != 7) Usage() ;
+		String engine = args[0] ;
+		String directory = args[1] ;
+		int port = Integer.parseInt(args[2]) ;
+		int connections = Integer.parseInt(args[3]) ;
+		int senders = Integer.parseInt(args[4]) ;
+		int messages = Integer.parseInt(args[5]) ;
+		final int messageSize = Integer.parseInt(args[6]) ;
+		if ((connections < 1) || (senders < 1) || (senders > connections)) Usage() ;
+
+		MessageQueue.DEBUG = false ;
+		final MessageQueue mq = new MessageQueue() ;
+		mq.portUsedBySources = port ;
+		mq.portUsedBySink = port + 1 ;
+		mq.messageQueueDirectoryName = new File(directory, engine + "-" + System.currentTimeMillis()).getPath() ;
+		mq.sourceConnectionEngine = engine ;
+		mq.begin() ;
+		Thread.sleep(500) ;		// let the listeners start
+		int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount() ;
+
+		Thread sink = new Thread(new Runnable() {
+			public void run() {
+				try {
+					MessageQueueReader mqReader = new MessageQueueReader("127.0.0.1", mq.portUsedBySink, 1000) ;
+					while (true) mqReader.read() ;
+				}
+				catch (Exception e) {
+					System.err.println("SourceScalingBenchmark sink error:" + e) ;
+				}
+			}
+		}) ;
+		sink.setDaemon(true) ;
+		sink.start() ;
+
+		PrintStream out = System.out ;
+		System.setOut(new PrintStream(new OutputStream() { public void write(int b) { } })) ;	// quieten the session started/ended messages
+		final MessageQueueWriter writers[] = new MessageQueueWriter[connections] ;
+		long start = System.nanoTime() ;
+		for (int i=0;i<connections;i++) writers[i] = new MessageQueueWriter("127.0.0.1", mq.portUsedBySources) ;
+		writers[connections - 1].write(new byte[messageSize]) ;		// the last connection is being served, so the rest should be too
+		long connectMillis = (System.nanoTime() - start) / 1000000 ;
+		Thread.sleep(1000) ;		// let the server side settle
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount() ;
+		String rss = MemoryBenchmark.ResidentSetSize() ;
+
+		final int messagesPerSender = messages / senders ;
+		final long latencies[][] = new long[senders][messagesPerSender] ;
+		Thread senderThreads[] = new Thread[senders] ;
+		start = System.nanoTime() ;
+		for (int i=0;i<senders;i++) {
+			final int sender = i ;
+			final int sendersCount = senders ;
+			senderThreads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						byte contents[] = new byte[messageSize] ;
+						Arrays.fill(contents, (byte) 'Z') ;
+						int c = sender ;		// this sender's connections are sender, sender + senders, ..
+						for (int j=0;j<messagesPerSender;j++) {
+							long t = System.nanoTime() ;
+							writers[c].write(contents) ;
+							latencies[sender][j] = System.nanoTime() - t ;
+							c += sendersCount ;
+							if (c >= writers.length) c = sender ;
+						}
+					}
+					catch (Exception e) {
+						System.err.println("SourceScalingBenchmark sender " + sender + " error:" + e) ;
+						e.printStackTrace() ;
+					}
+				}
+			}) ;
+			senderThreads[i].start() ;
+		}
+		for (Thread t: senderThreads) t.join() ;
+		long elapsed = Math.max(1, System.nanoTime() - start) ;
+		for (MessageQueueWriter mqWriter: writers) mqWriter.close() ;
+
+		long all[] = new long[senders * messagesPerSender] ;
+		for (int i=0;i<senders;i++) System.arraycopy(latencies[i], 0, all, i * messagesPerSender, messagesPerSender) ;
+		Arrays.sort(all) ;
+		out.println(connections + " connections, engine " + engine + ": connected in " + connectMillis + "ms, threads " +
+			baseThreads + " before connecting and " + threads + " after, RSS " + rss) ;
+		out.println(String.format("%-7s %10d msgs/s   ack latency usec: p50 %8d  p99 %8d  p99.9 %8d  max %8d", engine,
+			(long) all.length * 1000000000L / elapsed, DurabilityBenchmark.Percentile(all, 50.0) / 1000,
+			DurabilityBenchmark.Percentile(all, 99.0) / 1000, DurabilityBenchmark.Percentile(all, 99.9) / 1000, all[all.length - 1] / 1000)) ;
+		System.exit(0) ;		// the message queue's threads would otherwise keep running
+	}
+
+	static void Usage() {
+
+		System.out.println("SourceScalingBenchmark command line parms are:\n" +
+			"Source connection engine: thread, virtual or nio\n" +
+			"Directory to hold the message queue directory\n" +
+			"First of 2 ports to use\n" +
+			"Number of concurrent source connections\n" +
+			"Number of sender threads sending over them (no more than the number of connections)\n" +
+			"Total messages to send\n" +
+			"Message contents size in bytes\n" +
+			"eg java -Xmx2g projectcomputing.MessageQueue.SourceScalingBenchmark nio benchDirectory 7211 10000 8 200000 100") ;
+			System.exit(-1) ;
+	}
+}